@@ -7,23 +7,56 @@ RESOLUTION="${RESOLUTION:-1440x900}"
 DISPLAY=:0.0
 VIDEO_FORMAT="${VIDEO_FORMAT:-mp4}"
 
-if [ ! "$#" -eq 2 ]; then
-  echo "Usage: $0 -n VIDEO_NAME"
-  exit 1
-fi
+# With -s, the recording is segmented (HLS playlist VIDEO_NAME.m3u8 with
+# fMP4 segments of SEGMENT_SECONDS, available while recording). The encoder
+# profile is given by -f FPS, -q CRF, -z SCALE (relative to the screen size)
+# and -g KEYFRAME_INTERVAL (in frames, 0 for the ffmpeg default). With -l,
+# the screen is captured losslessly in VIDEO_NAME-lossless.mkv, to be
+# transcoded later by EUS
+USAGE="Usage: $0 -n VIDEO_NAME [-s SEGMENT_SECONDS] [-f FPS] [-q CRF] [-z SCALE] [-g KEYFRAME_INTERVAL] [-l]"
 
-while getopts "n:" opt; do
+VIDEO_NAME=""
+SEGMENT_SECONDS=""
+FPS=25
+CRF=28
+SCALE=1.0
+KEYFRAME_INTERVAL=0
+LOSSLESS=""
+while getopts "n:s:f:q:z:g:l" opt; do
   case "${opt}" in
     n)
       VIDEO_NAME=${OPTARG}
       ;;
+    s)
+      SEGMENT_SECONDS=${OPTARG}
+      ;;
+    f)
+      FPS=${OPTARG}
+      ;;
+    q)
+      CRF=${OPTARG}
+      ;;
+    z)
+      SCALE=${OPTARG}
+      ;;
+    g)
+      KEYFRAME_INTERVAL=${OPTARG}
+      ;;
+    l)
+      LOSSLESS="true"
+      ;;
     *)
-      echo "Usage: $0 -n VIDEO_NAME"
+      echo "$USAGE"
       exit 1
       ;;
   esac
 done
 
+if [ -z "$VIDEO_NAME" ]; then
+  echo "$USAGE"
+  exit 1
+fi
+
 ### Only one recording at a time
 FFMPEG_PID=$(ps ax | grep [f]fmpeg | awk '{ print $1'} )
 if [ ! -z "$FFMPEG_PID" ]; then
@@ -37,4 +70,24 @@ touch /tmp/stop
 sudo chmod 777 $DOCKER_HOME/recordings
 
 ### Start recording with ffmpeg ###
-</tmp/stop ffmpeg -y -f alsa -i pulse -f x11grab -framerate 25 -video_size $RESOLUTION -i $DISPLAY -c:a libfdk_aac -c:v libx264 -preset ultrafast -crf 28 -refs 4 -qmin 4 -pix_fmt yuv420p -filter:v fps=25 ~/recordings/${VIDEO_NAME}.${VIDEO_FORMAT}
+VIDEO_FILTER="fps=${FPS}"
+if [ "$SCALE" != "1.0" ] && [ "$SCALE" != "1" ]; then
+  VIDEO_FILTER="${VIDEO_FILTER},scale=trunc(iw*${SCALE}/2)*2:trunc(ih*${SCALE}/2)*2"
+fi
+KEYFRAMES=""
+if [ "$KEYFRAME_INTERVAL" -gt 0 ]; then
+  KEYFRAMES="-g ${KEYFRAME_INTERVAL}"
+fi
+ENCODER="-c:v libx264 -preset ultrafast -crf ${CRF} ${KEYFRAMES} -refs 4 -qmin 4 -pix_fmt yuv420p -filter:v ${VIDEO_FILTER}"
+
+if [ -n "$SEGMENT_SECONDS" ]; then
+  # Segments are listed in the playlist once completed
+  OUTPUT="-force_key_frames expr:gte(t,n_forced*${SEGMENT_SECONDS}) -f hls -hls_time ${SEGMENT_SECONDS} -hls_list_size 0 -hls_playlist_type event -hls_segment_type fmp4 -hls_fmp4_init_filename ${VIDEO_NAME}-init.mp4 -hls_segment_filename $HOME/recordings/${VIDEO_NAME}-%05d.m4s $HOME/recordings/${VIDEO_NAME}.m3u8"
+elif [ -n "$LOSSLESS" ]; then
+  # Cheap lossless capture (scale, CRF and keyframes applied when transcoding)
+  ENCODER="-c:v libx264 -preset ultrafast -qp 0 -pix_fmt yuv420p -filter:v fps=${FPS}"
+  OUTPUT="$HOME/recordings/${VIDEO_NAME}-lossless.mkv"
+else
+  OUTPUT="$HOME/recordings/${VIDEO_NAME}.${VIDEO_FORMAT}"
+fi
+</tmp/stop ffmpeg -y -f alsa -i pulse -f x11grab -framerate $FPS -video_size $RESOLUTION -i $DISPLAY -c:a libfdk_aac $ENCODER $OUTPUT
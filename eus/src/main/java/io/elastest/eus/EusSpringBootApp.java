@@ -32,6 +32,7 @@ import io.elastest.eus.service.DockerService;
 import io.elastest.eus.service.JsonService;
 import io.elastest.eus.service.RecordingService;
 import io.elastest.eus.service.SessionService;
+import io.elastest.eus.service.WebDriverClientService;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 /**
@@ -53,12 +54,15 @@ public class EusSpringBootApp implements WebSocketConfigurer {
     private DockerService dockerService;
     private JsonService jsonService;
     private RecordingService recordingService;
+    private WebDriverClientService webDriverClientService;
 
     public EusSpringBootApp(DockerService dockerService,
-            JsonService jsonService, RecordingService recordingService) {
+            JsonService jsonService, RecordingService recordingService,
+            WebDriverClientService webDriverClientService) {
         this.dockerService = dockerService;
         this.jsonService = jsonService;
         this.recordingService = recordingService;
+        this.webDriverClientService = webDriverClientService;
     }
 
     @Override
@@ -69,7 +73,8 @@ public class EusSpringBootApp implements WebSocketConfigurer {
 
     @Bean
     public SessionService sessionService() {
-        return new SessionService(dockerService, jsonService, recordingService);
+        return new SessionService(dockerService, jsonService, recordingService,
+                webDriverClientService);
     }
 
     public static void main(String[] args) {
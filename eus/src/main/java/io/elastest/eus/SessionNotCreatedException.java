@@ -0,0 +1,36 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus;
+
+/**
+ * Exception for W3C WebDriver "session not created" errors.
+ *
+ * @since 0.9.1
+ */
+public class SessionNotCreatedException extends EusException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SessionNotCreatedException(String msg, Throwable e) {
+        super(msg, e);
+    }
+
+    public SessionNotCreatedException(String msg) {
+        super(msg);
+    }
+
+}
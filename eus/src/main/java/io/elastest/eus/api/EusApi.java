@@ -18,11 +18,13 @@ package io.elastest.eus.api;
 
 import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
+import static org.springframework.web.bind.annotation.RequestMethod.HEAD;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 
 import org.springframework.http.HttpEntity;
@@ -202,7 +204,8 @@ public interface EusApi {
     /**
      * GET/POST/DELETE /session/**
      *
-     * W3C WebDriver operations for sessions
+     * W3C WebDriver operations for sessions (ResponseEntity or DeferredResult,
+     * depending on the WebDriver proxy engine)
      */
     @ApiOperation(value = "W3C WebDriver standard sessions operations", notes = "", response = String.class, tags = {
             "W3C WebDriver" })
@@ -212,8 +215,8 @@ public interface EusApi {
             @ApiResponse(code = 500, message = "Internal server error", response = String.class) })
     @RequestMapping(value = "/session/**", produces = {
             "application/json" }, method = { GET, POST, DELETE })
-    ResponseEntity<String> session(HttpEntity<String> httpEntity,
-            HttpServletRequest request);
+    Object session(HttpEntity<String> httpEntity, HttpServletRequest request,
+            HttpServletResponse response);
 
     /**
      * GET /status
@@ -254,6 +257,7 @@ public interface EusApi {
             "Remote control" })
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Successful operation", response = String.class),
+            @ApiResponse(code = 202, message = "Recording being transcoded", response = String.class),
             @ApiResponse(code = 400, message = "Invalid session identifier or hub container name", response = String.class),
             @ApiResponse(code = 500, message = "Internal server error", response = String.class) })
     @RequestMapping(value = "/session/{sessionId}/recording", produces = {
@@ -262,6 +266,25 @@ public interface EusApi {
             @ApiParam(value = "Session identifier (previously established)", required = true) @PathVariable("sessionId") String sessionId,
             HttpServletRequest request);
 
+    /**
+     * GET/HEAD {registry.contextPath}/{fileName}
+     *
+     * Get registry file (e.g. MP4 recording), supporting range and
+     * conditional requests
+     */
+    @ApiOperation(value = "Get registry file", notes = "", response = Void.class, tags = {
+            "Remote control" })
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Successful operation", response = Void.class),
+            @ApiResponse(code = 206, message = "Partial content", response = Void.class),
+            @ApiResponse(code = 404, message = "File not found", response = Void.class),
+            @ApiResponse(code = 416, message = "Range not satisfiable", response = Void.class) })
+    @RequestMapping(value = "${registry.contextPath}/{fileName:.+}", method = {
+            GET, HEAD })
+    ResponseEntity<String> registryFile(
+            @ApiParam(value = "File name", required = true) @PathVariable("fileName") String fileName,
+            HttpServletRequest request, HttpServletResponse response);
+
     /**
      * POST /session/{sessionId}/recording/{hubContainerName}/start
      *
@@ -24,6 +24,7 @@ import static org.springframework.http.HttpStatus.OK;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 
 import org.slf4j.Logger;
@@ -46,8 +47,10 @@ import io.elastest.eus.api.model.Latency;
 import io.elastest.eus.api.model.Quality;
 import io.elastest.eus.api.model.StatsValue;
 import io.elastest.eus.api.model.UserMedia;
+import io.elastest.eus.service.RecordingContentService;
 import io.elastest.eus.service.RecordingService;
 import io.elastest.eus.service.VncService;
+import io.elastest.eus.service.WebDriverProxyService;
 import io.elastest.eus.service.WebDriverService;
 import io.swagger.annotations.ApiParam;
 
@@ -66,13 +69,19 @@ public class EusController implements EusApi {
     private WebDriverService webDriverService;
     private VncService vncService;
     private RecordingService recordingService;
+    private WebDriverProxyService webDriverProxyService;
+    private RecordingContentService recordingContentService;
 
     @Autowired
     public EusController(WebDriverService webDriverService,
-            VncService vncService, RecordingService recordingService) {
+            VncService vncService, RecordingService recordingService,
+            WebDriverProxyService webDriverProxyService,
+            RecordingContentService recordingContentService) {
         this.webDriverService = webDriverService;
         this.vncService = vncService;
         this.recordingService = recordingService;
+        this.webDriverProxyService = webDriverProxyService;
+        this.recordingContentService = recordingContentService;
     }
 
     public ResponseEntity<Void> deleteSubscription(
@@ -179,17 +188,10 @@ public class EusController implements EusApi {
     }
 
     @Override
-    public ResponseEntity<String> session(HttpEntity<String> httpEntity,
-            HttpServletRequest request) {
-        ResponseEntity<String> response;
-        try {
-            response = webDriverService.session(httpEntity, request);
-        } catch (Exception e) {
-            log.error("Exception handling session {}", request, e);
-            response = webDriverService
-                    .getErrorResponse("Exception handling session", e);
-        }
-        return response;
+    public Object session(HttpEntity<String> httpEntity,
+            HttpServletRequest request, HttpServletResponse servletResponse) {
+        return webDriverProxyService.session(httpEntity, request,
+                servletResponse);
     }
 
     @Override
@@ -237,6 +239,26 @@ public class EusController implements EusApi {
         return response;
     }
 
+    @Override
+    public ResponseEntity<String> registryFile(
+            @ApiParam(value = "File name", required = true) @PathVariable("fileName") String fileName,
+            HttpServletRequest request, HttpServletResponse response) {
+        try {
+            // Null since the response is written to the servlet response
+            recordingContentService.serveFile(fileName, request, response);
+            return null;
+        } catch (Exception e) {
+            if (response.isCommitted()) {
+                // E.g. client closing the connection after seeking
+                log.debug("Exception serving registry file {}: {}", fileName,
+                        e.getMessage());
+                return null;
+            }
+            return webDriverService.getErrorResponse(
+                    "Exception serving registry file " + fileName, e);
+        }
+    }
+
     @Override
     public ResponseEntity<String> startRecording(
             @ApiParam(value = "Session identifier (previously established)", required = true) @PathVariable("sessionId") String sessionId,
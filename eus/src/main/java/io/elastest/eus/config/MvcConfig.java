@@ -38,6 +38,8 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Override
     public void addResourceHandlers(final ResourceHandlerRegistry registry) {
+        // Files in the registry folder are served by the registryFile
+        // operation of EusApi, and this handler serves nested paths
         registry.addResourceHandler(registryContextPath + "/**")
                 .addResourceLocations("file:" + registryFolder);
     }
@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.docker;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.slf4j.Logger;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.core.command.EventsResultCallback;
+
+/**
+ * Container readiness based on the Docker events stream. A single
+ * subscription to the Docker events API completes the future of each watched
+ * container when it starts (or it becomes healthy), and fails it when it dies.
+ *
+ * @since 0.9.1
+ */
+public class ContainerReadinessMonitor implements Closeable {
+
+    static final String START_EVENT = "start";
+    static final String DIE_EVENT = "die";
+    static final String HEALTHY_EVENT = "health_status: healthy";
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    private final DockerClient dockerClient;
+    private final long reconnectMs;
+    private final Map<String, CompletableFuture<Void>> watchedContainers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reconnectExecutor = newSingleThreadScheduledExecutor();
+
+    private volatile EventsResultCallback eventsCallback;
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+
+    public ContainerReadinessMonitor(DockerClient dockerClient,
+            long reconnectMs) {
+        this.dockerClient = dockerClient;
+        this.reconnectMs = reconnectMs;
+    }
+
+    public void start() {
+        if (closed) {
+            return;
+        }
+        try {
+            eventsCallback = dockerClient.eventsCmd()
+                    .withEventFilter(START_EVENT, DIE_EVENT, HEALTHY_EVENT)
+                    .exec(new ReadinessEventsCallback());
+            connected = true;
+            log.debug("Subscribed to Docker events stream");
+
+        } catch (Exception e) {
+            log.warn("Exception subscribing to Docker events ({}), "
+                    + "retrying in {} ms", e.getMessage(), reconnectMs);
+            reconnect();
+        }
+    }
+
+    /**
+     * Register a container to be watched. It must be called before starting
+     * the container, so that its start event is not missed.
+     */
+    public CompletableFuture<Void> watch(String containerName) {
+        return watchedContainers.computeIfAbsent(containerName,
+                name -> new CompletableFuture<>());
+    }
+
+    public void unwatch(String containerName) {
+        watchedContainers.remove(containerName);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connected = false;
+        reconnectExecutor.shutdownNow();
+        closeCallback();
+    }
+
+    private void reconnect() {
+        connected = false;
+        closeCallback();
+        if (!closed) {
+            reconnectExecutor.schedule(this::start, reconnectMs, MILLISECONDS);
+        }
+    }
+
+    private void closeCallback() {
+        EventsResultCallback callback = eventsCallback;
+        eventsCallback = null;
+        if (callback != null) {
+            try {
+                callback.close();
+            } catch (Exception e) {
+                log.trace("Exception closing Docker events callback {}",
+                        e.getMessage());
+            }
+        }
+    }
+
+    private void handleEvent(Event event) {
+        if (event.getActor() == null
+                || event.getActor().getAttributes() == null) {
+            return;
+        }
+        String containerName = event.getActor().getAttributes().get("name");
+        CompletableFuture<Void> future = containerName != null
+                ? watchedContainers.get(containerName)
+                : null;
+        if (future == null) {
+            return;
+        }
+
+        String status = event.getStatus();
+        log.trace("Docker event {} in container {}", status, containerName);
+        if (START_EVENT.equals(status) || HEALTHY_EVENT.equals(status)) {
+            future.complete(null);
+        } else if (DIE_EVENT.equals(status)) {
+            future.completeExceptionally(new DockerException(
+                    "Container " + containerName + " died"));
+        }
+    }
+
+    private class ReadinessEventsCallback extends EventsResultCallback {
+
+        @Override
+        public void onNext(Event event) {
+            handleEvent(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (!closed) {
+                log.warn("Docker events stream error ({}), reconnecting",
+                        throwable.getMessage());
+                reconnect();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (!closed) {
+                log.debug("Docker events stream completed, reconnecting");
+                reconnect();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.docker;
+
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Asynchronous HTTP readiness probe. Each URL is checked with exponential
+ * backoff (instead of fixed sleeps) until it responds or the timeout expires.
+ * Requests are asynchronous (OkHttp dispatcher), and a single thread only
+ * schedules the retries, so concurrent starts do not wait for each other.
+ *
+ * @since 0.9.1
+ */
+public class UrlReadinessProbe implements Closeable {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    private final ScheduledExecutorService scheduler = newSingleThreadScheduledExecutor();
+    private final OkHttpClient httpClient;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    public UrlReadinessProbe(int maxConcurrentRequests, long initialBackoffMs,
+            long maxBackoffMs, int attemptTimeoutMs) {
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+
+        // All the browsers are usually in the same host
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConcurrentRequests);
+        dispatcher.setMaxRequestsPerHost(maxConcurrentRequests);
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectTimeout(attemptTimeoutMs, MILLISECONDS)
+                .readTimeout(attemptTimeoutMs, MILLISECONDS)
+                .retryOnConnectionFailure(false);
+        trustAllCertificates(builder);
+        this.httpClient = builder.build();
+    }
+
+    public CompletableFuture<Void> waitReachable(String url, long timeoutMs) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        long endTimeMillis = currentTimeMillis() + timeoutMs;
+        probe(url, future, endTimeMillis, initialBackoffMs);
+        return future;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        httpClient.dispatcher().cancelAll();
+        httpClient.dispatcher().executorService().shutdown();
+    }
+
+    private void probe(String url, CompletableFuture<Void> future,
+            long endTimeMillis, long backoffMs) {
+        if (future.isDone()) {
+            return;
+        }
+        try {
+            Request request = new Request.Builder().url(url).get().build();
+            httpClient.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onResponse(Call call, Response response) {
+                    int responseCode = response.code();
+                    response.close();
+                    if (responseCode == HTTP_OK
+                            || responseCode == HTTP_NOT_FOUND) {
+                        log.debug("URL {} already reachable", url);
+                        future.complete(null);
+                        return;
+                    }
+                    log.trace(
+                            "URL {} not reachable (response {}). Trying again in {} ms",
+                            url, responseCode, backoffMs);
+                    retry(url, future, endTimeMillis, backoffMs);
+                }
+
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    log.trace("Error {} waiting URL {}, trying again in {} ms",
+                            e.getMessage(), url, backoffMs);
+                    retry(url, future, endTimeMillis, backoffMs);
+                }
+            });
+        } catch (Exception e) {
+            // E.g. malformed URL or probe closed
+            future.completeExceptionally(new DockerException(
+                    "Exception waiting URL " + url + ": " + e.getMessage(),
+                    e));
+        }
+    }
+
+    private void retry(String url, CompletableFuture<Void> future,
+            long endTimeMillis, long backoffMs) {
+        long remainingMs = endTimeMillis - currentTimeMillis();
+        if (remainingMs <= 0) {
+            future.completeExceptionally(
+                    new DockerException("URL " + url + " not reachable"));
+            return;
+        }
+        long nextBackoffMs = min(backoffMs * 2, maxBackoffMs);
+        try {
+            scheduler.schedule(
+                    () -> probe(url, future, endTimeMillis, nextBackoffMs),
+                    min(backoffMs, remainingMs), MILLISECONDS);
+        } catch (Exception e) {
+            future.completeExceptionally(new DockerException(
+                    "Exception waiting URL " + url + ": " + e.getMessage(),
+                    e));
+        }
+    }
+
+    private void trustAllCertificates(OkHttpClient.Builder builder) {
+        // Browser containers use self-signed certificates
+        X509TrustManager trustManager = new X509TrustManager() {
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[] {};
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] certs,
+                    String authType) {
+                // No actions required
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] certs,
+                    String authType) {
+                // No actions required
+            }
+        };
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] { trustManager },
+                    new SecureRandom());
+            builder.sslSocketFactory(sslContext.getSocketFactory(),
+                    trustManager).hostnameVerifier((hostname, session) -> true);
+        } catch (GeneralSecurityException e) {
+            log.warn("Exception configuring SSL of readiness probe: {}",
+                    e.getMessage());
+        }
+    }
+
+}
@@ -23,6 +23,7 @@ import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.POST;
 import retrofit2.http.Path;
+import retrofit2.http.Streaming;
 
 /**
  * Alluxio REST service (provided by EDM) API description.
@@ -35,6 +36,7 @@ public interface EdmAluxioApi {
     @POST("/api/v1/paths//{file}/open-file")
     Call<ResponseBody> openFile(@Path("file") String file);
 
+    @Streaming
     @POST("/api/v1/streams/{streamId}/read")
     Call<ResponseBody> readStream(@Path("streamId") String streamId);
 
@@ -51,6 +53,9 @@ public interface EdmAluxioApi {
     @POST("/api/v1/paths//{file}/delete")
     Call<ResponseBody> deleteFile(@Path("file") String file);
 
+    @POST("/api/v1/paths//{file}/get-status")
+    Call<EdmAluxioFile> getStatus(@Path("file") String file);
+
     @POST("/api/v1/paths//{folder}/list-status")
     Call<EdmAluxioFile[]> listFiles(@Path("folder") String folder);
 
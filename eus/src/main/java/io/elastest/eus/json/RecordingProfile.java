@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import static java.util.Arrays.asList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * Encoder settings of a recording (requested with the recordingProfile
+ * capability, or given by the global policy). It is stored in the recording
+ * metadata.
+ *
+ * @since 0.9.1
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RecordingProfile {
+
+    int fps;
+    int crf;
+    double scale;
+    int keyframeInterval;
+    boolean lossless;
+    boolean adapted;
+
+    public RecordingProfile() {
+        // Empty default construct (needed by Jackson)
+    }
+
+    public RecordingProfile(int fps, int crf, double scale,
+            int keyframeInterval, boolean lossless) {
+        this.fps = fps;
+        this.crf = crf;
+        this.scale = scale;
+        this.keyframeInterval = keyframeInterval;
+        this.lossless = lossless;
+    }
+
+    public RecordingProfile(RecordingProfile profile) {
+        this(profile.fps, profile.crf, profile.scale,
+                profile.keyframeInterval, profile.lossless);
+        this.adapted = profile.adapted;
+    }
+
+    /**
+     * Arguments of the start recording script (keyframe interval 0 means
+     * ffmpeg default).
+     */
+    public List<String> toScriptArguments() {
+        List<String> arguments = new ArrayList<>(asList("-f",
+                String.valueOf(fps), "-q", String.valueOf(crf), "-z",
+                String.valueOf(scale), "-g", String.valueOf(keyframeInterval)));
+        if (lossless) {
+            arguments.add("-l");
+        }
+        return arguments;
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    public void setFps(int fps) {
+        this.fps = fps;
+    }
+
+    public int getCrf() {
+        return crf;
+    }
+
+    public void setCrf(int crf) {
+        this.crf = crf;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public void setKeyframeInterval(int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    public void setLossless(boolean lossless) {
+        this.lossless = lossless;
+    }
+
+    // True when the fps has been lowered due to host CPU saturation
+    public boolean isAdapted() {
+        return adapted;
+    }
+
+    public void setAdapted(boolean adapted) {
+        this.adapted = adapted;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingProfile [getFps()=" + getFps() + ", getCrf()="
+                + getCrf() + ", getScale()=" + getScale()
+                + ", getKeyframeInterval()=" + getKeyframeInterval()
+                + ", isLossless()=" + isLossless() + ", isAdapted()="
+                + isAdapted() + "]";
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility class for serialize JSON messages (progress report of the drain of
+ * sessions on shutdown).
+ *
+ * @since 0.9.1
+ */
+public class SessionDrainReport {
+
+    volatile String phase = "recordings";
+    int sessions;
+    int recordings;
+    AtomicInteger finalizedRecordings = new AtomicInteger();
+    List<String> failedRecordings = new CopyOnWriteArrayList<>();
+    AtomicInteger removedSessions = new AtomicInteger();
+    List<String> failedSessions = new CopyOnWriteArrayList<>();
+    volatile long elapsedMs;
+
+    public SessionDrainReport(int sessions, int recordings) {
+        this.sessions = sessions;
+        this.recordings = recordings;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public int getRecordings() {
+        return recordings;
+    }
+
+    public int getFinalizedRecordings() {
+        return finalizedRecordings.get();
+    }
+
+    public List<String> getFailedRecordings() {
+        return failedRecordings;
+    }
+
+    public int getRemovedSessions() {
+        return removedSessions.get();
+    }
+
+    public List<String> getFailedSessions() {
+        return failedSessions;
+    }
+
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    public void setElapsedMs(long elapsedMs) {
+        this.elapsedMs = elapsedMs;
+    }
+
+    public void recordingFinalized(boolean success, String sessionId) {
+        if (success) {
+            finalizedRecordings.incrementAndGet();
+        } else {
+            failedRecordings.add(sessionId);
+        }
+    }
+
+    public void sessionRemoved(boolean success, String sessionId) {
+        if (success) {
+            removedSessions.incrementAndGet();
+        } else {
+            failedSessions.add(sessionId);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SessionDrainReport [getPhase()=" + getPhase()
+                + ", getSessions()=" + getSessions() + ", getRecordings()="
+                + getRecordings() + ", getFinalizedRecordings()="
+                + getFinalizedRecordings() + ", getFailedRecordings()="
+                + getFailedRecordings() + ", getRemovedSessions()="
+                + getRemovedSessions() + ", getFailedSessions()="
+                + getFailedSessions() + ", getElapsedMs()=" + getElapsedMs()
+                + "]";
+    }
+
+}
@@ -53,6 +53,14 @@ public class WebDriverLog {
         String level;
         String message;
 
+        public Value() {
+        }
+
+        public Value(String level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+
         public String getLevel() {
             return level;
         }
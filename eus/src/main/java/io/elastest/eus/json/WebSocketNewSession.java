@@ -24,7 +24,7 @@ import io.elastest.eus.session.SessionInfo;
  * @author Boni Garcia (boni.garcia@urjc.es)
  * @since 0.1.1
  */
-public class WebSocketNewSession {
+public class WebSocketNewSession extends WebSocketSequencedMessage {
 
     WebSocketSessionInfoEntry newSession;
 
@@ -0,0 +1,63 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import java.util.List;
+
+/**
+ * Utility class for serialize JSON messages (page of sessions or recordings).
+ * The sequence number is the last event before the page was taken, and the
+ * next cursor is null in the last page.
+ *
+ * @since 0.9.1
+ */
+public class WebSocketPage {
+
+    long seq;
+    List<WebSocketSessionInfoEntry> items;
+    String nextCursor;
+
+    public WebSocketPage() {
+        // Empty default construct (needed by Jackson)
+    }
+
+    public WebSocketPage(long seq, List<WebSocketSessionInfoEntry> items,
+            String nextCursor) {
+        this.seq = seq;
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public List<WebSocketSessionInfoEntry> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketPage [getSeq()=" + getSeq() + ", getItems()="
+                + getItems() + ", getNextCursor()=" + getNextCursor() + "]";
+    }
+
+}
@@ -16,6 +16,10 @@
  */
 package io.elastest.eus.json;
 
+import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import io.elastest.eus.session.SessionInfo;
 
 /**
@@ -32,6 +36,8 @@ public class WebSocketSessionInfoEntry {
     String version;
     String creationTime;
     String hubContainerName;
+    @JsonInclude(NON_NULL)
+    RecordingProfile recordingProfile;
 
     public WebSocketSessionInfoEntry() {
         // Empty default construct (needed by Jackson)
@@ -44,6 +50,7 @@ public class WebSocketSessionInfoEntry {
         this.version = sessionInfo.getVersion();
         this.creationTime = sessionInfo.getCreationTime();
         this.hubContainerName = sessionInfo.getHubContainerName();
+        this.recordingProfile = sessionInfo.getRecordingProfile();
     }
 
     public String getId() {
@@ -70,13 +77,18 @@ public class WebSocketSessionInfoEntry {
         return hubContainerName;
     }
 
+    public RecordingProfile getRecordingProfile() {
+        return recordingProfile;
+    }
+
     @Override
     public String toString() {
         return "WebSocketSessionInfoEntry [getId()=" + getId() + ", getUrl()="
                 + getUrl() + ", getBrowser()=" + getBrowser()
                 + ", getVersion()=" + getVersion() + ", getCreationTime()="
                 + getCreationTime() + ", getHubContainerName()="
-                + getHubContainerName() + "]";
+                + getHubContainerName() + ", getRecordingProfile()="
+                + getRecordingProfile() + "]";
     }
 
 }
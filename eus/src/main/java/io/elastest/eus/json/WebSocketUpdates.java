@@ -0,0 +1,64 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.json;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+
+/**
+ * Utility class for serialize JSON messages (event updates since a sequence
+ * number). If the requested events are no longer available, resync is true
+ * and the client should request sessions and recordings again.
+ *
+ * @since 0.9.1
+ */
+public class WebSocketUpdates {
+
+    long seq;
+    boolean resync;
+    String messages;
+
+    public WebSocketUpdates() {
+        // Empty default construct (needed by Jackson)
+    }
+
+    public WebSocketUpdates(long seq, boolean resync, String messages) {
+        this.seq = seq;
+        this.resync = resync;
+        this.messages = messages;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public boolean isResync() {
+        return resync;
+    }
+
+    // JSON array of event messages
+    @JsonRawValue
+    public String getMessages() {
+        return messages;
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketUpdates [getSeq()=" + getSeq() + ", isResync()="
+                + isResync() + ", getMessages()=" + getMessages() + "]";
+    }
+
+}
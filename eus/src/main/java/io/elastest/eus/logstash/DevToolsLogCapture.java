@@ -0,0 +1,224 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.logstash;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Collections.singletonList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.json.WebDriverLog;
+
+/**
+ * Push-based capture of browser console logs using the DevTools protocol
+ * (Runtime.consoleAPICalled and Log.entryAdded events) through the DevTools
+ * WebSocket of the browser page, which is found in the list of targets of the
+ * DevTools HTTP endpoint (/json). Log entries are passed to a consumer, using
+ * the levels of WebDriver logs. If the connection fails or is closed by the
+ * browser, the failure callback is called (once), e.g. to fall back to
+ * polling.
+ *
+ * @since 0.9.1
+ */
+public class DevToolsLogCapture extends TextWebSocketHandler {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    static final String RUNTIME_ENABLE = "{\"id\":1,\"method\":\"Runtime.enable\"}";
+    static final String LOG_ENABLE = "{\"id\":2,\"method\":\"Log.enable\"}";
+
+    private final String devToolsUrl;
+    private final String sessionId;
+    private final Consumer<List<WebDriverLog.Value>> logConsumer;
+    private final Consumer<DevToolsLogCapture> onFailure;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private volatile WebSocketSession webSocketSession;
+
+    public DevToolsLogCapture(String devToolsUrl, String sessionId,
+            Consumer<List<WebDriverLog.Value>> logConsumer,
+            Consumer<DevToolsLogCapture> onFailure) {
+        this.devToolsUrl = devToolsUrl;
+        this.sessionId = sessionId;
+        this.logConsumer = logConsumer;
+        this.onFailure = onFailure;
+    }
+
+    public void start(RestTemplate restTemplate,
+            WebSocketClient webSocketClient) {
+        String webSocketUrl;
+        try {
+            webSocketUrl = getWebSocketDebuggerUrl(restTemplate);
+        } catch (Exception e) {
+            fail("Exception finding DevTools page", e);
+            return;
+        }
+        log.info("Capturing browser log of session {} using DevTools ({})",
+                sessionId, webSocketUrl);
+        webSocketClient.doHandshake(this, webSocketUrl).addCallback(
+                session -> {
+                    webSocketSession = session;
+                    if (finished.get()) {
+                        closeSession();
+                    }
+                }, e -> fail("Exception connecting to DevTools", e));
+    }
+
+    public void stop() {
+        if (finished.compareAndSet(false, true)) {
+            log.trace("Stopping DevTools log capture of session {}",
+                    sessionId);
+            closeSession();
+        }
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session)
+            throws IOException {
+        session.sendMessage(new TextMessage(RUNTIME_ENABLE));
+        session.sendMessage(new TextMessage(LOG_ENABLE));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session,
+            TextMessage message) throws IOException {
+        JsonNode event = OBJECT_MAPPER.readTree(message.getPayload());
+        String method = event.path("method").asText();
+        JsonNode params = event.path("params");
+        WebDriverLog.Value value = null;
+
+        if ("Runtime.consoleAPICalled".equals(method)) {
+            StringBuilder text = new StringBuilder("console-api");
+            for (JsonNode arg : params.path("args")) {
+                text.append(' ').append(getArgText(arg));
+            }
+            value = new WebDriverLog.Value(
+                    getLevel(params.path("type").asText()), text.toString());
+
+        } else if ("Log.entryAdded".equals(method)) {
+            JsonNode entry = params.path("entry");
+            String source = entry.path("source").asText();
+            // Console messages are already received from the Runtime domain
+            if (!"console-api".equals(source)) {
+                value = new WebDriverLog.Value(
+                        getLevel(entry.path("level").asText()),
+                        source + " " + entry.path("text").asText());
+            }
+        }
+
+        if (value != null) {
+            logConsumer.accept(singletonList(value));
+        }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session,
+            Throwable exception) {
+        fail("DevTools transport error", exception);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session,
+            CloseStatus status) {
+        fail("DevTools connection closed (" + status + ")", null);
+    }
+
+    /**
+     * WebSocket URL of the first page of the browser. The path is taken from
+     * the target list, since the browser reports its own (not forwarded) host
+     * and port.
+     */
+    public String getWebSocketDebuggerUrl(RestTemplate restTemplate)
+            throws IOException {
+        JsonNode targets = OBJECT_MAPPER.readTree(
+                restTemplate.getForObject(devToolsUrl + "/json", String.class));
+        for (JsonNode target : targets) {
+            String webSocketDebuggerUrl = target.path("webSocketDebuggerUrl")
+                    .asText();
+            if ("page".equals(target.path("type").asText())
+                    && !webSocketDebuggerUrl.isEmpty()) {
+                return "ws://" + URI.create(devToolsUrl).getAuthority()
+                        + URI.create(webSocketDebuggerUrl).getPath();
+            }
+        }
+        throw new IOException("No page found in DevTools targets " + targets);
+    }
+
+    private String getArgText(JsonNode arg) {
+        if (arg.has("value")) {
+            JsonNode value = arg.get("value");
+            return value.isTextual() ? value.asText() : value.toString();
+        }
+        if (arg.has("unserializableValue")) {
+            return arg.get("unserializableValue").asText();
+        }
+        return arg.path("description").asText(arg.path("type").asText());
+    }
+
+    private String getLevel(String devToolsLevel) {
+        switch (devToolsLevel) {
+        case "error":
+        case "assert":
+            return "SEVERE";
+        case "warning":
+            return "WARNING";
+        case "debug":
+        case "verbose":
+            return "DEBUG";
+        default:
+            return "INFO";
+        }
+    }
+
+    private void fail(String reason, Throwable exception) {
+        if (finished.compareAndSet(false, true)) {
+            log.debug("{} in session {}: {}", reason, sessionId,
+                    exception != null ? exception.getMessage() : "");
+            closeSession();
+            onFailure.accept(this);
+        }
+    }
+
+    private void closeSession() {
+        WebSocketSession session = webSocketSession;
+        if (session != null && session.isOpen()) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                log.trace("Exception closing DevTools session {}",
+                        e.getMessage());
+            }
+        }
+    }
+
+}
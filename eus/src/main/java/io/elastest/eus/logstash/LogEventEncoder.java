@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.logstash;
+
+import static java.lang.Math.max;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.elastest.eus.json.WebDriverLog;
+
+/**
+ * Streaming JSON encoder of log events for Logstash, i.e. the envelope
+ * (component, exec, stream) and the messages, written with a single Jackson
+ * JsonGenerator (which escapes quotes and control characters) into a buffer,
+ * both reused between events. Instances are not thread-safe.
+ *
+ * @since 0.9.1
+ */
+public class LogEventEncoder {
+
+    static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final CharArrayWriter writer = new CharArrayWriter(1024);
+    private final StringBuilder messageBuilder = new StringBuilder(256);
+    private char[] messageChars = new char[256];
+    private JsonGenerator generator = newGenerator();
+
+    /**
+     * Encode an event with a message for each log entry, formatted as
+     * "[level] message".
+     */
+    public String encode(String component, String exec, String stream,
+            List<WebDriverLog.Value> values) throws IOException {
+        try {
+            startEvent(component, exec, stream);
+            generator.writeStartArray();
+            for (WebDriverLog.Value value : values) {
+                messageBuilder.setLength(0);
+                messageBuilder.append('[').append(value.getLevel())
+                        .append("] ").append(value.getMessage());
+                int length = messageBuilder.length();
+                if (messageChars.length < length) {
+                    messageChars = new char[max(length,
+                            messageChars.length * 2)];
+                }
+                messageBuilder.getChars(0, length, messageChars, 0);
+                generator.writeString(messageChars, 0, length);
+            }
+            generator.writeEndArray();
+            return endEvent();
+        } catch (IOException e) {
+            generator = newGenerator();
+            throw e;
+        }
+    }
+
+    /**
+     * Encode an event with messages already serialized as a JSON array.
+     */
+    public String encode(String component, String exec, String stream,
+            String jsonMessages) throws IOException {
+        try {
+            startEvent(component, exec, stream);
+            generator.writeRawValue(jsonMessages);
+            return endEvent();
+        } catch (IOException e) {
+            generator = newGenerator();
+            throw e;
+        }
+    }
+
+    private void startEvent(String component, String exec, String stream)
+            throws IOException {
+        writer.reset();
+        generator.writeStartObject();
+        generator.writeStringField("component", component);
+        generator.writeStringField("exec", exec);
+        generator.writeStringField("stream", stream);
+        generator.writeFieldName("messages");
+    }
+
+    private String endEvent() throws IOException {
+        generator.writeEndObject();
+        generator.flush();
+        return writer.toString();
+    }
+
+    private JsonGenerator newGenerator() {
+        try {
+            // Each event is a root value, written without separator
+            JsonGenerator newGenerator = JSON_FACTORY.createGenerator(writer);
+            newGenerator.setRootValueSeparator(null);
+            return newGenerator;
+        } catch (IOException e) {
+            // Not expected, since the writer is in memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.logstash;
+
+import static java.lang.Math.max;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+
+/**
+ * Append-only spool of log events, stored in memory-mapped segment files of
+ * fixed size. Each segment starts with the committed read position, followed
+ * by records (length and UTF-8 bytes). Events are read in order with
+ * {@link #peek(int, int)} and removed with {@link #commit()} once shipped, so
+ * pending events are replayed after a restart. When the disk budget is
+ * exhausted, either the oldest segment or the new event is dropped.
+ *
+ * @since 0.9.1
+ */
+public class LogSpool implements Closeable {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String SEGMENT_PREFIX = "spool-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final int HEADER_BYTES = Integer.BYTES;
+
+    private final Path folder;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final boolean dropOldest;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentIndex = 0;
+    private long pendingBytes = 0;
+
+    // Segment and position of the last peek, committed when shipped
+    private Segment peekSegment;
+    private int peekPosition;
+
+    public LogSpool(Path folder, int segmentBytes, long maxBytes,
+            boolean dropOldest) {
+        this.folder = folder;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) max(1, maxBytes / segmentBytes);
+        this.dropOldest = dropOldest;
+    }
+
+    /**
+     * Open the spool, recovering the pending events of existing segments.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(folder);
+        List<Path> segmentFiles = new ArrayList<>();
+        try (Stream<Path> files = Files.list(folder)) {
+            files.filter(this::isSegmentFile).forEach(segmentFiles::add);
+        }
+        segmentFiles.sort((path1, path2) -> Long.compare(segmentIndex(path1),
+                segmentIndex(path2)));
+
+        for (Path path : segmentFiles) {
+            Segment segment = new Segment(path, segmentIndex(path));
+            if (segment.isEmpty()) {
+                segment.delete();
+                continue;
+            }
+            segments.addLast(segment);
+            pendingBytes += segment.writePosition - segment.readPosition;
+            nextSegmentIndex = segment.index + 1;
+        }
+        if (pendingBytes > 0) {
+            log.info("Recovered {} bytes of pending logs from spool {}",
+                    pendingBytes, folder);
+        }
+    }
+
+    /**
+     * Append an event at the end of the spool.
+     *
+     * @return number of events dropped to respect the disk budget (the new
+     *         event itself with drop-newest policy, or the events of the
+     *         oldest segments with drop-oldest policy)
+     */
+    public synchronized int append(String event) throws IOException {
+        byte[] bytes = event.getBytes(UTF_8);
+        int recordBytes = Integer.BYTES + bytes.length;
+        if (HEADER_BYTES + recordBytes > segmentBytes) {
+            log.warn("Log event of {} bytes does not fit in spool segment",
+                    bytes.length);
+            return 1;
+        }
+
+        int dropped = 0;
+        Segment tail = segments.peekLast();
+        if (tail != null && tail.isEmpty() && tail.remaining() < recordBytes) {
+            // Drained segment without room (it would count in the budget)
+            segments.removeLast().delete();
+            tail = null;
+        }
+        if (tail == null || tail.remaining() < recordBytes) {
+            while (segments.size() >= maxSegments) {
+                if (!dropOldest) {
+                    return 1;
+                }
+                dropped += discardHead();
+            }
+            tail = new Segment(
+                    folder.resolve(SEGMENT_PREFIX + nextSegmentIndex
+                            + SEGMENT_SUFFIX),
+                    nextSegmentIndex++);
+            segments.addLast(tail);
+        }
+        tail.append(bytes);
+        pendingBytes += recordBytes;
+        return dropped;
+    }
+
+    /**
+     * Read the oldest pending events (without removing them), up to a number
+     * of events and bytes.
+     */
+    public synchronized List<String> peek(int maxEvents, int maxBytes) {
+        List<String> events = new ArrayList<>();
+        // A head drained while it was the only segment is kept until another
+        // segment follows it
+        while (segments.size() > 1 && segments.peekFirst().isEmpty()) {
+            segments.removeFirst().delete();
+        }
+        peekSegment = segments.peekFirst();
+        if (peekSegment == null) {
+            return events;
+        }
+        peekPosition = peekSegment.readPosition;
+        int bytes = 0;
+        while (peekPosition < peekSegment.writePosition
+                && events.size() < maxEvents && bytes < maxBytes) {
+            int length = peekSegment.buffer.getInt(peekPosition);
+            byte[] event = new byte[length];
+            peekSegment.buffer.position(peekPosition + Integer.BYTES);
+            peekSegment.buffer.get(event);
+            events.add(new String(event, UTF_8));
+            bytes += length;
+            peekPosition += Integer.BYTES + length;
+        }
+        return events;
+    }
+
+    /**
+     * Remove the events returned by the last {@link #peek(int, int)}.
+     */
+    public synchronized void commit() {
+        Segment head = segments.peekFirst();
+        if (peekSegment == null || head != peekSegment) {
+            // Segment discarded in the meantime (drop-oldest policy)
+            return;
+        }
+        pendingBytes -= peekPosition - head.readPosition;
+        head.setReadPosition(peekPosition);
+        if (head.isEmpty() && segments.size() > 1) {
+            segments.removeFirst().delete();
+        }
+        peekSegment = null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.forEach(segment -> segment.buffer.force());
+        segments.clear();
+    }
+
+    private int discardHead() {
+        Segment head = segments.removeFirst();
+        int events = head.countPending();
+        pendingBytes -= head.writePosition - head.readPosition;
+        head.delete();
+        log.warn("Log spool is full, dropping {} events of {}", events,
+                head.path);
+        return events;
+    }
+
+    private boolean isSegmentFile(Path path) {
+        String fileName = path.getFileName().toString();
+        return fileName.startsWith(SEGMENT_PREFIX)
+                && fileName.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private long segmentIndex(Path path) {
+        String fileName = path.getFileName().toString();
+        try {
+            return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(),
+                    fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private class Segment {
+        final Path path;
+        final long index;
+        final MappedByteBuffer buffer;
+        int readPosition;
+        int writePosition;
+
+        Segment(Path path, long index) throws IOException {
+            this.path = path;
+            this.index = index;
+            try (FileChannel channel = FileChannel.open(path, CREATE, READ,
+                    WRITE)) {
+                // The mapping remains valid after closing the channel
+                buffer = channel.map(READ_WRITE, 0, segmentBytes);
+            }
+
+            readPosition = buffer.getInt(0);
+            if (readPosition < HEADER_BYTES || readPosition > segmentBytes) {
+                setReadPosition(HEADER_BYTES);
+            }
+
+            // Records are written before their length, so a record
+            // interrupted by a crash has zero length
+            writePosition = readPosition;
+            while (remaining() >= Integer.BYTES) {
+                int length = buffer.getInt(writePosition);
+                if (length <= 0 || length > segmentBytes - writePosition
+                        - Integer.BYTES) {
+                    break;
+                }
+                writePosition += Integer.BYTES + length;
+            }
+        }
+
+        void append(byte[] bytes) {
+            buffer.position(writePosition + Integer.BYTES);
+            buffer.put(bytes);
+            buffer.putInt(writePosition, bytes.length);
+            writePosition += Integer.BYTES + bytes.length;
+        }
+
+        void setReadPosition(int position) {
+            readPosition = position;
+            buffer.putInt(0, position);
+        }
+
+        int remaining() {
+            return segmentBytes - writePosition;
+        }
+
+        boolean isEmpty() {
+            return readPosition == writePosition;
+        }
+
+        int countPending() {
+            int events = 0;
+            int position = readPosition;
+            while (position < writePosition) {
+                position += Integer.BYTES + buffer.getInt(position);
+                events++;
+            }
+            return events;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Exception deleting log spool segment {}: {}", path,
+                        e.getMessage());
+            }
+        }
+    }
+
+}
@@ -17,11 +17,19 @@
 package io.elastest.eus.service;
 
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.Arrays.stream;
 import static java.util.stream.Collectors.toList;
+import static org.apache.commons.io.IOUtils.copyLarge;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -38,6 +46,8 @@ import io.elastest.eus.json.EdmAluxioFile;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
 import retrofit2.Call;
 import retrofit2.Response;
 import retrofit2.Retrofit;
@@ -55,12 +65,18 @@ public class AlluxioService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    static final MediaType OCTET_STREAM = MediaType
+            .parse("application/octet-stream");
+
     @Value("${edm.alluxio.url}")
     private String edmAlluxioUrl;
 
     @Value("${registry.metadata.extension}")
     private String metadataExtension;
 
+    @Value("${edm.alluxio.buffer.size}")
+    private int bufferSize;
+
     private EdmAluxioApi alluxio;
 
     @PostConstruct
@@ -91,41 +107,128 @@ public class AlluxioService {
     }
 
     public byte[] getFile(String file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        getFile(file, content);
+        return content.toByteArray();
+    }
+
+    /**
+     * Download a file to a local path. The content is streamed in chunks to
+     * a temporal file, which is renamed to the target path when complete.
+     */
+    public long getFile(String file, Path targetFile) throws IOException {
+        Path parent = targetFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmpFile = Files.createTempFile(parent,
+                targetFile.getFileName().toString(), ".tmp");
+        try {
+            long size;
+            try (OutputStream outputStream = Files.newOutputStream(tmpFile)) {
+                size = getFile(file, outputStream);
+            }
+            Files.move(tmpFile, targetFile, REPLACE_EXISTING, ATOMIC_MOVE);
+            return size;
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Download a file, copying its content in chunks to the output stream
+     * (which is not closed).
+     *
+     * @return number of bytes copied
+     */
+    public long getFile(String file, OutputStream outputStream)
+            throws IOException {
+        return getFile(file, 0, -1, outputStream);
+    }
+
+    /**
+     * Download a range of a file (from offset, length bytes or until the end
+     * if negative). Since the Alluxio stream API has no seek operation, the
+     * bytes before offset are skipped on the fly (without buffering them).
+     *
+     * @return number of bytes copied
+     */
+    public long getFile(String file, long offset, long length,
+            OutputStream outputStream) throws IOException {
         Call<ResponseBody> openFile = alluxio.openFile(file);
         Response<ResponseBody> execute = openFile.execute();
         String streamId = execute.body().string();
         log.debug("Stream id {}", streamId);
 
-        Call<ResponseBody> readStream = alluxio.readStream(streamId);
-        byte[] content = readStream.execute().body().bytes();
-        log.debug("Received {} bytes", content.length);
-
-        alluxio.closeStream(streamId).execute();
-        log.debug("Stream {} closed", streamId);
+        try (ResponseBody body = alluxio.readStream(streamId).execute()
+                .body()) {
+            if (body == null) {
+                throw new IOException("Exception reading " + file
+                        + " from Alluxio (stream " + streamId + ")");
+            }
+            long size = copyLarge(body.byteStream(), outputStream, offset,
+                    length, new byte[bufferSize]);
+            log.debug("Received {} bytes", size);
+            return size;
 
-        return content;
+        } finally {
+            alluxio.closeStream(streamId).execute();
+            log.debug("Stream {} closed", streamId);
+        }
     }
 
     public boolean writeFile(String fileName, byte[] fileContent)
             throws IOException {
         log.debug("Writing {} bytes to Alluxio", fileContent.length);
+        return writeFile(fileName,
+                RequestBody.create(OCTET_STREAM, fileContent));
+    }
 
+    /**
+     * Upload a local file, streaming its content from disk.
+     */
+    public boolean writeFile(String fileName, Path sourceFile)
+            throws IOException {
+        log.debug("Writing {} ({} bytes) to Alluxio", sourceFile,
+                Files.size(sourceFile));
+        return writeFile(fileName,
+                RequestBody.create(OCTET_STREAM, sourceFile.toFile()));
+    }
+
+    /**
+     * Upload the content of an input stream (which is not closed) using
+     * chunked transfer encoding.
+     */
+    public boolean writeFile(String fileName, InputStream inputStream)
+            throws IOException {
+        log.debug("Writing stream to Alluxio");
+        return writeFile(fileName, new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return OCTET_STREAM;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeAll(Okio.source(inputStream));
+            }
+        });
+    }
+
+    private boolean writeFile(String fileName, RequestBody requestBody)
+            throws IOException {
         Call<ResponseBody> openFile = alluxio.createFile(fileName);
         String streamId = openFile.execute().body().string();
         log.debug("Stream id {}", streamId);
 
-        RequestBody requestBody = RequestBody.create(
-                MediaType.parse("application/octet-stream"), fileContent);
-        Response<Void> execute = alluxio.writeStream(streamId, requestBody)
-                .execute();
-        log.debug("Result: {}", execute);
-
-        boolean writeSuccessful = execute.isSuccessful();
-
-        alluxio.closeStream(streamId).execute();
-        log.debug("Stream {} closed", streamId);
+        try {
+            Response<Void> execute = alluxio
+                    .writeStream(streamId, requestBody).execute();
+            log.debug("Result: {}", execute);
+            return execute.isSuccessful();
 
-        return writeSuccessful;
+        } finally {
+            alluxio.closeStream(streamId).execute();
+            log.debug("Stream {} closed", streamId);
+        }
     }
 
     public boolean deleteFile(String file) throws IOException {
@@ -135,6 +238,12 @@ public class AlluxioService {
         return response.isSuccessful();
     }
 
+    public EdmAluxioFile getFileStatus(String file) throws IOException {
+        Response<EdmAluxioFile> response = alluxio.getStatus(file).execute();
+        log.trace("Status of {}: {}", file, response);
+        return response.isSuccessful() ? response.body() : null;
+    }
+
     public List<String> listFiles(String folder) throws IOException {
         log.trace("Listing Alluxio files in folder {}", folder);
         EdmAluxioFile[] files = alluxio.listFiles(folder).execute().body();
@@ -0,0 +1,242 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static com.github.dockerjava.api.model.ExposedPort.tcp;
+import static com.github.dockerjava.api.model.Ports.Binding.bindPort;
+import static io.elastest.eus.docker.DockerContainer.dockerBuilder;
+import static java.lang.String.format;
+import static java.lang.System.getenv;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Arrays.asList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.ExposedPort;
+import com.github.dockerjava.api.model.PortBinding;
+import com.github.dockerjava.api.model.Ports.Binding;
+import com.github.dockerjava.api.model.Volume;
+
+import io.elastest.eus.docker.DockerContainer.DockerBuilder;
+import io.elastest.eus.session.SessionInfo;
+
+/**
+ * Service to start browser containers (hub, VNC and noVNC), waiting until
+ * they are reachable.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class BrowserContainerService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String DEVTOOLS_CAPTURE_MODE = "devtools";
+
+    @Value("${et.host.env}")
+    private String etHostEnv;
+
+    @Value("${eus.container.prefix}")
+    private String eusContainerPrefix;
+
+    @Value("${hub.exposedport}")
+    private int hubExposedPort;
+
+    @Value("${hub.vnc.exposedport}")
+    private int hubVncExposedPort;
+
+    @Value("${hub.novnc.exposedport}")
+    private int noVncExposedPort;
+
+    @Value("${browser.devtools.exposedport}")
+    private int devToolsExposedPort;
+
+    @Value("${browser.devtools.port}")
+    private int devToolsPort;
+
+    @Value("${log.capture.mode}")
+    private String logCaptureMode;
+
+    @Value("${hub.container.sufix}")
+    private String hubContainerSufix;
+
+    @Value("${novnc.html}")
+    private String vncHtml;
+
+    @Value("${hub.vnc.password}")
+    private String hubVncPassword;
+
+    @Value("${browser.shm.size}")
+    private long shmSize;
+
+    @Value("${browser.screen.resolution}")
+    private String browserScreenResolution;
+
+    @Value("${browser.timezone}")
+    private String browserTimezone;
+
+    @Value("${use.torm}")
+    private boolean useTorm;
+
+    @Value("${docker.network}")
+    private String dockerNetwork;
+
+    @Value("${registry.folder}")
+    private String registryFolder;
+
+    @Value("${container.recording.folder}")
+    private String containerRecordingFolder;
+
+    private DockerService dockerService;
+    private DockerHubService dockerHubService;
+
+    @Autowired
+    public BrowserContainerService(DockerService dockerService,
+            DockerHubService dockerHubService) {
+        this.dockerService = dockerService;
+        this.dockerHubService = dockerHubService;
+    }
+
+    public SessionInfo startBrowserContainer(String browserName,
+            String imageId) throws IOException, InterruptedException {
+        log.info("Using {} as Docker image for {}", imageId, browserName);
+        String hubContainerName = dockerService
+                .generateContainerName(eusContainerPrefix + hubContainerSufix);
+
+        // Recording Volume
+        Volume recordings = new Volume(containerRecordingFolder);
+        List<Volume> volumes = asList(recordings);
+
+        List<Bind> volumeBinds = asList(new Bind(registryFolder, recordings));
+
+        // Port binding
+        int hubPort = dockerService.findRandomOpenPort();
+        Binding bindHubPort = bindPort(hubPort);
+        ExposedPort exposedHubPort = tcp(hubExposedPort);
+
+        int vncPort = dockerService.findRandomOpenPort();
+        Binding bindVncPort = bindPort(vncPort);
+        ExposedPort exposedVncPort = tcp(hubVncExposedPort);
+
+        int noVncBindedPort = dockerService.findRandomOpenPort();
+        Binding bindNoVncPort = bindPort(noVncBindedPort);
+        ExposedPort exposedNoVncPort = tcp(noVncExposedPort);
+
+        List<PortBinding> portBindings = new ArrayList<>(asList(
+                new PortBinding(bindHubPort, exposedHubPort),
+                new PortBinding(bindVncPort, exposedVncPort),
+                new PortBinding(bindNoVncPort, exposedNoVncPort)));
+        List<ExposedPort> exposedPorts = new ArrayList<>(
+                asList(exposedHubPort, exposedVncPort, exposedNoVncPort));
+
+        // DevTools of Chrome, to capture console logs without polling
+        int devToolsBindPort = 0;
+        if (isDevToolsCapture(browserName)) {
+            devToolsBindPort = dockerService.findRandomOpenPort();
+            ExposedPort exposedDevToolsPort = tcp(devToolsExposedPort);
+            portBindings.add(new PortBinding(bindPort(devToolsBindPort),
+                    exposedDevToolsPort));
+            exposedPorts.add(exposedDevToolsPort);
+        }
+
+        // Envs
+        List<String> envs = asList(
+                "SCREEN_RESOLUTION=" + browserScreenResolution,
+                "TZ=" + browserTimezone);
+
+        DockerBuilder dockerBuilder = dockerBuilder(imageId, hubContainerName)
+                .exposedPorts(exposedPorts).portBindings(portBindings)
+                .volumes(volumes).binds(volumeBinds).shmSize(shmSize)
+                .envs(envs);
+        if (useTorm) {
+            dockerBuilder.network(dockerNetwork);
+        }
+
+        // Start
+        dockerService.startAndWaitContainer(dockerBuilder.build());
+
+        String hubPath = "/wd/hub";
+        String hubIp = dockerService.getDockerServerIp();
+        String hubUrl = "http://" + hubIp + ":" + hubPort + hubPath;
+        log.debug("Container: {} -- Hub URL: {}", hubContainerName, hubUrl);
+
+        // HTTP endpoint of DevTools, used to find the WebSocket of the page
+        String devToolsUrl = devToolsBindPort != 0
+                ? "http://" + hubIp + ":" + devToolsBindPort
+                : null;
+
+        String vncUrlFormat = "http://%s:%d/" + vncHtml
+                + "?resize=scale&autoconnect=true&password=" + hubVncPassword;
+        String vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
+
+        String etHost = getenv(etHostEnv);
+        if (etHost != null) {
+            if (!etHost.equalsIgnoreCase("localhost")) {
+                hubIp = etHost;
+                vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
+            }
+        }
+
+        // Wait Reachable (hub and VNC are probed concurrently)
+        dockerService.waitForHostsAreReachable(hubUrl, vncUrl);
+
+        // Save info into SessionInfo
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setHubUrl(hubUrl);
+        sessionInfo.setHubContainerName(hubContainerName);
+        sessionInfo.setBrowser(browserName);
+        sessionInfo.setVersion(dockerHubService.getVersionFromImage(imageId));
+        sessionInfo.setHubBindPort(hubPort);
+        sessionInfo.setHubVncBindPort(hubPort);
+        sessionInfo.setVncContainerName(hubContainerName);
+        sessionInfo.setVncUrl(vncUrl);
+        sessionInfo.setNoVncBindPort(noVncBindedPort);
+        sessionInfo.setDevToolsUrl(devToolsUrl);
+
+        return sessionInfo;
+    }
+
+    /**
+     * Arguments for Chrome required by EUS, i.e. remote debugging (forwarded
+     * to the exposed DevTools port by the browser image) when the browser log
+     * is captured with DevTools.
+     */
+    public String[] getChromeArgs(String browserName) {
+        return isDevToolsCapture(browserName)
+                ? new String[] { "--remote-debugging-port=" + devToolsPort }
+                : new String[0];
+    }
+
+    public void stopBrowserContainer(SessionInfo sessionInfo) {
+        dockerService.stopAndRemoveContainer(sessionInfo.getHubContainerName());
+    }
+
+    private boolean isDevToolsCapture(String browserName) {
+        return DEVTOOLS_CAPTURE_MODE.equalsIgnoreCase(logCaptureMode)
+                && "chrome".equalsIgnoreCase(browserName);
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+
+/**
+ * Warm pool of pre-started (and reachable) browser containers. The pool is
+ * configured with the property browser.pool using the format
+ * browser:version=size (comma separated), e.g.
+ * "chrome:latest=5,firefox:latest=2". Containers are probed before being
+ * handed out, and the pool is periodically maintained: the image of each
+ * browser is resolved again (replacing the containers of previous images),
+ * dead containers are removed and the pool is refilled.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class BrowserPoolService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${browser.pool}")
+    private String browserPool;
+
+    @Value("${browser.pool.refill.threads}")
+    private int refillThreads;
+
+    @Value("${browser.pool.maintenance.ms}")
+    private long maintenanceMs;
+
+    @Value("${browser.pool.probe.timeout.ms}")
+    private int probeTimeoutMs;
+
+    @Value("${browser.pool.shutdown.timeout.sec}")
+    private long shutdownTimeoutSec;
+
+    private List<WarmPool> warmPools = new ArrayList<>();
+    private ExecutorService refillExecutor;
+    private ScheduledExecutorService maintenanceExecutor;
+    private RestTemplate probeRestTemplate;
+    private volatile boolean closed = false;
+
+    private BrowserContainerService browserContainerService;
+    private DockerHubService dockerHubService;
+
+    @Autowired
+    public BrowserPoolService(BrowserContainerService browserContainerService,
+            DockerHubService dockerHubService) {
+        this.browserContainerService = browserContainerService;
+        this.dockerHubService = dockerHubService;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (browserPool == null || browserPool.trim().isEmpty()) {
+            return;
+        }
+        for (String poolEntry : browserPool.split(",")) {
+            String[] browserAndSize = poolEntry.trim().split("=");
+            String[] browserAndVersion = browserAndSize[0].trim().split(":");
+            String browser = browserAndVersion[0];
+            String version = browserAndVersion.length > 1
+                    ? browserAndVersion[1]
+                    : "";
+            int size = Integer.parseInt(browserAndSize[1].trim());
+
+            WarmPool warmPool = new WarmPool(browser, version, size);
+            warmPools.add(warmPool);
+            Metrics.gauge("eus.browser.pool.size",
+                    singletonList(Tag.of("pool", browserAndSize[0].trim())),
+                    warmPool, pool -> pool.idle.size());
+        }
+
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(probeTimeoutMs);
+        requestFactory.setReadTimeout(probeTimeoutMs);
+        probeRestTemplate = new RestTemplate(requestFactory);
+
+        refillExecutor = newFixedThreadPool(refillThreads);
+        maintenanceExecutor = newSingleThreadScheduledExecutor();
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintain, 0,
+                maintenanceMs, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (refillExecutor == null) {
+            return;
+        }
+        closed = true;
+        maintenanceExecutor.shutdownNow();
+
+        // Containers being started are not interrupted (they would be left
+        // behind), but they are stopped when started
+        refillExecutor.shutdown();
+        try {
+            if (!refillExecutor.awaitTermination(shutdownTimeoutSec,
+                    SECONDS)) {
+                log.warn("Warm containers still starting after {} seconds",
+                        shutdownTimeoutSec);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        warmPools.forEach(this::stopIdle);
+    }
+
+    public Optional<SessionInfo> claim(String imageId) {
+        Optional<WarmPool> optionalPool = warmPools.stream()
+                .filter(pool -> imageId.equals(pool.imageId)).findFirst();
+        if (!optionalPool.isPresent()) {
+            return Optional.empty();
+        }
+        WarmPool warmPool = optionalPool.get();
+
+        SessionInfo sessionInfo;
+        while ((sessionInfo = warmPool.idle.poll()) != null
+                && !isAlive(sessionInfo)) {
+            log.debug("Warm container {} not alive",
+                    sessionInfo.getHubContainerName());
+            stopContainer(sessionInfo);
+        }
+        refill(warmPool);
+        if (sessionInfo == null) {
+            log.debug("Warm pool miss for {}", imageId);
+            Metrics.counter("eus.browser.pool.miss", "image", imageId)
+                    .increment();
+            return Optional.empty();
+        }
+        log.debug("Warm pool hit for {}: {}", imageId,
+                sessionInfo.getHubContainerName());
+        Metrics.counter("eus.browser.pool.hit", "image", imageId).increment();
+        return Optional.of(sessionInfo);
+    }
+
+    private void maintain() {
+        for (WarmPool warmPool : warmPools) {
+            try {
+                // Tags such as latest can be moved to a new image
+                String imageId = dockerHubService
+                        .getBrowserImageFromCapabilities(warmPool.browser,
+                                warmPool.version, null);
+                if (!imageId.equals(warmPool.imageId)) {
+                    log.info("Warm pool of {} containers for {} ({})",
+                            warmPool.size, warmPool.browser, imageId);
+                    warmPool.imageId = imageId;
+                    stopIdle(warmPool);
+                }
+
+                for (SessionInfo sessionInfo : warmPool.idle) {
+                    if (!isAlive(sessionInfo)
+                            && warmPool.idle.remove(sessionInfo)) {
+                        log.debug("Removing dead warm container {}",
+                                sessionInfo.getHubContainerName());
+                        stopContainer(sessionInfo);
+                    }
+                }
+                refill(warmPool);
+
+            } catch (Exception e) {
+                log.warn("Exception maintaining warm pool for {}:{}: {}",
+                        warmPool.browser, warmPool.version, e.getMessage());
+            }
+        }
+    }
+
+    private void refill(WarmPool warmPool) {
+        synchronized (warmPool) {
+            String imageId = warmPool.imageId;
+            while (imageId != null && !closed && warmPool.idle.size()
+                    + warmPool.starting.get() < warmPool.size) {
+                warmPool.starting.incrementAndGet();
+                try {
+                    refillExecutor.execute(
+                            () -> startWarmContainer(warmPool, imageId));
+                } catch (RejectedExecutionException e) {
+                    log.trace("Warm pool closed: {}", e.getMessage());
+                    warmPool.starting.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void startWarmContainer(WarmPool warmPool, String imageId) {
+        long startTime = currentTimeMillis();
+        try {
+            if (closed) {
+                return;
+            }
+            SessionInfo sessionInfo = browserContainerService
+                    .startBrowserContainer(warmPool.browser, imageId);
+
+            // Containers of a previous image, or started while closing, are
+            // not kept
+            if (closed || !imageId.equals(warmPool.imageId)) {
+                stopContainer(sessionInfo);
+                return;
+            }
+            warmPool.idle.offer(sessionInfo);
+            long refillTime = currentTimeMillis() - startTime;
+            log.debug("Warm container {} ready in {} ms ({} idle for {})",
+                    sessionInfo.getHubContainerName(), refillTime,
+                    warmPool.idle.size(), imageId);
+            Metrics.timer("eus.browser.pool.refill", "image", imageId)
+                    .record(refillTime, MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Exception starting warm container for {}: {}", imageId,
+                    e.getMessage());
+        } finally {
+            warmPool.starting.decrementAndGet();
+        }
+    }
+
+    private boolean isAlive(SessionInfo sessionInfo) {
+        try {
+            return probeRestTemplate
+                    .getForEntity(sessionInfo.getHubUrl() + "/status",
+                            String.class)
+                    .getStatusCode().is2xxSuccessful();
+        } catch (Exception e) {
+            log.trace("Exception probing warm container {}: {}",
+                    sessionInfo.getHubContainerName(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void stopIdle(WarmPool warmPool) {
+        SessionInfo sessionInfo;
+        while ((sessionInfo = warmPool.idle.poll()) != null) {
+            stopContainer(sessionInfo);
+        }
+    }
+
+    private void stopContainer(SessionInfo sessionInfo) {
+        try {
+            browserContainerService.stopBrowserContainer(sessionInfo);
+        } catch (Exception e) {
+            log.warn("Exception stopping warm container {}: {}",
+                    sessionInfo.getHubContainerName(), e.getMessage());
+        }
+    }
+
+    private static class WarmPool {
+        final String browser;
+        final String version;
+        final int size;
+        final ConcurrentLinkedDeque<SessionInfo> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger starting = new AtomicInteger();
+
+        // Null until the image is resolved
+        volatile String imageId;
+
+        WarmPool(String browser, String version, int size) {
+            this.browser = browser;
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+}
@@ -18,8 +18,12 @@ package io.elastest.eus.service;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.Math.max;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.String.format;
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
 import static java.util.stream.Collectors.toList;
@@ -29,6 +33,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -40,6 +49,7 @@ import io.elastest.eus.json.DockerHubNameSpaceImages;
 import io.elastest.eus.json.DockerHubNameSpaceImages.DockerHubNameSpaceImage;
 import io.elastest.eus.json.DockerHubTags;
 import io.elastest.eus.json.DockerHubTags.DockerHubTag;
+import io.micrometer.core.instrument.Metrics;
 import okhttp3.OkHttpClient;
 import retrofit2.Response;
 import retrofit2.Retrofit;
@@ -78,8 +88,38 @@ public class DockerHubService {
     @Value("${et.internet.disabled}")
     boolean etInternetDisabled;
 
+    @Value("${browser.catalog.ttl.sec}")
+    int browserCatalogTtlSec;
+
+    @Value("${browser.catalog.refresh.sec}")
+    int browserCatalogRefreshSec;
+
     DockerHubApi dockerHubApi;
 
+    private volatile Map<String, List<String>> browserCatalog;
+    private volatile long browserCatalogRefreshTime;
+    private AtomicBoolean browserCatalogRefreshing = new AtomicBoolean();
+    private ScheduledExecutorService refreshExecutor;
+
+    @PostConstruct
+    public void init() {
+        if (!etInternetDisabled) {
+            refreshExecutor = newSingleThreadScheduledExecutor();
+            refreshExecutor.scheduleWithFixedDelay(
+                    this::scheduleBrowserCatalogRefresh, 0,
+                    browserCatalogRefreshSec, SECONDS);
+            Metrics.gauge("eus.browsers.catalog.age.ms", this,
+                    service -> service.getBrowserCatalogAgeMs());
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
     private void initDockerHubApi() {
         OkHttpClient okHttpClient = new OkHttpClient.Builder()
                 .connectTimeout(browserDockerHubTimeout, SECONDS)
@@ -197,52 +237,109 @@ public class DockerHubService {
     }
 
     public Map<String, List<String>> getBrowsers() throws IOException {
-        Map<String, List<String>> result = new TreeMap<>();
+        if (etInternetDisabled) {
+            // If there is not internet connection
+            log.info("Internet is disabled, getting default images list");
+            return this.getDefaultBrowsers();
+        }
 
-        if (!etInternetDisabled) {
-            List<DockerHubNameSpaceImage> imagesList = listImages();
-
-            // [chrome, firefox, utils-get_browsers_version, utils-x11-base]
-            log.trace("{} browser image list: {}", browserImageNamespace,
-                    imagesList);
-
-            for (DockerHubNameSpaceImage currentBrowserImage : imagesList) {
-                String browser = currentBrowserImage.getName();
-                if (!browser.toLowerCase()
-                        .startsWith(browserImageSkipPrefix.toLowerCase())) {
-                    List<DockerHubTag> tagList = listTags(
-                            browserImageNamespace + "/" + browser);
-                    log.trace("{} browser tag list: {}", browser, tagList);
-
-                    for (DockerHubTag dockerHubTag : tagList) {
-                        String tagName = dockerHubTag.getName();
-                        String version = tagName;
-
-                        if (browser.equalsIgnoreCase("opera")
-                                && version.equalsIgnoreCase("12.16")) {
-                            continue;
-                        }
-
-                        if (result.containsKey(browser)) {
-                            List<String> list = result.get(browser);
-                            list.add(version);
-
-                            list = list.stream().sorted(this::compareVersions)
-                                    .collect(toList());
-                            result.put(browser, list);
-                        } else {
-                            List<String> entry = new ArrayList<>();
-                            entry.add(version);
-
-                            result.put(browser, entry);
-                        }
+        Map<String, List<String>> catalog = browserCatalog;
+        if (catalog == null) {
+            // First request (the background refresh has not finished yet)
+            synchronized (this) {
+                catalog = browserCatalog;
+                if (catalog == null) {
+                    catalog = refreshBrowserCatalog();
+                }
+            }
+        } else if (getBrowserCatalogAgeMs() > SECONDS
+                .toMillis(browserCatalogTtlSec)) {
+            // Stale catalog: it is served while refreshing it in background
+            scheduleBrowserCatalogRefresh();
+        }
+        return catalog;
+    }
+
+    public long getBrowserCatalogAgeMs() {
+        return browserCatalogRefreshTime == 0 ? -1
+                : currentTimeMillis() - browserCatalogRefreshTime;
+    }
+
+    public Map<String, List<String>> refreshBrowserCatalog()
+            throws IOException {
+        long startTime = currentTimeMillis();
+        try {
+            Map<String, List<String>> catalog = unmodifiableMap(
+                    listBrowsersFromDockerHub());
+            browserCatalog = catalog;
+            browserCatalogRefreshTime = currentTimeMillis();
+            log.debug("Browser catalog refreshed in {} ms: {}",
+                    browserCatalogRefreshTime - startTime, catalog);
+            return catalog;
+
+        } catch (IOException | RuntimeException e) {
+            Map<String, List<String>> lastKnownCatalog = browserCatalog;
+            if (lastKnownCatalog == null) {
+                throw e;
+            }
+            log.warn(
+                    "Exception refreshing browser catalog from Docker Hub ({}), "
+                            + "using last known catalog (age {} ms)",
+                    e.getMessage(), getBrowserCatalogAgeMs());
+            return lastKnownCatalog;
+        }
+    }
+
+    private void scheduleBrowserCatalogRefresh() {
+        if (refreshExecutor != null
+                && browserCatalogRefreshing.compareAndSet(false, true)) {
+            refreshExecutor.execute(this::refreshBrowserCatalogInBackground);
+        }
+    }
+
+    private void refreshBrowserCatalogInBackground() {
+        try {
+            refreshBrowserCatalog();
+        } catch (Exception e) {
+            log.warn("Exception refreshing browser catalog from Docker Hub: {}",
+                    e.getMessage());
+        } finally {
+            browserCatalogRefreshing.set(false);
+        }
+    }
+
+    private Map<String, List<String>> listBrowsersFromDockerHub()
+            throws IOException {
+        Map<String, List<String>> result = new TreeMap<>();
+        List<DockerHubNameSpaceImage> imagesList = listImages();
+
+        // [chrome, firefox, utils-get_browsers_version, utils-x11-base]
+        log.trace("{} browser image list: {}", browserImageNamespace,
+                imagesList);
+
+        for (DockerHubNameSpaceImage currentBrowserImage : imagesList) {
+            String browser = currentBrowserImage.getName();
+            if (!browser.toLowerCase()
+                    .startsWith(browserImageSkipPrefix.toLowerCase())) {
+                List<DockerHubTag> tagList = listTags(
+                        browserImageNamespace + "/" + browser);
+                log.trace("{} browser tag list: {}", browser, tagList);
+
+                List<String> versions = new ArrayList<>();
+                for (DockerHubTag dockerHubTag : tagList) {
+                    String version = dockerHubTag.getName();
+
+                    if (browser.equalsIgnoreCase("opera")
+                            && version.equalsIgnoreCase("12.16")) {
+                        continue;
                     }
+                    versions.add(version);
+                }
+                if (!versions.isEmpty()) {
+                    result.put(browser, unmodifiableList(versions.stream()
+                            .sorted(this::compareVersions).collect(toList())));
                 }
             }
-        } else {
-            // If there is not internet connection
-            log.info("Internet is disabled, getting default images list");
-            result = this.getDefaultBrowsers();
         }
         return result;
     }
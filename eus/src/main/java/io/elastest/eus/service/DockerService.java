@@ -17,12 +17,12 @@
 package io.elastest.eus.service;
 
 import static com.github.dockerjava.api.model.Capability.SYS_ADMIN;
+import static java.lang.Math.min;
 import static java.lang.System.currentTimeMillis;
 import static java.lang.Thread.sleep;
 import static java.lang.invoke.MethodHandles.lookup;
-import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
-import static java.net.HttpURLConnection.HTTP_OK;
 import static java.util.UUID.randomUUID;
+import static java.util.concurrent.CompletableFuture.allOf;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.toList;
@@ -34,25 +34,18 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.net.SocketException;
-import java.net.URL;
-import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
@@ -77,8 +70,10 @@ import com.github.dockerjava.core.command.ExecStartResultCallback;
 import com.github.dockerjava.core.command.PullImageResultCallback;
 import com.github.dockerjava.jaxrs.JerseyDockerCmdExecFactory;
 
+import io.elastest.eus.docker.ContainerReadinessMonitor;
 import io.elastest.eus.docker.DockerContainer;
 import io.elastest.eus.docker.DockerException;
+import io.elastest.eus.docker.UrlReadinessProbe;
 
 /**
  * Service implementation simulating EPM (ElasTest Platform Manager) with
@@ -110,9 +105,32 @@ public class DockerService {
     @Value("${et.internet.disabled}")
     boolean etInternetDisabled;
 
+    @Value("${docker.events.enabled}")
+    private boolean dockerEventsEnabled;
+
+    @Value("${docker.events.reconnect.ms}")
+    private long dockerEventsReconnectMs;
+
+    @Value("${docker.events.safety.poll.ms}")
+    private long dockerEventsSafetyPollMs;
+
+    @Value("${docker.probe.max.concurrent}")
+    private int dockerProbeMaxConcurrent;
+
+    @Value("${docker.probe.initial.backoff.ms}")
+    private long dockerProbeInitialBackoffMs;
+
+    @Value("${docker.probe.max.backoff.ms}")
+    private long dockerProbeMaxBackoffMs;
+
+    @Value("${docker.probe.attempt.timeout.ms}")
+    private int dockerProbeAttemptTimeoutMs;
+
     private ShellService shellService;
 
     private DockerClient dockerClient;
+    private ContainerReadinessMonitor readinessMonitor;
+    private UrlReadinessProbe urlReadinessProbe;
     private String dockerServerIp;
     private boolean isRunningInContainer = false;
     private boolean containerCheked = false;
@@ -135,10 +153,23 @@ public class DockerService {
         }
         dockerClient = dockerClientBuilder
                 .withDockerCmdExecFactory(dockerCmdExecFactory).build();
+
+        if (dockerEventsEnabled) {
+            readinessMonitor = new ContainerReadinessMonitor(dockerClient,
+                    dockerEventsReconnectMs);
+            readinessMonitor.start();
+        }
+        urlReadinessProbe = new UrlReadinessProbe(dockerProbeMaxConcurrent,
+                dockerProbeInitialBackoffMs, dockerProbeMaxBackoffMs,
+                dockerProbeAttemptTimeoutMs);
     }
 
     @PreDestroy
     private void teardown() throws IOException {
+        if (readinessMonitor != null) {
+            readinessMonitor.close();
+        }
+        urlReadinessProbe.close();
         dockerClient.close();
     }
 
@@ -198,8 +229,13 @@ public class DockerService {
 
                 createContainer.withCapAdd(SYS_ADMIN);
                 createContainer.exec();
+
+                // The container is watched before starting it, so that its
+                // start event cannot be missed
+                CompletableFuture<Void> readiness = watchContainer(
+                        containerName);
                 dockerClient.startContainerCmd(containerName).exec();
-                waitForContainer(containerName);
+                waitForContainer(containerName, readiness);
             }
         } else {
             log.warn("Container {} already running", containerName);
@@ -412,35 +448,87 @@ public class DockerService {
 
     public void waitForContainer(String containerName)
             throws InterruptedException {
-        boolean isRunning = false;
-        long timeoutMs = currentTimeMillis()
+        waitForContainer(containerName, watchContainer(containerName));
+    }
+
+    private CompletableFuture<Void> watchContainer(String containerName) {
+        return readinessMonitor != null && readinessMonitor.isConnected()
+                ? readinessMonitor.watch(containerName)
+                : null;
+    }
+
+    private void waitForContainer(String containerName,
+            CompletableFuture<Void> readiness) throws InterruptedException {
+        long endTimeMillis = currentTimeMillis()
                 + SECONDS.toMillis(dockerWaitTimeoutSec);
-        do {
-            isRunning = isRunningContainer(containerName);
-            if (!isRunning) {
+        try {
+            while (true) {
+                long remainingMs = endTimeMillis - currentTimeMillis();
+
+                // When the Docker events stream is available, the container
+                // state is only inspected as a safety net for missed events
+                boolean eventDriven = readiness != null
+                        && readinessMonitor.isConnected();
+                if (eventDriven && remainingMs > 0 && awaitReadiness(
+                        containerName, readiness,
+                        min(remainingMs, dockerEventsSafetyPollMs))) {
+                    return;
+                }
+                if (isRunningContainer(containerName)) {
+                    return;
+                }
+
                 // Check timeout
-                if (currentTimeMillis() > timeoutMs) {
+                if (currentTimeMillis() > endTimeMillis) {
                     throw new DockerException(
                             "Timeout of " + dockerWaitTimeoutSec
                                     + " seconds waiting for container "
                                     + containerName);
                 }
 
-                // Wait poll time
-                log.trace("Container {} is not still running ... waiting {} ms",
-                        containerName, dockerPollTimeMs);
-                sleep(dockerPollTimeMs);
-
+                if (!eventDriven) {
+                    // Wait poll time
+                    log.trace(
+                            "Container {} is not still running ... waiting {} ms",
+                            containerName, dockerPollTimeMs);
+                    sleep(dockerPollTimeMs);
+                }
+            }
+        } finally {
+            if (readiness != null) {
+                readinessMonitor.unwatch(containerName);
             }
-        } while (!isRunning);
+        }
+    }
+
+    private boolean awaitReadiness(String containerName,
+            CompletableFuture<Void> readiness, long timeoutMs)
+            throws InterruptedException {
+        try {
+            readiness.get(timeoutMs, MILLISECONDS);
+            log.trace("Container {} is running (Docker event)", containerName);
+            return true;
+
+        } catch (TimeoutException e) {
+            log.trace("No Docker event for container {} in {} ms",
+                    containerName, timeoutMs);
+            return false;
+
+        } catch (ExecutionException e) {
+            throw new DockerException(e.getCause().getMessage(), e.getCause());
+        }
     }
 
     public boolean isRunningContainer(String containerName) {
         boolean isRunning = false;
-        if (existsContainer(containerName)) {
-            isRunning = dockerClient.inspectContainerCmd(containerName).exec()
-                    .getState().getRunning();
+        try {
+            isRunning = Boolean.TRUE.equals(dockerClient
+                    .inspectContainerCmd(containerName).exec().getState()
+                    .getRunning());
             log.trace("Container {} is running: {}", containerName, isRunning);
+
+        } catch (NotFoundException e) {
+            log.trace("Container {} does not exist", containerName);
         }
 
         return isRunning;
@@ -461,88 +549,38 @@ public class DockerService {
     }
 
     public void waitForHostIsReachable(String url) {
-        long timeoutMillis = MILLISECONDS.convert(dockerWaitTimeoutSec,
-                SECONDS);
-        long endTimeMillis = System.currentTimeMillis() + timeoutMillis;
-
-        log.debug("Waiting for {} to be reachable (timeout {} seconds)", url,
-                dockerWaitTimeoutSec);
-        String errorMessage = "URL " + url + " not reachable in "
-                + dockerWaitTimeoutSec + " seconds";
-        TrustManager[] trustAllCerts = new TrustManager[] {
-                new X509TrustManager() {
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return new X509Certificate[] {};
-                    }
-
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] certs,
-                            String authType) {
-                        // No actions required
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] certs,
-                            String authType) {
-                        // No actions required
-                    }
-                } };
+        waitForHostsAreReachable(url);
+    }
 
+    /**
+     * Wait (concurrently) for several URLs to be reachable.
+     */
+    public void waitForHostsAreReachable(String... urls) {
+        CompletableFuture<?>[] probes = new CompletableFuture<?>[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            probes[i] = waitForHostIsReachableAsync(urls[i]);
+        }
         try {
-            SSLContext sc = SSLContext.getInstance("SSL");
-            sc.init(null, trustAllCerts, new java.security.SecureRandom());
-            HttpsURLConnection
-                    .setDefaultSSLSocketFactory(sc.getSocketFactory());
-
-            HostnameVerifier allHostsValid = (hostname, session) -> true;
-            HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
-
-            waitUrl(url, timeoutMillis, endTimeMillis, errorMessage);
-
-        } catch (Exception e) {
-            // Not propagating multiple exceptions (NoSuchAlgorithmException,
-            // KeyManagementException, IOException, InterruptedException) to
-            // improve readability
-            throw new DockerException(errorMessage, e);
+            // The probes time out by themselves, and this is a safety net
+            allOf(probes).get(dockerWaitTimeoutSec + 10, SECONDS);
+
+        } catch (TimeoutException e) {
+            throw new DockerException("Timeout waiting for "
+                    + Arrays.toString(urls) + " to be reachable", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DockerException(
+                    "Interrupted waiting for " + Arrays.toString(urls), e);
+        } catch (ExecutionException e) {
+            throw new DockerException(e.getCause().getMessage(), e.getCause());
         }
-
     }
 
-    private void waitUrl(String url, long timeoutMillis, long endTimeMillis,
-            String errorMessage) throws IOException, InterruptedException {
-        int responseCode = 0;
-        while (true) {
-            try {
-                HttpURLConnection connection = (HttpURLConnection) new URL(url)
-                        .openConnection();
-                connection.setConnectTimeout((int) timeoutMillis);
-                connection.setReadTimeout((int) timeoutMillis);
-                connection.setRequestMethod("GET");
-                responseCode = connection.getResponseCode();
-
-                if (responseCode == HTTP_OK || responseCode == HTTP_NOT_FOUND) {
-                    log.debug("URL {} already reachable", url);
-                    break;
-                } else {
-                    log.trace(
-                            "URL {} not reachable (response {}). Trying again in {} ms",
-                            url, responseCode, dockerPollTimeMs);
-                }
-
-            } catch (SSLHandshakeException | SocketException e) {
-                log.trace("Error {} waiting URL {}, trying again in {} ms",
-                        e.getMessage(), url, dockerPollTimeMs);
-
-            } finally {
-                // Polling to wait a consistent state
-                sleep(dockerPollTimeMs);
-            }
-
-            if (currentTimeMillis() > endTimeMillis) {
-                throw new DockerException(errorMessage);
-            }
-        }
+    public CompletableFuture<Void> waitForHostIsReachableAsync(String url) {
+        log.debug("Waiting for {} to be reachable (timeout {} seconds)", url,
+                dockerWaitTimeoutSec);
+        return urlReadinessProbe.waitReachable(url,
+                SECONDS.toMillis(dockerWaitTimeoutSec));
     }
 
     public String generateContainerName(String prefix) {
@@ -17,19 +17,31 @@
 package io.elastest.eus.service;
 
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Collections.emptyMap;
 import static net.thisptr.jackson.jq.JsonQuery.compile;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.springframework.stereotype.Service;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.TextNode;
 
 import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Scope;
 
 /**
  * Service implementation for JSON utilities.
@@ -42,15 +54,27 @@ public class JsonService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    // ObjectMapper, ObjectReader and ObjectWriter are thread-safe once
+    // configured, so they are shared by all calls
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectWriter objectWriter = objectMapper.writer();
+    private final ObjectReader treeReader = objectMapper.readerFor(JsonNode.class);
+    private final Map<Class<?>, ObjectReader> objectReaders = new ConcurrentHashMap<>();
+
+    // Compiled jq programs (keyed by program text) and root scope (with the
+    // jq built-in functions, which are expensive to load)
+    private final Map<String, JsonQuery> compiledQueries = new ConcurrentHashMap<>();
+    private final Scope rootScope = new Scope();
+
     public String objectToJson(Object object) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.writeValueAsString(object);
+        return objectWriter.writeValueAsString(object);
     }
 
     public <T> T jsonToObject(String json, Class<T> valueType)
             throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.readValue(json, valueType);
+        return objectReaders
+                .computeIfAbsent(valueType, objectMapper::readerFor)
+                .readValue(json);
     }
 
     public String sanitizeMessage(String message) {
@@ -70,14 +94,94 @@ public class JsonService {
     }
 
     public String processJsonWithJq(String json, String jq) throws IOException {
+        return processJsonWithJq(json, jq, emptyMap());
+    }
+
+    /**
+     * Process a JSON message with a jq program. The program can use variables
+     * (e.g. $name) whose values are passed separately, so that the compiled
+     * program can be reused with different values.
+     */
+    public String processJsonWithJq(String json, String jq,
+            Map<String, String> variables) throws IOException {
         log.debug("JSON message before processing: {}", json);
-        log.debug("jq command: {}", jq);
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode input = objectMapper.readTree(json);
-        JsonQuery jsonQuery = compile(jq);
-        String result = jsonQuery.apply(input).iterator().next().toString();
+        log.debug("jq command: {} (variables {})", jq, variables);
+        JsonNode input = treeReader.readValue(json);
+
+        // Child scope per call (cheap), so that the root scope is not modified
+        Scope scope = new Scope(rootScope);
+        for (Entry<String, String> variable : variables.entrySet()) {
+            scope.setValue(variable.getKey(),
+                    new TextNode(variable.getValue()));
+        }
+        String result = getJsonQuery(jq).apply(scope, input).iterator().next()
+                .toString();
         log.debug("JSON message after processing: {}", result);
         return result;
     }
 
+    /**
+     * Insert a string field in the top-level JSON object (and in its nested
+     * object, if any) without building the whole JSON tree, i.e. only the
+     * top-level tokens are scanned and the field is inserted just after the
+     * opening braces.
+     */
+    public String insertField(String json, String fieldName,
+            String fieldValue, String nestedObjectName) throws IOException {
+        List<Integer> offsets = new ArrayList<>();
+        try (JsonParser parser = objectMapper.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return json;
+            }
+            offsets.add((int) parser.getTokenLocation().getCharOffset() + 1);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT
+                        && name.equals(nestedObjectName)) {
+                    offsets.add(
+                            (int) parser.getTokenLocation().getCharOffset()
+                                    + 1);
+                }
+                parser.skipChildren();
+            }
+        }
+
+        String field = objectWriter.writeValueAsString(fieldName) + ":"
+                + objectWriter.writeValueAsString(fieldValue);
+        StringBuilder out = new StringBuilder(
+                json.length() + offsets.size() * (field.length() + 1));
+        int last = 0;
+        for (int offset : offsets) {
+            out.append(json, last, offset).append(field);
+            if (!isEmptyObject(json, offset)) {
+                out.append(',');
+            }
+            last = offset;
+        }
+        return out.append(json, last, json.length()).toString();
+    }
+
+    private boolean isEmptyObject(String json, int offset) {
+        for (int i = offset; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '}';
+            }
+        }
+        return false;
+    }
+
+    private JsonQuery getJsonQuery(String jq) throws IOException {
+        JsonQuery jsonQuery = compiledQueries.get(jq);
+        if (jsonQuery == null) {
+            jsonQuery = compile(jq);
+            JsonQuery previous = compiledQueries.putIfAbsent(jq, jsonQuery);
+            if (previous != null) {
+                jsonQuery = previous;
+            }
+        }
+        return jsonQuery;
+    }
+
 }
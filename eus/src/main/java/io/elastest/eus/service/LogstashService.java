@@ -16,27 +16,68 @@
  */
 package io.elastest.eus.service;
 
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import io.elastest.eus.logstash.LogEventEncoder;
+import io.elastest.eus.logstash.LogSpool;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+
 /**
- * Logstash service.
+ * Logstash service. Browser console logs of all sessions are queued in a
+ * bounded ring buffer and shipped in batches (bounded by number of events,
+ * size and time) as a JSON array, using a pooled keep-alive HTTP client and
+ * (optionally) gzip request bodies. Sending never blocks the caller: when the
+ * buffer is full or Logstash is down, logs are written to a disk spool, which
+ * is replayed (with exponential backoff) when Logstash is available again.
  *
  * @since 0.5.0-alpha2
  */
 @Service
 public class LogstashService {
 
+    static final String CONSOLE_STREAM = "console";
+
     @Value("${et.mon.lshttps.api:#{null}}")
     private String lsSSLHttpApi;
 
@@ -49,44 +90,164 @@ public class LogstashService {
     @Value("${et.browser.component.prefix}")
     private String etBrowserComponentPrefix;
 
+    @Value("${logstash.queue.size}")
+    private int queueSize;
+
+    @Value("${logstash.batch.max.events}")
+    private int batchMaxEvents;
+
+    @Value("${logstash.batch.max.bytes}")
+    private int batchMaxBytes;
+
+    @Value("${logstash.batch.interval.ms}")
+    private long batchIntervalMs;
+
+    @Value("${logstash.gzip}")
+    private boolean gzip;
+
+    @Value("${logstash.max.connections}")
+    private int maxConnections;
+
+    @Value("${logstash.timeout.ms}")
+    private int timeoutMs;
+
+    @Value("${logstash.retry.max.ms}")
+    private long retryMaxMs;
+
+    @Value("${logstash.spool.folder}")
+    private String spoolFolder;
+
+    @Value("${logstash.spool.segment.bytes}")
+    private int spoolSegmentBytes;
+
+    @Value("${logstash.spool.max.bytes}")
+    private long spoolMaxBytes;
+
+    // oldest: discard the oldest spooled logs, newest: discard new logs
+    @Value("${logstash.spool.drop.policy}")
+    private String spoolDropPolicy;
+
     final Logger log = getLogger(lookup().lookupClass());
 
+    private BlockingQueue<String> events;
+    private ScheduledExecutorService shipExecutor;
+    private CloseableHttpClient httpClient;
+    private AtomicBoolean shipRequested = new AtomicBoolean(false);
+    private LogSpool spool;
+    private ThreadLocal<LogEventEncoder> encoder = ThreadLocal
+            .withInitial(LogEventEncoder::new);
+
+    // Backoff after failures, only accessed by the ship thread
+    private long retryDelayMs = 0;
+    private long retryTime = 0;
+
+    @PostConstruct
+    public void init() throws Exception {
+        if (!isEnabled()) {
+            log.debug("Logstash not configured, browser logs will not be "
+                    + "shipped");
+            return;
+        }
+        events = new ArrayBlockingQueue<>(queueSize);
+        openSpool();
+
+        // The HTTPS endpoint of Logstash uses a self-signed certificate
+        SSLContext sslContext = new SSLContextBuilder()
+                .loadTrustMaterial(null, (chain, authType) -> true).build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMs)
+                .setConnectionRequestTimeout(timeoutMs)
+                .setSocketTimeout(timeoutMs).build();
+        httpClient = HttpClientBuilder.create().useSystemProperties()
+                .setSSLContext(sslContext)
+                .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultRequestConfig(requestConfig).build();
+
+        shipExecutor = newSingleThreadScheduledExecutor();
+        shipExecutor.scheduleWithFixedDelay(this::shipPendingEvents,
+                batchIntervalMs, batchIntervalMs, MILLISECONDS);
+
+        Metrics.gauge("eus.logstash.queue", events, BlockingQueue::size);
+        Metrics.gauge("eus.logstash.spool.bytes", this,
+                logstash -> logstash.getSpoolBytes());
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (shipExecutor == null) {
+            return;
+        }
+        flush();
+        shipExecutor.shutdownNow();
+        if (spool != null) {
+            List<String> pendingEvents = new ArrayList<>();
+            events.drainTo(pendingEvents);
+            spoolEvents(pendingEvents);
+            spool.close();
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("Exception closing Logstash HTTP client {}",
+                    e.getMessage());
+        }
+    }
+
     public void sendBrowserConsoleToLogstash(String jsonMessages,
             String sessionId) {
         log.trace("lsSSLHttpApi: {} etMonExec: {}", lsSSLHttpApi, etMonExec);
-        if (lsSSLHttpApi == null || etMonExec == null) {
+        if (!isEnabled()) {
             return;
         }
+        try {
+            queueEvent(encoder.get().encode(
+                    etBrowserComponentPrefix + sessionId, etMonExec,
+                    CONSOLE_STREAM, jsonMessages), sessionId);
+        } catch (IOException e) {
+            log.warn("Exception encoding browser log of {}: {}", sessionId,
+                    e.getMessage());
+        }
+    }
 
+    public void sendBrowserConsoleToLogstash(
+            List<io.elastest.eus.json.WebDriverLog.Value> values,
+            String sessionId) {
+        log.trace("lsSSLHttpApi: {} etMonExec: {}", lsSSLHttpApi, etMonExec);
+        if (!isEnabled()) {
+            return;
+        }
         try {
-            URL url = new URL(lsSSLHttpApi);
-
-            URLConnection con = url.openConnection();
-            HttpURLConnection http = (HttpURLConnection) con;
-            http.setRequestMethod("POST");
-            http.setDoOutput(true);
-
-            String component = etBrowserComponentPrefix + sessionId;
-            String body = "{" + "\"component\":\"" + component + "\""
-                    + ",\"exec\":\"" + etMonExec + "\""
-                    + ",\"stream\":\"console\"" + ",\"messages\":"
-                    + jsonMessages + "}";
-            byte[] out = body.getBytes(UTF_8);
-            log.debug("Sending browser log to logstash ({}): {}", lsSSLHttpApi,
-                    body);
-            int length = out.length;
-
-            http.setFixedLengthStreamingMode(length);
-            http.setRequestProperty("Content-Type",
-                    "application/json; charset=UTF-8");
-            http.connect();
-            try (OutputStream os = http.getOutputStream()) {
-                os.write(out);
-            }
-        } catch (Exception e) {
-            log.error("Exception in send browser console log trace", e);
+            queueEvent(encoder.get().encode(
+                    etBrowserComponentPrefix + sessionId, etMonExec,
+                    CONSOLE_STREAM, values), sessionId);
+        } catch (IOException e) {
+            log.warn("Exception encoding browser log of {}: {}", sessionId,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Ship all the queued and spooled events (unless Logstash is in backoff
+     * after a failure), waiting for the batches to be sent.
+     */
+    public void flush() {
+        if (shipExecutor == null) {
+            return;
         }
+        try {
+            shipExecutor.submit(this::shipPendingEvents).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            log.warn("Exception flushing browser logs to Logstash {}",
+                    e.getMessage());
+        }
+    }
 
+    public long getSpoolBytes() {
+        return spool != null ? spool.getPendingBytes() : 0;
     }
 
     public String getJsonMessageFromValueList(
@@ -115,4 +276,200 @@ public class LogstashService {
         return msg.replaceAll("(?<!\\\\)\\\"", "\\\\\"");
     }
 
+    private void queueEvent(String event, String sessionId) {
+        // Logs go to the spool while it has pending logs, to keep the order
+        if ((spool != null && !spool.isEmpty()) || !events.offer(event)) {
+            if (spool == null) {
+                log.debug("Logstash queue is full, dropping browser log of {}",
+                        sessionId);
+                countDropped("queue", 1);
+            } else {
+                spoolEvents(singletonList(event));
+            }
+            return;
+        }
+
+        // Ship full batches without waiting for the batch interval
+        if (events.size() >= batchMaxEvents
+                && shipRequested.compareAndSet(false, true)) {
+            try {
+                shipExecutor.execute(this::shipPendingEvents);
+            } catch (RejectedExecutionException e) {
+                // Shut down (see cleanUp), no more batches are shipped
+                log.trace("Logstash shipping stopped: {}", e.getMessage());
+                shipRequested.set(false);
+            }
+        }
+    }
+
+    private void shipPendingEvents() {
+        shipRequested.set(false);
+        // Compare the difference, since nanoTime values may overflow
+        if (retryDelayMs > 0 && nanoTime() - retryTime < 0) {
+            return;
+        }
+        try {
+            // Replay the spool first
+            if (spool != null) {
+                List<String> batch;
+                while (!(batch = spool.peek(batchMaxEvents, batchMaxBytes))
+                        .isEmpty()) {
+                    if (!shipBatch(batch)) {
+                        backoff();
+                        return;
+                    }
+                    spool.commit();
+                }
+            }
+
+            List<String> batch = new ArrayList<>();
+            int batchBytes = 0;
+            String event;
+            while ((event = events.poll()) != null) {
+                batch.add(event);
+                batchBytes += event.length();
+                if (batch.size() >= batchMaxEvents
+                        || batchBytes >= batchMaxBytes) {
+                    if (!shipOrSpool(batch)) {
+                        return;
+                    }
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            }
+            if (!batch.isEmpty() && !shipOrSpool(batch)) {
+                return;
+            }
+            retryDelayMs = 0;
+
+        } catch (Exception e) {
+            log.warn("Exception shipping browser logs to logstash: {}",
+                    e.getMessage());
+        }
+    }
+
+    private boolean shipOrSpool(List<String> batch) {
+        if (shipBatch(batch)) {
+            return true;
+        }
+        if (spool != null) {
+            spoolEvents(batch);
+        } else {
+            countDropped("error", batch.size());
+        }
+        backoff();
+        return false;
+    }
+
+    /**
+     * Send a batch to Logstash. False means that it should be retried later,
+     * i.e. Logstash is unreachable or responds with a server error. Batches
+     * rejected with client errors are dropped.
+     */
+    private boolean shipBatch(List<String> batch) {
+        long startTime = nanoTime();
+        try {
+            HttpPost post = new HttpPost(lsSSLHttpApi);
+            ByteArrayEntity entity = new ByteArrayEntity(encodeBatch(batch),
+                    ContentType.create("application/json", UTF_8));
+            if (gzip) {
+                entity.setContentEncoding("gzip");
+            }
+            post.setEntity(entity);
+            log.debug("Sending {} browser logs to logstash ({})",
+                    batch.size(), lsSSLHttpApi);
+
+            // The response is always consumed to reuse the connection
+            try (CloseableHttpResponse response = httpClient.execute(post)) {
+                int status = response.getStatusLine().getStatusCode();
+                EntityUtils.consume(response.getEntity());
+                if (status >= 500) {
+                    log.warn("Logstash responded {} to a batch of {} logs",
+                            status, batch.size());
+                    return false;
+                }
+                if (status >= 300) {
+                    log.warn("Logstash rejected ({}) a batch of {} logs",
+                            status, batch.size());
+                    countDropped("rejected", batch.size());
+                    return true;
+                }
+            }
+            Metrics.counter("eus.logstash.events.shipped")
+                    .increment(batch.size());
+            return true;
+
+        } catch (Exception e) {
+            log.warn("Exception sending browser logs to logstash: {}",
+                    e.getMessage());
+            return false;
+        } finally {
+            Metrics.timer("eus.logstash.batch.latency")
+                    .record(nanoTime() - startTime, NANOSECONDS);
+        }
+    }
+
+    private void backoff() {
+        retryDelayMs = retryDelayMs == 0 ? batchIntervalMs
+                : min(retryDelayMs * 2, retryMaxMs);
+        retryTime = nanoTime() + MILLISECONDS.toNanos(retryDelayMs);
+        log.debug("Retrying to ship browser logs in {} ms", retryDelayMs);
+    }
+
+    private void spoolEvents(List<String> spooledEvents) {
+        for (String event : spooledEvents) {
+            try {
+                int dropped = spool.append(event);
+                if (dropped > 0) {
+                    countDropped("spool", dropped);
+                }
+            } catch (Exception e) {
+                log.warn("Exception writing browser log to spool: {}",
+                        e.getMessage());
+                countDropped("spool", 1);
+            }
+        }
+        Metrics.counter("eus.logstash.events.spooled")
+                .increment(spooledEvents.size());
+    }
+
+    private boolean isEnabled() {
+        return lsSSLHttpApi != null && !lsSSLHttpApi.isEmpty()
+                && etMonExec != null;
+    }
+
+    private void openSpool() {
+        try {
+            spool = new LogSpool(Paths.get(spoolFolder), spoolSegmentBytes,
+                    spoolMaxBytes, !"newest".equalsIgnoreCase(spoolDropPolicy));
+            spool.open();
+        } catch (Exception e) {
+            log.warn("Log spool {} not available, logs will be kept only in "
+                    + "memory: {}", spoolFolder, e.getMessage());
+            spool = null;
+        }
+    }
+
+    private byte[] encodeBatch(List<String> batch) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (OutputStream outputStream = gzip
+                ? new GZIPOutputStream(byteArrayOutputStream)
+                : byteArrayOutputStream) {
+            outputStream.write('[');
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    outputStream.write(',');
+                }
+                outputStream.write(batch.get(i).getBytes(UTF_8));
+            }
+            outputStream.write(']');
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private void countDropped(String reason, int count) {
+        Metrics.counter("eus.logstash.events.dropped",
+                singletonList(Tag.of("reason", reason))).increment(count);
+    }
+
 }
@@ -0,0 +1,315 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.springframework.http.HttpHeaders.ACCEPT_RANGES;
+import static org.springframework.http.HttpHeaders.CONTENT_RANGE;
+import static org.springframework.http.HttpHeaders.IF_RANGE;
+import static org.springframework.http.HttpHeaders.RANGE;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import io.elastest.eus.json.EdmAluxioFile;
+import io.elastest.eus.session.RecordingFileCache;
+
+/**
+ * Serving of registry files (recordings), supporting range and conditional
+ * requests. Local files are sent with sendfile (when supported by the
+ * servlet container) or copied to the servlet output stream otherwise.
+ * Recordings stored in Alluxio are downloaded once to a local cache, and
+ * ranges are served while the download progresses.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class RecordingContentService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    static final String HLS_PLAYLIST_TYPE = "application/vnd.apple.mpegurl";
+    static final String MEDIA_SEGMENT_TYPE = "video/iso.segment";
+
+    @Value("${registry.folder}")
+    private String registryFolder;
+
+    @Value("${registry.recording.extension}")
+    private String registryRecordingExtension;
+
+    @Value("${registry.playlist.extension}")
+    private String registryPlaylistExtension;
+
+    @Value("${registry.segment.extension}")
+    private String registrySegmentExtension;
+
+    @Value("${edm.alluxio.url}")
+    private String edmAlluxioUrl;
+
+    @Value("${registry.sendfile}")
+    private boolean sendfile;
+
+    @Value("${registry.cache.folder}")
+    private String cacheFolder;
+
+    @Value("${registry.cache.download.threads}")
+    private int cacheDownloadThreads;
+
+    @Value("${registry.cache.max.bytes}")
+    private long cacheMaxBytes;
+
+    private AlluxioService alluxioService;
+    private RecordingFileCache fileCache;
+    private ExecutorService cacheDownloadExecutor;
+    private Path registryPath;
+
+    @Autowired
+    public RecordingContentService(AlluxioService alluxioService) {
+        this.alluxioService = alluxioService;
+    }
+
+    @PostConstruct
+    public void init() {
+        registryPath = Paths.get(registryFolder).toAbsolutePath().normalize();
+        if (!edmAlluxioUrl.isEmpty() && cacheMaxBytes > 0) {
+            cacheDownloadExecutor = newFixedThreadPool(cacheDownloadThreads);
+            fileCache = new RecordingFileCache(Paths.get(cacheFolder),
+                    cacheMaxBytes, cacheDownloadExecutor);
+            try {
+                fileCache.open();
+            } catch (IOException e) {
+                log.warn("Exception opening recording cache in {}, Alluxio "
+                        + "recordings will not be cached: {}", cacheFolder,
+                        e.getMessage());
+                fileCache = null;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (cacheDownloadExecutor != null) {
+            cacheDownloadExecutor.shutdownNow();
+        }
+    }
+
+    public void serveFile(String fileName, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Path localFile = registryPath.resolve(fileName).normalize();
+        if (fileName.contains("/") || fileName.contains("\\")
+                || !localFile.startsWith(registryPath)
+                || localFile.equals(registryPath)) {
+            response.sendError(SC_NOT_FOUND);
+            return;
+        }
+
+        long length;
+        long lastModified;
+        EdmAluxioFile alluxioFile = null;
+        if (Files.isRegularFile(localFile)) {
+            length = Files.size(localFile);
+            lastModified = Files.getLastModifiedTime(localFile).toMillis();
+        } else if (!edmAlluxioUrl.isEmpty()
+                && isRecordingFile(fileName)
+                && (alluxioFile = alluxioService
+                        .getFileStatus(fileName)) != null) {
+            length = alluxioFile.getLength();
+            lastModified = alluxioFile.getLastModificationTimeMs();
+        } else {
+            response.sendError(SC_NOT_FOUND);
+            return;
+        }
+
+        // Conditional request (If-None-Match, If-Modified-Since, etc.)
+        String etag = "\"" + Long.toHexString(length) + "-"
+                + Long.toHexString(lastModified) + "\"";
+        if (new ServletWebRequest(request, response).checkNotModified(etag,
+                lastModified)) {
+            return;
+        }
+
+        long start = 0;
+        long count = length;
+        response.setHeader(ACCEPT_RANGES, "bytes");
+        String rangeHeader = request.getHeader(RANGE);
+        if (rangeHeader != null && isRangeValid(request, etag, lastModified)) {
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+                // Multiple ranges are not supported, the whole file is sent
+                if (ranges.size() == 1) {
+                    start = ranges.get(0).getRangeStart(length);
+                    count = ranges.get(0).getRangeEnd(length) - start + 1;
+                    // Not checked by HttpRange (e.g. bytes=20- of 10 bytes)
+                    if (start >= length || count <= 0) {
+                        throw new IllegalArgumentException(
+                                "Range not satisfiable for length " + length);
+                    }
+                    response.setStatus(SC_PARTIAL_CONTENT);
+                    response.setHeader(CONTENT_RANGE, "bytes " + start + "-"
+                            + (start + count - 1) + "/" + length);
+                }
+            } catch (IllegalArgumentException e) {
+                log.debug("Invalid range {} of {}: {}", rangeHeader, fileName,
+                        e.getMessage());
+                response.setHeader(CONTENT_RANGE, "bytes */" + length);
+                response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+
+        response.setContentType(getContentType(fileName));
+        response.setContentLengthLong(count);
+        if (HttpMethod.HEAD.matches(request.getMethod()) || count == 0) {
+            return;
+        }
+
+        log.trace("Serving {} bytes of {} from position {}", count, fileName,
+                start);
+        if (alluxioFile == null) {
+            sendLocalFile(localFile, start, count, request, response);
+        } else {
+            sendAlluxioFile(fileName, lastModified, length, start, count,
+                    response.getOutputStream());
+        }
+    }
+
+    public void invalidate(String fileName) {
+        if (fileCache != null) {
+            fileCache.invalidate(fileName);
+        }
+    }
+
+    private boolean isRecordingFile(String fileName) {
+        return fileName.endsWith(registryRecordingExtension)
+                || fileName.endsWith(registryPlaylistExtension)
+                || fileName.endsWith(registrySegmentExtension);
+    }
+
+    private String getContentType(String fileName) {
+        // HLS types are not known by MediaTypeFactory
+        if (fileName.endsWith(registryPlaylistExtension)) {
+            return HLS_PLAYLIST_TYPE;
+        }
+        if (fileName.endsWith(registrySegmentExtension)) {
+            return MEDIA_SEGMENT_TYPE;
+        }
+        return MediaTypeFactory.getMediaType(fileName)
+                .orElse(APPLICATION_OCTET_STREAM).toString();
+    }
+
+    private boolean isRangeValid(HttpServletRequest request, String etag,
+            long lastModified) {
+        // With If-Range, the range is ignored if the file has changed
+        String ifRange = request.getHeader(IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader(IF_RANGE) / 1000 == lastModified
+                    / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void sendLocalFile(Path file, long start, long count,
+            HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        if (sendfile
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Sent by the servlet container after the request (end exclusive)
+            request.setAttribute(SENDFILE_FILENAME, file.toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            transfer(channel, start, count, response.getOutputStream());
+        }
+    }
+
+    private void sendAlluxioFile(String fileName, long version, long length,
+            long start, long count, OutputStream outputStream)
+            throws IOException {
+        if (fileCache == null) {
+            // Without cache, each range is read from the beginning of the
+            // file (the Alluxio stream API cannot seek)
+            alluxioService.getFile(fileName, start, count, outputStream);
+            return;
+        }
+        fileCache.transferTo(fileName, version, length, start, count,
+                cacheOutputStream -> alluxioService.getFile(fileName,
+                        cacheOutputStream),
+                (channel, position, bytes) -> transfer(channel, position,
+                        bytes, outputStream));
+    }
+
+    private void transfer(FileChannel channel, long position, long count,
+            OutputStream outputStream) throws IOException {
+        // The servlet output stream is not a file descriptor, so bytes are
+        // copied through a buffer (only sendfile avoids the copy)
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        long transferred = 0;
+        while (transferred < count) {
+            long bytes = channel.transferTo(position + transferred,
+                    count - transferred, target);
+            if (bytes <= 0) {
+                throw new IOException("Unexpected end of file transferring "
+                        + count + " bytes from position " + position);
+            }
+            transferred += bytes;
+        }
+        outputStream.flush();
+    }
+
+}
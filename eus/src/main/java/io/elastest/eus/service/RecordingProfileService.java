@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.round;
+import static java.lang.invoke.MethodHandles.lookup;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.SessionNotCreatedException;
+import io.elastest.eus.json.RecordingProfile;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Recording profiles (fps, CRF, scale, keyframe interval and lossless
+ * capture). The global policy is given by configuration, and each session can
+ * override it with the recordingProfile capability. In adaptive mode, the fps
+ * is lowered when recordings start in a saturated host.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class RecordingProfileService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final int MAX_CRF = 51;
+
+    @Value("${recording.profile.fps}")
+    private int fps;
+
+    @Value("${recording.profile.crf}")
+    private int crf;
+
+    @Value("${recording.profile.scale}")
+    private double scale;
+
+    @Value("${recording.profile.keyframe.interval}")
+    private int keyframeInterval;
+
+    @Value("${recording.profile.lossless}")
+    private boolean lossless;
+
+    @Value("${recording.profile.adaptive}")
+    private boolean adaptive;
+
+    @Value("${recording.profile.adaptive.cpu.threshold}")
+    private double adaptiveCpuThreshold;
+
+    @Value("${recording.profile.adaptive.min.fps}")
+    private int adaptiveMinFps;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public RecordingProfile getDefaultProfile() {
+        return new RecordingProfile(fps, crf, scale, keyframeInterval,
+                lossless);
+    }
+
+    /**
+     * Profile requested by a session. The settings not included in the
+     * request are taken from the global policy.
+     */
+    public RecordingProfile getProfile(JsonNode requestedProfile) {
+        RecordingProfile profile = getDefaultProfile();
+        if (requestedProfile != null && requestedProfile.isObject()) {
+            try {
+                profile = objectMapper.readerForUpdating(profile)
+                        .readValue(requestedProfile);
+            } catch (IOException e) {
+                throw new SessionNotCreatedException(
+                        "Invalid recording profile " + requestedProfile, e);
+            }
+        }
+
+        if (profile.getFps() <= 0 || profile.getCrf() < 0
+                || profile.getCrf() > MAX_CRF || profile.getScale() <= 0
+                || profile.getScale() > 1
+                || profile.getKeyframeInterval() < 0) {
+            throw new SessionNotCreatedException(
+                    "Invalid recording profile " + profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Profile to be used by a recording starting now. In adaptive mode, the
+     * fps is lowered linearly from the requested value (at the CPU threshold)
+     * to the minimum (with the host CPU fully used).
+     */
+    public RecordingProfile adapt(RecordingProfile profile) {
+        RecordingProfile adaptedProfile = new RecordingProfile(profile);
+        if (!adaptive || profile.getFps() <= adaptiveMinFps) {
+            return adaptedProfile;
+        }
+
+        double cpuLoad = getCpuLoad();
+        if (cpuLoad < 0 || cpuLoad < adaptiveCpuThreshold) {
+            return adaptedProfile;
+        }
+        double saturation = adaptiveCpuThreshold >= 1 ? 1
+                : min(1, (cpuLoad - adaptiveCpuThreshold)
+                        / (1 - adaptiveCpuThreshold));
+        int adaptedFps = (int) max(adaptiveMinFps, round(profile.getFps()
+                - saturation * (profile.getFps() - adaptiveMinFps)));
+        if (adaptedFps < profile.getFps()) {
+            log.debug("Host CPU load {}: recording at {} fps instead of {}",
+                    cpuLoad, adaptedFps, profile.getFps());
+            adaptedProfile.setFps(adaptedFps);
+            adaptedProfile.setAdapted(true);
+            Metrics.counter("eus.recording.profile.adapted").increment();
+        }
+        return adaptedProfile;
+    }
+
+    // System CPU load (0 to 1), or a negative value if not available
+    protected double getCpuLoad() {
+        java.lang.management.OperatingSystemMXBean osBean = ManagementFactory
+                .getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) osBean)
+                    .getSystemCpuLoad();
+        }
+        return -1;
+    }
+
+}
@@ -16,25 +16,44 @@
  */
 package io.elastest.eus.service;
 
+import static io.elastest.eus.session.TranscodingJob.LOSSLESS_SUFFIX;
+import static io.elastest.eus.session.TranscodingJob.PRIORITY_HIGH;
+import static io.elastest.eus.session.TranscodingJob.PRIORITY_LOW;
+import static io.elastest.eus.session.TranscodingJob.PRIORITY_NORMAL;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.nio.charset.Charset.defaultCharset;
 import static java.nio.file.Files.readAllBytes;
 import static java.nio.file.Paths.get;
-import static java.util.Arrays.stream;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.stream.Collectors.toList;
-import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
 import static org.slf4j.LoggerFactory.getLogger;
+import static org.springframework.http.HttpStatus.ACCEPTED;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.OK;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -44,9 +63,15 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import io.elastest.eus.EusException;
+import io.elastest.eus.json.RecordingProfile;
 import io.elastest.eus.json.WebSocketRecordedSession;
+import io.elastest.eus.session.RecordingIndex;
+import io.elastest.eus.session.SegmentedRecording;
 import io.elastest.eus.session.SessionInfo;
+import io.elastest.eus.session.TranscodingJob;
 
 /**
  * Service implementation for recording capabilities.
@@ -59,6 +84,10 @@ public class RecordingService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
+    static final String SEGMENTED_RECORDING_MODE = "segmented";
+    static final String DEFERRED_TRANSCODING_MODE = "deferred";
+    static final String ALLUXIO_INDEX_SOURCE = "alluxio";
+
     @Value("${registry.folder}")
     private String registryFolder;
 
@@ -83,12 +112,55 @@ public class RecordingService {
     @Value("${stop.recording.script.filename}")
     private String stopRecordingScript;
 
+    @Value("${transcoding.mode}")
+    private String transcodingMode;
+
     @Value("${container.recording.folder}")
     private String containerRecordingFolder;
 
+    @Value("${registry.index.filename}")
+    private String registryIndexFilename;
+
+    @Value("${ws.dateformat}")
+    private String wsDateFormat;
+
+    @Value("${recording.mode}")
+    private String recordingMode;
+
+    @Value("${recording.segment.seconds}")
+    private int segmentSeconds;
+
+    @Value("${recording.segment.poll.ms}")
+    private long segmentPollMs;
+
+    @Value("${recording.segment.finish.timeout.ms}")
+    private long segmentFinishTimeoutMs;
+
+    @Value("${registry.playlist.extension}")
+    private String registryPlaylistExtension;
+
+    @Value("${registry.segment.extension}")
+    private String registrySegmentExtension;
+
     private DockerService dockerService;
     private JsonService jsonService;
     private AlluxioService alluxioService;
+    private RecordingContentService recordingContentService;
+    private RecordingProfileService recordingProfileService;
+    private TranscodingService transcodingService;
+
+    private RecordingIndex recordingIndex;
+    private FileTime registryFolderScanTime;
+
+    // Segmented recordings being shipped to Alluxio, by container name
+    private final Map<String, SegmentedRecording> segmentedRecordings = new ConcurrentHashMap<>();
+    private ScheduledExecutorService segmentExecutor;
+
+    // Lossless recordings to be transcoded when stopped, by container name
+    private final Map<String, TranscodingJob> pendingTranscodings = new ConcurrentHashMap<>();
+
+    // Deferred transcoding jobs (queued, running or failed), by recording id
+    private final Map<String, TranscodingJob> transcodingJobs = new ConcurrentHashMap<>();
 
     @PostConstruct
     private void postConstruct() {
@@ -99,23 +171,98 @@ public class RecordingService {
         if (!registryFolder.isEmpty() && !registryFolder.endsWith("/")) {
             registryFolder += "/";
         }
+
+        recordingIndex = new RecordingIndex(
+                Paths.get(registryFolder + registryIndexFilename),
+                wsDateFormat);
+        recordingIndex.load();
+
+        // Segments are written by the browser container in the registry
+        // folder, and they are shipped to Alluxio (if available) while
+        // recording
+        if (isSegmented() && !edmAlluxioUrl.isEmpty()) {
+            segmentExecutor = newSingleThreadScheduledExecutor();
+            segmentExecutor.scheduleWithFixedDelay(this::shipSegments,
+                    segmentPollMs, segmentPollMs, MILLISECONDS);
+        }
+
+        if (isDeferredTranscoding()) {
+            recoverTranscodingJobs();
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (segmentExecutor != null) {
+            segmentExecutor.shutdownNow();
+        }
+        recordingIndex.close();
     }
 
     @Autowired
     public RecordingService(DockerService dockerService,
-            JsonService jsonService, AlluxioService alluxioService) {
+            JsonService jsonService, AlluxioService alluxioService,
+            RecordingContentService recordingContentService,
+            RecordingProfileService recordingProfileService,
+            TranscodingService transcodingService) {
         this.dockerService = dockerService;
         this.jsonService = jsonService;
         this.alluxioService = alluxioService;
+        this.recordingContentService = recordingContentService;
+        this.recordingProfileService = recordingProfileService;
+        this.transcodingService = transcodingService;
+    }
+
+    public RecordingProfile getRecordingProfile(JsonNode requestedProfile) {
+        return recordingProfileService.getProfile(requestedProfile);
     }
 
     public void startRecording(String sessionId, String hubContainerName,
             String recordingFileName) throws IOException, InterruptedException {
-        log.debug("Recording session {} in container {} with file name {}",
-                sessionId, hubContainerName, recordingFileName);
+        startRecording(sessionId, hubContainerName, recordingFileName,
+                recordingProfileService.adapt(
+                        recordingProfileService.getDefaultProfile()));
+    }
 
-        dockerService.execCommand(hubContainerName, false, startRecordingScript,
-                "-n", recordingFileName);
+    public void startRecording(String sessionId, String hubContainerName,
+            String recordingFileName, RecordingProfile recordingProfile)
+            throws IOException, InterruptedException {
+        log.debug(
+                "Recording session {} in container {} with file name {} ({})",
+                sessionId, hubContainerName, recordingFileName,
+                recordingProfile);
+
+        List<String> command = new ArrayList<>(asList(startRecordingScript,
+                "-n", recordingFileName));
+        // Lossless recordings are transcoded later in the EUS queue (in the
+        // browser container, it would block the session teardown)
+        if (recordingProfile.isLossless() && !isDeferredTranscoding()) {
+            log.warn("Lossless recording requires deferred transcoding mode");
+            recordingProfile.setLossless(false);
+        }
+        if (isSegmented()) {
+            // Segments are shipped while recording, and so they cannot be
+            // transcoded later
+            if (recordingProfile.isLossless()) {
+                log.warn("Lossless recording not available in segmented mode");
+                recordingProfile.setLossless(false);
+            }
+            command.addAll(asList("-s", String.valueOf(segmentSeconds)));
+        }
+        command.addAll(recordingProfile.toScriptArguments());
+        dockerService.execCommand(hubContainerName, false,
+                command.toArray(new String[command.size()]));
+
+        if (recordingProfile.isLossless()) {
+            pendingTranscodings.put(hubContainerName,
+                    new TranscodingJob(recordingFileName, recordingProfile,
+                            PRIORITY_NORMAL));
+        }
+        if (isSegmented() && !edmAlluxioUrl.isEmpty()) {
+            segmentedRecordings.put(hubContainerName,
+                    new SegmentedRecording(Paths.get(registryFolder),
+                            recordingFileName, registryPlaylistExtension));
+        }
     }
 
     public void startRecording(SessionInfo sessionInfo)
@@ -124,7 +271,16 @@ public class RecordingService {
         String noVncContainerName = sessionInfo.getVncContainerName();
         String recordingFileName = sessionInfo.getIdForFiles();
 
-        this.startRecording(sessionId, noVncContainerName, recordingFileName);
+        // The profile used (maybe adapted to the host load) is stored in the
+        // recording metadata
+        RecordingProfile recordingProfile = recordingProfileService
+                .adapt(sessionInfo.getRecordingProfile() != null
+                        ? sessionInfo.getRecordingProfile()
+                        : recordingProfileService.getDefaultProfile());
+        sessionInfo.setRecordingProfile(recordingProfile);
+
+        this.startRecording(sessionId, noVncContainerName, recordingFileName,
+                recordingProfile);
     }
 
     public void stopRecording(SessionInfo sessionInfo)
@@ -137,6 +293,29 @@ public class RecordingService {
             throws IOException, InterruptedException {
         log.debug("Stopping recording of container {}", hubContainerName);
         dockerService.execCommand(hubContainerName, true, stopRecordingScript);
+
+        SegmentedRecording segmentedRecording = segmentedRecordings
+                .remove(hubContainerName);
+        if (segmentedRecording != null) {
+            finishSegmentedRecording(segmentedRecording);
+        }
+
+        // Lossless recordings are transcoded to the final format later, in
+        // the EUS transcoding queue
+        TranscodingJob transcodingJob = pendingTranscodings
+                .remove(hubContainerName);
+        if (transcodingJob != null) {
+            submitTranscodingJob(transcodingJob);
+        }
+    }
+
+    /**
+     * Transcoding state of a recording, or null if it is not being (or has
+     * not failed) transcoded in the EUS queue.
+     */
+    public TranscodingJob.State getTranscodingState(String id) {
+        TranscodingJob transcodingJob = transcodingJobs.get(id);
+        return transcodingJob != null ? transcodingJob.getState() : null;
     }
 
     public void storeMetadata(SessionInfo sessionInfo) throws IOException {
@@ -167,12 +346,14 @@ public class RecordingService {
             alluxioService.writeFile(metadataFileName,
                     sessionInfoToJson.getBytes());
         }
+        recordingIndex.put(idForFiles, sessionInfo.getBrowserId(),
+                sessionInfoToJson);
     }
 
     public ResponseEntity<String> getRecording(String sessionId)
             throws IOException {
         HttpStatus status = OK;
-        String recordingFileName = sessionId + registryRecordingExtension;
+        String recordingFileName = getRecordingFileName(sessionId);
 
         // By default the response is the local path for the recording (this
         // applies to the case of locally stored, and also to the case that the
@@ -180,12 +361,28 @@ public class RecordingService {
         String urlResponse = contextPath + registryContextPath + "/"
                 + recordingFileName;
 
+        // Recordings being transcoded are reported as accepted (with the URL
+        // that will be available), and they are moved ahead in the queue
+        TranscodingJob transcodingJob = transcodingJobs.get(sessionId);
+        if (transcodingJob != null && transcodingJob.isPending()) {
+            transcodingService.prioritize(transcodingJob, PRIORITY_HIGH);
+            return new ResponseEntity<>(urlResponse, ACCEPTED);
+        }
+        if (transcodingJob != null
+                && transcodingJob.getState() == TranscodingJob.State.FAILED) {
+            return new ResponseEntity<>("Transcoding of recording " + sessionId
+                    + " failed: " + transcodingJob.getError(),
+                    INTERNAL_SERVER_ERROR);
+        }
+
         if (!edmAlluxioUrl.isEmpty()) {
             // If EDM Alluxio is available, recording is store in Alluxio
+            // (served by segments from the registry path, without
+            // downloading it first)
             File targetFile = new File(registryFolder + recordingFileName);
-            if (!targetFile.exists()) {
-                byte[] file = alluxioService.getFile(recordingFileName);
-                writeByteArrayToFile(targetFile, file);
+            if (!targetFile.exists() && alluxioService
+                    .getFileStatus(recordingFileName) == null) {
+                status = NOT_FOUND;
             }
         }
 
@@ -198,21 +395,47 @@ public class RecordingService {
         String recordingFileName = sessionId + registryRecordingExtension;
         String metadataFileName = sessionId + registryMetadataExtension;
 
+        // Lossless recordings not transcoded yet are discarded
+        TranscodingJob transcodingJob = transcodingJobs.remove(sessionId);
+        if (transcodingJob != null) {
+            transcodingService.cancel(transcodingJob);
+        }
+        boolean deleteLossless = Files.deleteIfExists(
+                Paths.get(registryFolder + sessionId + LOSSLESS_SUFFIX));
+
         boolean deleteRecording;
         boolean deleteMetadata;
         if (edmAlluxioUrl.isEmpty()) {
             // If EDM Alluxio is not available, delete is done locally
             deleteRecording = Files.deleteIfExists(
                     Paths.get(registryFolder + recordingFileName));
+            String[] registryFiles = new File(registryFolder).list();
+            if (registryFiles != null) {
+                for (String segmentFile : getSegmentedRecordingFiles(
+                        sessionId, asList(registryFiles))) {
+                    deleteRecording |= Files.deleteIfExists(
+                            Paths.get(registryFolder + segmentFile));
+                }
+            }
             deleteMetadata = Files.deleteIfExists(
                     Paths.get(registryFolder + metadataFileName));
 
         } else {
             // If EDM Alluxio is available, deleting is done in Alluxio
             deleteRecording = alluxioService.deleteFile(recordingFileName);
+            recordingContentService.invalidate(recordingFileName);
+            if (isSegmented()) {
+                for (String segmentFile : getSegmentedRecordingFiles(
+                        sessionId, alluxioService.listFiles("/"))) {
+                    deleteRecording |= alluxioService.deleteFile(segmentFile);
+                    recordingContentService.invalidate(segmentFile);
+                }
+            }
             deleteMetadata = alluxioService.deleteFile(metadataFileName);
 
         }
+        recordingIndex.remove(sessionId);
+        deleteRecording |= deleteLossless;
         HttpStatus status = deleteRecording && deleteMetadata ? OK
                 : INTERNAL_SERVER_ERROR;
         log.debug("... response {}", status);
@@ -220,30 +443,215 @@ public class RecordingService {
     }
 
     public List<String> getStoredMetadataContent() throws IOException {
-        List<String> metadataContent = new ArrayList<>();
+        return getRecordings().stream().map(RecordingIndex.Entry::getMetadata)
+                .collect(toList());
+    }
+
+    public List<RecordingIndex.Entry> getRecordings() throws IOException {
+        return findRecordings(null, null, 0, 0);
+    }
 
+    /**
+     * Recordings served from the index, filtered by browser, browserId and
+     * creation time interval in millis (null or zero values mean no filter).
+     */
+    public List<RecordingIndex.Entry> findRecordings(String browser,
+            String browserId, long fromMillis, long toMillis)
+            throws IOException {
         if (edmAlluxioUrl.isEmpty()) {
-            // If EDM Alluxio is not available, recordings and metadata are
-            // stored locally
-            File[] metadataFiles = new File(registryFolder)
-                    .listFiles((dir, name) -> name.toLowerCase()
-                            .endsWith(registryMetadataExtension));
-            if (metadataFiles != null) {
-                metadataContent = stream(metadataFiles)
-                        .map(this::getLocalFileContent).collect(toList());
+            refreshLocalIndex();
+        } else {
+            loadAlluxioIndex();
+        }
+        return recordingIndex.find(browser, browserId, fromMillis, toMillis);
+    }
+
+    private synchronized void refreshLocalIndex() throws IOException {
+        // Metadata files can be also copied to (or removed from) the registry
+        // folder, and so it is scanned again when modified
+        Path folder = Paths.get(registryFolder);
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        FileTime modifiedTime = Files.getLastModifiedTime(folder);
+        if (modifiedTime.equals(registryFolderScanTime)) {
+            return;
+        }
+        registryFolderScanTime = modifiedTime;
+
+        File[] metadataFiles = folder.toFile()
+                .listFiles((dir, name) -> name.toLowerCase()
+                        .endsWith(registryMetadataExtension));
+        Set<String> ids = new HashSet<>();
+        for (File file : metadataFiles != null ? metadataFiles
+                : new File[0]) {
+            String id = getId(file.getName());
+            ids.add(id);
+            if (!recordingIndex.contains(id)) {
+                recordingIndex.put(id, getBrowserId(id),
+                        getLocalFileContent(file));
+            }
+        }
+        for (String id : recordingIndex.getIds()) {
+            if (!ids.contains(id)) {
+                recordingIndex.remove(id);
             }
+        }
+    }
 
-        } else {
-            // If EDM Alluxio is available, recordings and metadata are stored
-            // in Alluxio
-            List<String> metadataFileList = alluxioService
-                    .getMetadataFileList();
-            metadataContent = metadataFileList.stream()
-                    .map(alluxioService::getFileAsString).collect(toList());
+    private synchronized void loadAlluxioIndex() throws IOException {
+        // The Alluxio listing is read until it is imported successfully once
+        // (recorded in the index log)
+        if (recordingIndex.isImported(ALLUXIO_INDEX_SOURCE)) {
+            return;
+        }
+        for (String metadataFile : alluxioService.getMetadataFileList()) {
+            String id = getId(metadataFile);
+            if (!recordingIndex.contains(id)) {
+                recordingIndex.put(id, getBrowserId(id),
+                        alluxioService.getFileAsString(metadataFile));
+            }
+        }
+        recordingIndex.markImported(ALLUXIO_INDEX_SOURCE);
+    }
 
+    private boolean isDeferredTranscoding() {
+        return DEFERRED_TRANSCODING_MODE.equalsIgnoreCase(transcodingMode);
+    }
+
+    private void submitTranscodingJob(TranscodingJob transcodingJob) {
+        String id = transcodingJob.getId();
+        transcodingJobs.put(id, transcodingJob);
+        transcodingService.submit(transcodingJob).thenAccept(job -> {
+            // Failed jobs are kept to be reported
+            if (job.getState() == TranscodingJob.State.DONE) {
+                transcodingJobs.remove(id, job);
+            }
+        });
+    }
+
+    private void recoverTranscodingJobs() {
+        // Lossless recordings not transcoded before the last shutdown, with
+        // the profile stored in their metadata (if available)
+        String[] registryFiles = new File(registryFolder).list();
+        if (registryFiles == null) {
+            return;
+        }
+        for (String fileName : registryFiles) {
+            if (!fileName.endsWith(LOSSLESS_SUFFIX)) {
+                continue;
+            }
+            String id = fileName.substring(0,
+                    fileName.length() - LOSSLESS_SUFFIX.length());
+            RecordingProfile profile = recordingIndex.getAll().stream()
+                    .filter(entry -> entry.getId().equals(id))
+                    .map(entry -> entry.getRecordedSession()
+                            .getRecordingProfile())
+                    .filter(Objects::nonNull).findFirst()
+                    .orElse(recordingProfileService.getDefaultProfile());
+            log.info("Recovering transcoding of recording {}", id);
+            submitTranscodingJob(
+                    new TranscodingJob(id, profile, PRIORITY_LOW));
         }
+    }
+
+    private boolean isSegmented() {
+        return SEGMENTED_RECORDING_MODE.equalsIgnoreCase(recordingMode);
+    }
+
+    private String getRecordingFileName(String id) {
+        // Segmented recordings are served as HLS playlists
+        if (isSegmented() && !new File(
+                registryFolder + id + registryRecordingExtension).exists()) {
+            return id + registryPlaylistExtension;
+        }
+        return id + registryRecordingExtension;
+    }
+
+    private List<String> getSegmentedRecordingFiles(String id,
+            List<String> fileNames) {
+        // Playlist, initialization segment (id-init.mp4) and media segments
+        // (id-00000.m4s, id-00001.m4s, etc.)
+        Pattern segmentPattern = Pattern.compile(Pattern.quote(id)
+                + "(" + Pattern.quote(registryPlaylistExtension) + "|-init"
+                + Pattern.quote(registryRecordingExtension) + "|-\\d+"
+                + Pattern.quote(registrySegmentExtension) + ")");
+        return fileNames.stream()
+                .filter(fileName -> segmentPattern.matcher(fileName).matches())
+                .collect(toList());
+    }
+
+    private void shipSegments() {
+        for (SegmentedRecording segmentedRecording : segmentedRecordings
+                .values()) {
+            try {
+                shipSegments(segmentedRecording, false);
+            } catch (Exception e) {
+                log.warn("Exception shipping segments of recording {}: {}",
+                        segmentedRecording.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private void shipSegments(SegmentedRecording segmentedRecording,
+            boolean finished) throws IOException {
+        synchronized (segmentedRecording) {
+            for (String segmentFile : segmentedRecording.getPendingFiles()) {
+                if (!alluxioService.writeFile(segmentFile,
+                        segmentedRecording.getFile(segmentFile))) {
+                    throw new IOException(
+                            "Segment " + segmentFile + " not written");
+                }
+                segmentedRecording.shipped(segmentFile);
+                log.trace("Segment {} shipped to Alluxio", segmentFile);
+            }
+
+            // The playlist is shipped once completed (while recording, it is
+            // served from the registry folder)
+            Path playlist = segmentedRecording.getPlaylist();
+            if (finished && segmentedRecording.isPlaylistModified()) {
+                FileTime modifiedTime = Files.getLastModifiedTime(playlist);
+                if (!alluxioService.writeFile(
+                        playlist.getFileName().toString(), playlist)) {
+                    throw new IOException("Playlist " + playlist.getFileName()
+                            + " not written");
+                }
+                segmentedRecording.playlistShipped(modifiedTime);
+            }
+        }
+    }
+
+    private void finishSegmentedRecording(
+            SegmentedRecording segmentedRecording)
+            throws IOException, InterruptedException {
+        // ffmpeg writes the last segment and closes the playlist after
+        // receiving the stop signal
+        long deadline = currentTimeMillis() + segmentFinishTimeoutMs;
+        segmentedRecording.getPendingFiles();
+        while (!segmentedRecording.isFinished()
+                && currentTimeMillis() < deadline) {
+            MILLISECONDS.sleep(min(segmentPollMs, 500));
+            segmentedRecording.getPendingFiles();
+        }
+        if (!segmentedRecording.isFinished()) {
+            log.warn("Playlist of recording {} not completed after {} ms",
+                    segmentedRecording.getName(), segmentFinishTimeoutMs);
+        }
+        shipSegments(segmentedRecording, true);
+        log.debug("Segmented recording {} shipped ({} segments)",
+                segmentedRecording.getName(),
+                segmentedRecording.getShippedFiles().size());
+    }
+
+    private String getId(String metadataFileName) {
+        return metadataFileName.substring(0,
+                metadataFileName.length() - registryMetadataExtension.length());
+    }
 
-        return metadataContent;
+    private String getBrowserId(String id) {
+        // Ids of recordings are browserId_sessionId (or sessionId)
+        int separator = id.lastIndexOf('_');
+        return separator > 0 ? id.substring(0, separator) : null;
     }
 
     private String getLocalFileContent(File file) {
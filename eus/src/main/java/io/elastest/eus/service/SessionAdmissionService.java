@@ -0,0 +1,270 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.sun.management.OperatingSystemMXBean;
+
+import io.elastest.eus.SessionNotCreatedException;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Admission control for browser starts. It limits the number of concurrent
+ * container starts and, optionally, the number of live sessions (fixed or
+ * computed from host CPUs and memory). Requests exceeding these limits wait
+ * in a bounded FIFO queue per tenant, and tenants are served in round robin.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class SessionAdmissionService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String DEFAULT_TENANT = "default";
+
+    @Value("${session.admission.max.starts}")
+    private int maxStarts;
+
+    // 0 means unlimited (or computed, if enabled)
+    @Value("${session.admission.max.live}")
+    private int maxLive;
+
+    @Value("${session.admission.max.live.computed}")
+    private boolean maxLiveComputed;
+
+    @Value("${session.admission.sessions.per.cpu}")
+    private int sessionsPerCpu;
+
+    @Value("${session.admission.memory.per.session.mb}")
+    private long memoryPerSessionMb;
+
+    @Value("${session.admission.queue.size}")
+    private int queueSize;
+
+    @Value("${session.admission.queue.timeout.sec}")
+    private int queueTimeoutSec;
+
+    private int starting = 0;
+    private int live = 0;
+    private int queued = 0;
+    private final Map<String, Deque<CountDownLatch>> tenantQueues =
+            new HashMap<>();
+    private final Deque<String> tenantTurns = new ArrayDeque<>();
+    private final Set<String> admittedContainers = ConcurrentHashMap
+            .newKeySet();
+
+    @PostConstruct
+    public void init() {
+        if (maxLive <= 0) {
+            maxLive = maxLiveComputed ? computeMaxLiveSessions()
+                    : Integer.MAX_VALUE;
+        }
+        log.info("Session admission: {} concurrent starts, {} live sessions",
+                maxStarts, maxLive == Integer.MAX_VALUE ? "unlimited"
+                        : String.valueOf(maxLive));
+
+        Metrics.gauge("eus.session.admission.queue", this,
+                admission -> admission.getQueued());
+        Metrics.gauge("eus.session.admission.starting", this,
+                admission -> admission.getStarting());
+        Metrics.gauge("eus.session.admission.live", this,
+                admission -> admission.getLive());
+    }
+
+    /**
+     * Acquire a start slot (and a live session slot), waiting in the queue of
+     * the tenant if needed. The start slot must be released with
+     * {@link #startFinished(String)}.
+     */
+    public void acquire(String tenant) throws InterruptedException {
+        String queueKey = tenant != null ? tenant : DEFAULT_TENANT;
+        long startTime = nanoTime();
+        CountDownLatch ticket = new CountDownLatch(1);
+        synchronized (this) {
+            if (queued == 0 && hasCapacity()) {
+                starting++;
+                live++;
+                return;
+            }
+            Deque<CountDownLatch> queue = tenantQueues
+                    .computeIfAbsent(queueKey, key -> new ArrayDeque<>());
+            if (queue.size() >= queueSize) {
+                Metrics.counter("eus.session.admission.rejected").increment();
+                throw new SessionNotCreatedException("Queue of " + queueKey
+                        + " is full (" + queueSize + " pending sessions)");
+            }
+            if (queue.isEmpty()) {
+                tenantTurns.addLast(queueKey);
+            }
+            queue.addLast(ticket);
+            queued++;
+            log.debug("Session start of {} queued ({} pending)", queueKey,
+                    queued);
+        }
+
+        try {
+            if (!ticket.await(queueTimeoutSec, SECONDS)) {
+                synchronized (this) {
+                    if (ticket.getCount() > 0) {
+                        removeTicket(queueKey, ticket);
+                        Metrics.counter("eus.session.admission.timeout")
+                                .increment();
+                        throw new SessionNotCreatedException("Timeout of "
+                                + queueTimeoutSec
+                                + " seconds waiting to start a browser");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                if (ticket.getCount() > 0) {
+                    removeTicket(queueKey, ticket);
+                } else {
+                    releaseSlots(true, true);
+                }
+            }
+            throw e;
+        } finally {
+            Metrics.timer("eus.session.admission.wait")
+                    .record(nanoTime() - startTime, NANOSECONDS);
+        }
+    }
+
+    /**
+     * Release the start slot. If the browser has been started, its live
+     * session slot is kept until {@link #release(String)} is called.
+     * Otherwise (null container name) it is released too.
+     */
+    public void startFinished(String hubContainerName) {
+        boolean started = hubContainerName != null;
+        if (started) {
+            admittedContainers.add(hubContainerName);
+        }
+        synchronized (this) {
+            releaseSlots(true, !started);
+        }
+    }
+
+    /**
+     * Release the live session slot of a browser (only once).
+     */
+    public void release(String hubContainerName) {
+        if (hubContainerName != null
+                && admittedContainers.remove(hubContainerName)) {
+            synchronized (this) {
+                releaseSlots(false, true);
+            }
+        }
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized int getStarting() {
+        return starting;
+    }
+
+    public synchronized int getLive() {
+        return live;
+    }
+
+    public int getMaxLive() {
+        return maxLive;
+    }
+
+    private boolean hasCapacity() {
+        return starting < maxStarts && live < maxLive;
+    }
+
+    private void releaseSlots(boolean start, boolean liveSession) {
+        if (start) {
+            starting--;
+        }
+        if (liveSession) {
+            live--;
+        }
+
+        // Grant slots to the queued requests, one tenant at a time
+        while (hasCapacity() && !tenantTurns.isEmpty()) {
+            String tenant = tenantTurns.pollFirst();
+            Deque<CountDownLatch> queue = tenantQueues.get(tenant);
+            CountDownLatch ticket = queue.pollFirst();
+            if (queue.isEmpty()) {
+                tenantQueues.remove(tenant);
+            } else {
+                tenantTurns.addLast(tenant);
+            }
+            queued--;
+            starting++;
+            live++;
+            ticket.countDown();
+        }
+    }
+
+    private void removeTicket(String tenant, CountDownLatch ticket) {
+        Deque<CountDownLatch> queue = tenantQueues.get(tenant);
+        if (queue != null && queue.remove(ticket)) {
+            queued--;
+            if (queue.isEmpty()) {
+                tenantQueues.remove(tenant);
+                tenantTurns.remove(tenant);
+            }
+        }
+    }
+
+    private int computeMaxLiveSessions() {
+        int cpuLimit = Runtime.getRuntime().availableProcessors()
+                * sessionsPerCpu;
+        int memoryLimit = Integer.MAX_VALUE;
+        java.lang.management.OperatingSystemMXBean osBean = ManagementFactory
+                .getOperatingSystemMXBean();
+        if (osBean instanceof OperatingSystemMXBean) {
+            long totalMemoryMb = ((OperatingSystemMXBean) osBean)
+                    .getTotalPhysicalMemorySize() / (1024 * 1024);
+            memoryLimit = (int) min(Integer.MAX_VALUE,
+                    totalMemoryMb / memoryPerSessionMb);
+        }
+        log.debug("Max live sessions by CPU: {}, by memory: {}", cpuLimit,
+                memoryLimit);
+        return max(1, min(cpuLimit, memoryLimit));
+    }
+
+}
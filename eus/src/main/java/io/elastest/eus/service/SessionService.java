@@ -16,13 +16,25 @@
  */
 package io.elastest.eus.service;
 
+import static java.lang.Math.min;
 import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Collections.singletonMap;
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.StringJoiner;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -31,13 +43,23 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import io.elastest.eus.json.WebSocketNewSession;
+import io.elastest.eus.json.WebSocketPage;
 import io.elastest.eus.json.WebSocketRecordedSession;
 import io.elastest.eus.json.WebSocketRemoveSession;
+import io.elastest.eus.json.WebSocketSequencedMessage;
+import io.elastest.eus.json.WebSocketSessionInfoEntry;
+import io.elastest.eus.json.WebSocketUpdates;
+import io.elastest.eus.session.RecordingIndex;
 import io.elastest.eus.session.SessionInfo;
+import io.elastest.eus.session.WebSocketBroadcaster;
+import io.micrometer.core.instrument.Metrics;
 
 /**
- * Session service (WebSocket and session registry).
+ * Session service (WebSocket and session registry). Messages to WebSocket
+ * clients are serialized once and sent asynchronously by a broadcaster.
  *
  * @author Boni Garcia (boni.garcia@urjc.es)
  * @since 0.0.1
@@ -61,18 +83,72 @@ public class SessionService extends TextWebSocketHandler {
     @Value("${registry.metadata.extension}")
     private String registryMetadataExtension;
 
-    private Map<String, WebSocketSession> activeSessions = new ConcurrentHashMap<>();
+    @Value("${ws.broadcast.threads}")
+    private int broadcastThreads;
+
+    @Value("${ws.send.time.limit.ms}")
+    private int sendTimeLimitMs;
+
+    @Value("${ws.send.buffer.limit.bytes}")
+    private int sendBufferLimitBytes;
+
+    @Value("${ws.send.queue.size}")
+    private int sendQueueSize;
+
+    @Value("${ws.protocol.getUpdates}")
+    private String wsProtocolGetUpdates;
+
+    @Value("${ws.protocol.sessions}")
+    private String wsProtocolSessions;
+
+    @Value("${ws.protocol.recordings}")
+    private String wsProtocolRecordings;
+
+    @Value("${ws.protocol.updates}")
+    private String wsProtocolUpdates;
+
+    @Value("${ws.page.size}")
+    private int pageSize;
+
+    @Value("${ws.page.max.size}")
+    private int maxPageSize;
+
+    @Value("${ws.updates.log.size}")
+    private int updatesLogSize;
+
+    private WebSocketBroadcaster broadcaster;
+
+    // Sequence number and last events, for clients resyncing after
+    // reconnection
+    private AtomicLong sequence = new AtomicLong();
+    private Deque<Update> updates = new ArrayDeque<>();
     private Map<String, SessionInfo> sessionRegistry = new ConcurrentHashMap<>();
 
     private DockerService dockerService;
     private JsonService jsonService;
     private RecordingService recordingService;
+    private WebDriverClientService webDriverClientService;
 
     public SessionService(DockerService dockerService, JsonService jsonService,
-            RecordingService recordingService) {
+            RecordingService recordingService,
+            WebDriverClientService webDriverClientService) {
         this.dockerService = dockerService;
         this.jsonService = jsonService;
         this.recordingService = recordingService;
+        this.webDriverClientService = webDriverClientService;
+    }
+
+    @PostConstruct
+    public void init() {
+        broadcaster = new WebSocketBroadcaster(broadcastThreads,
+                sendTimeLimitMs, sendBufferLimitBytes, sendQueueSize);
+        Metrics.gauge("eus.websocket.clients", broadcaster,
+                WebSocketBroadcaster::getClientCount);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        broadcaster.close();
     }
 
     @Override
@@ -82,17 +158,119 @@ public class SessionService extends TextWebSocketHandler {
         String payload = message.getPayload();
         log.debug("Incoming message {} from session {}", payload, sessionId);
 
+        // Requests are answered only to the requester
         if (payload.equalsIgnoreCase(wsProtocolGetSessions)) {
             log.trace("{} received", payload);
-            sendAllSessionsInfoToAllClients();
+            sendAllSessionsInfo(session);
         } else if (payload.equalsIgnoreCase(wsProtocolGetRecordings)) {
             log.trace("{} received", payload);
-            sendAllRecordingsToAllClients();
+            sendAllRecordings(session);
+        } else if (jsonService.isJsonValid(payload)) {
+            handleJsonRequest(session,
+                    jsonService.jsonToObject(payload, JsonNode.class));
         } else {
             log.warn("Non recognized message {}", payload);
         }
     }
 
+    /**
+     * Paginated requests, e.g. {"getSessions":{"cursor":"id","limit":100}},
+     * with optional filters for recordings (browser, browserId, and from/to
+     * creation time in millis),
+     * and updates since a sequence number, e.g. {"getUpdates":{"since":42}}.
+     */
+    private void handleJsonRequest(WebSocketSession session, JsonNode request)
+            throws IOException {
+        if (request.has(wsProtocolGetSessions)) {
+            JsonNode params = request.get(wsProtocolGetSessions);
+            long seq = sequence.get();
+            List<WebSocketSessionInfoEntry> entries = sessionRegistry.values()
+                    .stream().map(WebSocketSessionInfoEntry::new)
+                    .collect(toList());
+            sendTextMessage(session,
+                    jsonService.objectToJson(singletonMap(wsProtocolSessions,
+                            getPage(seq, entries, params))));
+
+        } else if (request.has(wsProtocolGetRecordings)) {
+            JsonNode params = request.get(wsProtocolGetRecordings);
+            long seq = sequence.get();
+            List<WebSocketSessionInfoEntry> entries = recordingService
+                    .findRecordings(params.path("browser").textValue(),
+                            params.path("browserId").textValue(),
+                            params.path("from").asLong(),
+                            params.path("to").asLong())
+                    .stream().map(RecordingIndex.Entry::getRecordedSession)
+                    .collect(toList());
+            sendTextMessage(session,
+                    jsonService.objectToJson(singletonMap(wsProtocolRecordings,
+                            getPage(seq, entries, params))));
+
+        } else if (request.has(wsProtocolGetUpdates)) {
+            long since = request.get(wsProtocolGetUpdates).path("since")
+                    .asLong(-1);
+            sendTextMessage(session, jsonService.objectToJson(
+                    singletonMap(wsProtocolUpdates, getUpdates(since))));
+
+        } else {
+            log.warn("Non recognized request {}", request);
+        }
+    }
+
+    private WebSocketPage getPage(long seq,
+            List<WebSocketSessionInfoEntry> entries, JsonNode params) {
+        String cursor = params.path("cursor").asText("");
+        int limit = params.path("limit").asInt(pageSize);
+        limit = limit > 0 ? min(limit, maxPageSize) : pageSize;
+
+        List<WebSocketSessionInfoEntry> items = entries.stream()
+                .filter(entry -> getCursor(entry).compareTo(cursor) > 0)
+                .sorted(comparing(this::getCursor)).limit(limit + 1L)
+                .collect(toList());
+        String nextCursor = null;
+        if (items.size() > limit) {
+            items = items.subList(0, limit);
+            nextCursor = getCursor(items.get(limit - 1));
+        }
+        return new WebSocketPage(seq, items, nextCursor);
+    }
+
+    private String getCursor(WebSocketSessionInfoEntry entry) {
+        return entry.getId() != null ? entry.getId() : "";
+    }
+
+    private WebSocketUpdates getUpdates(long since) {
+        synchronized (updates) {
+            long seq = sequence.get();
+            long oldestSeq = updates.isEmpty() ? seq + 1
+                    : updates.peekFirst().seq;
+            if (since < 0 || since > seq || since + 1 < oldestSeq) {
+                return new WebSocketUpdates(seq, true, "[]");
+            }
+            StringJoiner messages = new StringJoiner(",", "[", "]");
+            updates.stream().filter(update -> update.seq > since)
+                    .forEach(update -> messages.add(update.message));
+            return new WebSocketUpdates(seq, false, messages.toString());
+        }
+    }
+
+    /**
+     * Assign the next sequence number to an event, keep it for clients
+     * resyncing with getUpdates, and broadcast it.
+     */
+    private void sendEventToAllClients(WebSocketSequencedMessage event)
+            throws IOException {
+        synchronized (updates) {
+            long seq = sequence.incrementAndGet();
+            event.setSeq(seq);
+            String message = jsonService.objectToJson(event);
+            updates.addLast(new Update(seq, message));
+            while (updates.size() > updatesLogSize) {
+                updates.removeFirst();
+            }
+            sendTextMessageToAllClients(message);
+        }
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session)
             throws Exception {
@@ -100,7 +278,7 @@ public class SessionService extends TextWebSocketHandler {
         String sessionId = session.getId();
         log.debug("WebSocket connection {} established", sessionId);
 
-        activeSessions.put(sessionId, session);
+        broadcaster.register(session);
     }
 
     @Override
@@ -110,78 +288,71 @@ public class SessionService extends TextWebSocketHandler {
         String sessionId = session.getId();
         log.debug("WebSocket connection {} closed", sessionId);
 
-        activeSessions.remove(sessionId);
+        broadcaster.unregister(sessionId);
     }
 
-    public void sendTextMessage(WebSocketSession session, String message)
-            throws IOException {
-        TextMessage textMessage = new TextMessage(message);
+    public void sendTextMessage(WebSocketSession session, String message) {
         log.trace("Sending {} to session {}", message, session.getId());
-        session.sendMessage(textMessage);
+        broadcaster.send(session.getId(), new TextMessage(message));
     }
 
-    public void sendAllSessionsInfoToAllClients() throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            for (SessionInfo sessionInfo : sessionRegistry.values()) {
-                WebSocketNewSession newSession = new WebSocketNewSession(
-                        sessionInfo);
-                log.debug("Sending newSession message {} to session {} [all]",
-                        newSession, session);
-                sendTextMessage(session, jsonService.objectToJson(newSession));
-            }
+    public void sendTextMessageToAllClients(String message) {
+        broadcaster.broadcast(new TextMessage(message));
+    }
+
+    public void sendAllSessionsInfo(WebSocketSession session)
+            throws IOException {
+        for (SessionInfo sessionInfo : sessionRegistry.values()) {
+            WebSocketNewSession newSession = new WebSocketNewSession(
+                    sessionInfo);
+            log.debug("Sending newSession message {} to session {} [all]",
+                    newSession, session);
+            sendTextMessage(session, jsonService.objectToJson(newSession));
         }
     }
 
-    public void sendAllRecordingsToAllClients() throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            for (String fileContent : recordingService
-                    .getStoredMetadataContent()) {
-                sendTextMessage(session, fileContent);
-            }
+    public void sendAllRecordings(WebSocketSession session)
+            throws IOException {
+        for (String fileContent : recordingService.getStoredMetadataContent()) {
+            sendTextMessage(session, fileContent);
         }
     }
 
     public void sendRecordingToAllClients(SessionInfo sessionInfo)
             throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            WebSocketRecordedSession recordedSession = new WebSocketRecordedSession(
-                    sessionInfo);
-            log.debug("Sending recording {} to session {}", recordedSession,
-                    session);
-            sendTextMessage(session, jsonService.objectToJson(recordedSession));
-        }
+        WebSocketRecordedSession recordedSession = new WebSocketRecordedSession(
+                sessionInfo);
+        log.debug("Sending recording {} to all sessions", recordedSession);
+        sendEventToAllClients(recordedSession);
     }
 
     public void sendNewSessionToAllClients(SessionInfo sessionInfo)
             throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            WebSocketNewSession newSession = new WebSocketNewSession(
-                    sessionInfo);
-            log.debug("Sending newSession message {} to session {}", newSession,
-                    session);
-            sendTextMessage(session, jsonService.objectToJson(newSession));
-        }
+        WebSocketNewSession newSession = new WebSocketNewSession(sessionInfo);
+        log.debug("Sending newSession message {} to all sessions", newSession);
+        sendEventToAllClients(newSession);
     }
 
     public boolean activeWebSocketSessions() {
-        return !activeSessions.isEmpty();
+        return broadcaster.hasClients();
     }
 
     public void sendRemoveSessionToAllClients(SessionInfo sessionInfo)
             throws IOException {
-        for (WebSocketSession session : activeSessions.values()) {
-            WebSocketRemoveSession removeSession = new WebSocketRemoveSession(
-                    sessionInfo);
-            log.debug("Sending remove session message {} to session {}",
-                    removeSession, session);
-            sendTextMessage(session, jsonService.objectToJson(removeSession));
-        }
+        WebSocketRemoveSession removeSession = new WebSocketRemoveSession(
+                sessionInfo);
+        log.debug("Sending remove session message {} to all sessions",
+                removeSession);
+        sendEventToAllClients(removeSession);
     }
 
     public void removeSession(String sessionId) {
         if (sessionId != null) {
             log.debug("Remove session {}", sessionId);
-            sessionRegistry.remove(sessionId);
+            SessionInfo sessionInfo = sessionRegistry.remove(sessionId);
+            if (sessionInfo != null) {
+                webDriverClientService.evict(sessionInfo.getHubUrl());
+            }
         }
     }
 
@@ -202,6 +373,10 @@ public class SessionService extends TextWebSocketHandler {
     }
 
     public void stopAllContainerOfSession(SessionInfo sessionInfo) {
+        // The HTTP client pool is evicted also here, since sessions that
+        // failed to be created are never put in the registry
+        webDriverClientService.evict(sessionInfo.getHubUrl());
+
         String hubContainerName = sessionInfo.getHubContainerName();
         if (hubContainerName != null) {
             dockerService.stopAndRemoveContainer(hubContainerName);
@@ -213,4 +388,14 @@ public class SessionService extends TextWebSocketHandler {
         }
     }
 
+    private static class Update {
+        final long seq;
+        final String message;
+
+        Update(long seq, String message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
 }
@@ -0,0 +1,349 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.elastest.eus.json.SessionDrainReport;
+import io.elastest.eus.session.SessionInfo;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+
+/**
+ * Staged teardown of closed sessions, off the request path: recording
+ * finalization, metadata, WebSocket notification and container removal.
+ * Each stage is timed and retried, and pending teardowns are drained on
+ * shutdown (see {@link #drain(Collection)} for live sessions).
+ *
+ * @since 0.9.1
+ */
+@Service
+public class SessionTeardownService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String PARALLEL_DRAIN_MODE = "parallel";
+
+    @Value("${session.teardown.threads}")
+    private int teardownThreads;
+
+    @Value("${session.teardown.queue.size}")
+    private int teardownQueueSize;
+
+    @Value("${session.teardown.retries}")
+    private int teardownRetries;
+
+    @Value("${session.teardown.retry.ms}")
+    private long teardownRetryMs;
+
+    @Value("${session.teardown.drain.timeout.sec}")
+    private long drainTimeoutSec;
+
+    @Value("${session.drain.mode}")
+    private String drainMode;
+
+    @Value("${session.drain.threads}")
+    private int drainThreads;
+
+    @Value("${session.drain.deadline.sec}")
+    private long drainDeadlineSec;
+
+    @Value("${session.drain.containers.sec}")
+    private long drainContainersSec;
+
+    @Value("${session.drain.report.ms}")
+    private long drainReportMs;
+
+    @Value("${session.drain.report.file}")
+    private String drainReportFile;
+
+    private ThreadPoolExecutor teardownExecutor;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private RecordingService recordingService;
+    private SessionService sessionService;
+    private SessionAdmissionService sessionAdmissionService;
+    private JsonService jsonService;
+
+    @Autowired
+    public SessionTeardownService(RecordingService recordingService,
+            SessionService sessionService,
+            SessionAdmissionService sessionAdmissionService,
+            JsonService jsonService) {
+        this.recordingService = recordingService;
+        this.sessionService = sessionService;
+        this.sessionAdmissionService = sessionAdmissionService;
+        this.jsonService = jsonService;
+    }
+
+    @PostConstruct
+    public void init() {
+        // When the queue is full (or after shutdown), the teardown is done
+        // in the calling thread
+        teardownExecutor = new ThreadPoolExecutor(teardownThreads,
+                teardownThreads, 60, SECONDS,
+                new ArrayBlockingQueue<>(teardownQueueSize),
+                (task, executor) -> task.run());
+        teardownExecutor.allowCoreThreadTimeOut(true);
+        Metrics.gauge("eus.session.teardown.pending", pending);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        log.info("Draining {} pending session teardowns", pending.get());
+        teardownExecutor.shutdown();
+        try {
+            if (!teardownExecutor.awaitTermination(drainTimeoutSec,
+                    SECONDS)) {
+                log.warn("Timeout of {} seconds draining session teardowns "
+                        + "({} pending)", drainTimeoutSec, pending.get());
+                teardownExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            teardownExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void teardown(SessionInfo sessionInfo) {
+        pending.incrementAndGet();
+        teardownExecutor.execute(() -> {
+            try {
+                runTeardown(sessionInfo);
+            } finally {
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Teardown of the sessions alive on shutdown. In parallel mode, all
+     * recordings are finalized first and then all containers are removed,
+     * with bounded concurrency and a global deadline, writing a progress
+     * report. Otherwise, the sessions are enqueued in the teardown executor
+     * (drained in {@link #cleanUp()}).
+     */
+    public void drain(Collection<SessionInfo> sessions) {
+        if (!PARALLEL_DRAIN_MODE.equalsIgnoreCase(drainMode)) {
+            sessions.forEach(this::teardown);
+            return;
+        }
+
+        long startTime = nanoTime();
+        long deadline = startTime + SECONDS.toNanos(drainDeadlineSec);
+        List<SessionInfo> recordedSessions = sessions.stream()
+                .filter(sessionInfo -> sessionInfo
+                        .getVncContainerName() != null)
+                .collect(toList());
+        SessionDrainReport report = new SessionDrainReport(sessions.size(),
+                recordedSessions.size());
+        Set<SessionInfo> finalizedSessions = ConcurrentHashMap.newKeySet();
+        log.info("Draining {} sessions ({} recordings) with {} threads and "
+                + "a deadline of {} seconds", sessions.size(),
+                recordedSessions.size(), drainThreads, drainDeadlineSec);
+
+        ExecutorService drainExecutor = newFixedThreadPool(drainThreads);
+        ScheduledExecutorService reportExecutor = newSingleThreadScheduledExecutor();
+        reportExecutor.scheduleAtFixedRate(
+                () -> writeReport(report, startTime), drainReportMs,
+                drainReportMs, MILLISECONDS);
+        try {
+            // Recordings are finalized before removing any container, keeping
+            // time until the deadline to remove the containers
+            runPhase(drainExecutor, recordedSessions.stream()
+                    .map(sessionInfo -> (Callable<Void>) () -> {
+                        boolean recorded = finalizeRecording(sessionInfo);
+                        if (recorded) {
+                            finalizedSessions.add(sessionInfo);
+                        }
+                        report.recordingFinalized(recorded,
+                                sessionInfo.getSessionId());
+                        return null;
+                    }).collect(toList()),
+                    deadline - SECONDS.toNanos(drainContainersSec));
+
+            report.setPhase("containers");
+            runPhase(drainExecutor, sessions.stream()
+                    .map(sessionInfo -> (Callable<Void>) () -> {
+                        report.sessionRemoved(notifyAndRemove(sessionInfo,
+                                finalizedSessions.contains(sessionInfo)),
+                                sessionInfo.getSessionId());
+                        return null;
+                    }).collect(toList()), deadline);
+            report.setPhase("done");
+
+        } finally {
+            drainExecutor.shutdownNow();
+            reportExecutor.shutdownNow();
+            writeReport(report, startTime);
+        }
+    }
+
+    private void runTeardown(SessionInfo sessionInfo) {
+        long startTime = nanoTime();
+        try {
+            boolean recorded = sessionInfo.getVncContainerName() != null
+                    && finalizeRecording(sessionInfo);
+            notifyAndRemove(sessionInfo, recorded);
+        } finally {
+            Metrics.timer("eus.session.teardown").record(nanoTime() - startTime,
+                    NANOSECONDS);
+        }
+    }
+
+    // Recording metadata is only stored for finalized recordings
+    private boolean finalizeRecording(SessionInfo sessionInfo) {
+        return runStage("recording", sessionInfo,
+                () -> recordingService.stopRecording(sessionInfo))
+                && runStage("metadata", sessionInfo,
+                        () -> recordingService.storeMetadata(sessionInfo));
+    }
+
+    private boolean notifyAndRemove(SessionInfo sessionInfo,
+            boolean recorded) {
+        try {
+            runStage("notify", sessionInfo, () -> {
+                if (recorded) {
+                    sessionService.sendRecordingToAllClients(sessionInfo);
+                }
+                if (!sessionInfo.isLiveSession()) {
+                    sessionService.sendRemoveSessionToAllClients(sessionInfo);
+                }
+            });
+
+            return runStage("containers", sessionInfo,
+                    () -> sessionService.stopAllContainerOfSession(sessionInfo));
+        } finally {
+            sessionAdmissionService
+                    .release(sessionInfo.getHubContainerName());
+        }
+    }
+
+    private void runPhase(ExecutorService executor,
+            List<Callable<Void>> tasks, long deadline) {
+        try {
+            // Tasks not completed before the deadline are cancelled
+            executor.invokeAll(tasks, max(0, deadline - nanoTime()),
+                    NANOSECONDS);
+        } catch (InterruptedException e) {
+            log.warn("Drain of sessions interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeReport(SessionDrainReport report, long startTime) {
+        report.setElapsedMs(NANOSECONDS.toMillis(nanoTime() - startTime));
+        log.info("Drain progress: {}", report);
+        if (!drainReportFile.isEmpty()) {
+            try {
+                Path reportPath = Paths.get(drainReportFile);
+                Files.createDirectories(reportPath.toAbsolutePath().getParent());
+                Files.write(reportPath,
+                        jsonService.objectToJson(report).getBytes(UTF_8));
+            } catch (IOException e) {
+                log.warn("Exception writing drain report {}: {}",
+                        drainReportFile, e.getMessage());
+            }
+        }
+    }
+
+    private boolean runStage(String stage, SessionInfo sessionInfo,
+            TeardownStage teardownStage) {
+        for (int attempt = 0;; attempt++) {
+            long startTime = nanoTime();
+            try {
+                teardownStage.run();
+                long elapsed = nanoTime() - startTime;
+                Metrics.timer("eus.session.teardown.stage",
+                        singletonList(Tag.of("stage", stage)))
+                        .record(elapsed, NANOSECONDS);
+                log.debug("Teardown stage {} of session {} done in {} ms",
+                        stage, sessionInfo.getSessionId(),
+                        NANOSECONDS.toMillis(elapsed));
+                return true;
+
+            } catch (InterruptedException e) {
+                log.warn("Teardown stage {} of session {} interrupted", stage,
+                        sessionInfo.getSessionId());
+                Thread.currentThread().interrupt();
+                return false;
+
+            } catch (Exception e) {
+                if (attempt >= teardownRetries) {
+                    log.error("Teardown stage {} of session {} failed", stage,
+                            sessionInfo.getSessionId(), e);
+                    Metrics.counter("eus.session.teardown.failed",
+                            singletonList(Tag.of("stage", stage)))
+                            .increment();
+                    return false;
+                }
+                log.debug("Retrying teardown stage {} of session {}: {}",
+                        stage, sessionInfo.getSessionId(), e.getMessage());
+                try {
+                    MILLISECONDS.sleep(teardownRetryMs << attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface TeardownStage {
+        void run() throws Exception;
+    }
+
+}
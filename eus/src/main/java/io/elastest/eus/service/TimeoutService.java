@@ -16,33 +16,51 @@
  */
 package io.elastest.eus.service;
 
-import static java.lang.Thread.sleep;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.invoke.MethodHandles.lookup;
 import static java.util.concurrent.Executors.newScheduledThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.websocket.ContainerProvider;
+import javax.websocket.WebSocketContainer;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
 
+import io.elastest.eus.EusException;
 import io.elastest.eus.json.WebDriverLog;
+import io.elastest.eus.logstash.DevToolsLogCapture;
 import io.elastest.eus.session.SessionInfo;
 
 /**
- * Service for timeout.
+ * Service for timeout. Session inactivity timeouts are handled with a hashed
+ * wheel timer: commands only update the last activity timestamp of the
+ * session, each wheel tick evicts the expired sessions of a bucket (sessions
+ * still active are moved to the bucket of their new deadline), and expired
+ * sessions are closed and enqueued for teardown (see SessionTeardownService).
  *
  * @author Boni Garcia (boni.garcia@urjc.es)
  * @since 0.5.0-alpha2
@@ -52,16 +70,40 @@ public class TimeoutService {
 
     final Logger log = getLogger(lookup().lookupClass());
 
-    @Value("${log.executor.size}")
-    private int logExecutorSize;
+    @Value("${log.poll.threads}")
+    private int logPollThreads;
 
     @Value("${log.poll.ms}")
     private int logPollMs;
 
-    private Map<String, Future<?>> logFutureMap;
-    private ExecutorService logExecutor;
-    private ScheduledExecutorService timeoutExecutor = newScheduledThreadPool(
-            1);
+    @Value("${log.poll.max.ms}")
+    private int logPollMaxMs;
+
+    @Value("${log.poll.timeout.ms}")
+    private int logPollTimeoutMs;
+
+    @Value("${browser.devtools.max.message.bytes}")
+    private int devToolsMaxMessageBytes;
+
+    @Value("${session.timeout.tick.ms}")
+    private long timeoutTickMs;
+
+    @Value("${session.timeout.wheel.size}")
+    private int timeoutWheelSize;
+
+    private Map<String, LogMonitor> logMonitors = new ConcurrentHashMap<>();
+    private ScheduledExecutorService logExecutor;
+    private RestTemplate logRestTemplate;
+    private Map<String, DevToolsLogCapture> devToolsCaptures = new ConcurrentHashMap<>();
+    private WebSocketClient devToolsClient;
+
+    private ScheduledExecutorService timeoutExecutor;
+    private Map<SessionInfo, TimeoutEntry> timeoutEntries = new ConcurrentHashMap<>();
+    private Queue<TimeoutEntry> pendingTimeoutEntries = new ConcurrentLinkedQueue<>();
+
+    // Wheel buckets and current tick, only accessed by the timeout thread
+    private ArrayDeque<TimeoutEntry>[] timeoutWheel;
+    private long timeoutTick = 0;
 
     private LogstashService logstashService;
 
@@ -71,67 +113,278 @@ public class TimeoutService {
     }
 
     @PostConstruct
+    @SuppressWarnings("unchecked")
     public void init() {
-        logExecutor = Executors.newFixedThreadPool(logExecutorSize);
-        logFutureMap = new HashMap<>(logExecutorSize);
+        // Log polling of all sessions is multiplexed over a few threads
+        logExecutor = newScheduledThreadPool(logPollThreads);
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(logPollTimeoutMs);
+        requestFactory.setReadTimeout(logPollTimeoutMs);
+        logRestTemplate = new RestTemplate(requestFactory);
+
+        timeoutWheel = new ArrayDeque[timeoutWheelSize];
+        for (int i = 0; i < timeoutWheelSize; i++) {
+            timeoutWheel[i] = new ArrayDeque<>();
+        }
+        timeoutExecutor = newSingleThreadScheduledExecutor();
+        timeoutExecutor.scheduleAtFixedRate(this::timeoutWheelTick,
+                timeoutTickMs, timeoutTickMs, MILLISECONDS);
     }
 
     @PreDestroy
     public void cleanUp() {
-        logExecutor.shutdown();
+        logExecutor.shutdownNow();
+        devToolsCaptures.values().forEach(DevToolsLogCapture::stop);
+        timeoutExecutor.shutdownNow();
     }
 
     public void launchLogMonitor(String postUrl, String sessionId) {
-        if (!logFutureMap.containsKey(sessionId)) {
+        LogMonitor logMonitor = new LogMonitor(postUrl, sessionId);
+        if (logMonitors.putIfAbsent(sessionId, logMonitor) == null) {
             log.info("Launching log monitor using URL {}", postUrl);
-            logFutureMap.put(sessionId, logExecutor.submit(() -> {
-                RestTemplate restTemplate = new RestTemplate();
-                while (true) {
-                    try {
-                        WebDriverLog response = restTemplate.postForEntity(
-                                postUrl, "{\"type\":\"browser\"} ",
-                                WebDriverLog.class).getBody();
-                        if (!response.getValue().isEmpty()) {
-                            String jsonMessages = logstashService
-                                    .getJsonMessageFromValueList(
-                                            response.getValue());
-                            logstashService.sendBrowserConsoleToLogstash(
-                                    jsonMessages, sessionId);
-                        }
-                        sleep(logPollMs);
-
-                    } catch (Exception e) {
-                        log.trace("Termimating log monitor due to {}",
-                                e.getMessage());
-                        break;
+            logMonitor.schedule(logPollMs);
+        }
+    }
+
+    /**
+     * Capture the browser log of a session with DevTools, falling back to
+     * polling with the WebDriver log endpoint (postUrl) if DevTools is not
+     * available (null URL) or fails.
+     */
+    public void launchLogMonitor(String postUrl, String sessionId,
+            String devToolsUrl) {
+        if (devToolsUrl == null) {
+            launchLogMonitor(postUrl, sessionId);
+            return;
+        }
+        DevToolsLogCapture devToolsCapture = new DevToolsLogCapture(
+                devToolsUrl, sessionId,
+                values -> logstashService.sendBrowserConsoleToLogstash(values,
+                        sessionId),
+                capture -> {
+                    if (devToolsCaptures.remove(sessionId, capture)) {
+                        log.info("DevTools log capture of session {} not "
+                                + "available, using polling", sessionId);
+                        launchLogMonitor(postUrl, sessionId);
                     }
-                }
-            }));
+                });
+        if (devToolsCaptures.putIfAbsent(sessionId, devToolsCapture) == null) {
+            // The page is looked up (HTTP) out of the request thread
+            logExecutor.execute(() -> devToolsCapture.start(logRestTemplate,
+                    getDevToolsClient()));
+        }
+    }
+
+    public void stopLogMonitor(String sessionId) {
+        if (sessionId != null) {
+            DevToolsLogCapture capture = devToolsCaptures.remove(sessionId);
+            if (capture != null) {
+                capture.stop();
+            }
+            LogMonitor logMonitor = logMonitors.remove(sessionId);
+            if (logMonitor != null) {
+                log.trace("Stopping log monitor of session {}", sessionId);
+                logMonitor.cancel();
+            }
+        }
+    }
+
+    public int getLogMonitorCount() {
+        return logMonitors.size() + devToolsCaptures.size();
+    }
+
+    private synchronized WebSocketClient getDevToolsClient() {
+        if (devToolsClient == null) {
+            WebSocketContainer container = ContainerProvider
+                    .getWebSocketContainer();
+            container.setDefaultMaxTextMessageBufferSize(
+                    devToolsMaxMessageBytes);
+            devToolsClient = new StandardWebSocketClient(container);
         }
+        return devToolsClient;
     }
 
     public void startSessionTimer(SessionInfo sessionInfo, int timeout,
             Runnable deleteSession) {
         if (sessionInfo != null) {
-            Future<?> timeoutFuture = timeoutExecutor.schedule(deleteSession,
-                    timeout, SECONDS);
-            sessionInfo.addTimeoutFuture(timeoutFuture);
             sessionInfo.setTimeout(timeout);
-            log.trace("Starting timer in session {} (future {}) ({} seconds)",
-                    sessionInfo.getSessionId(), timeoutFuture, timeout);
+            touchSession(sessionInfo);
+            TimeoutEntry timeoutEntry = new TimeoutEntry(sessionInfo,
+                    deleteSession);
+            if (timeoutEntries.putIfAbsent(sessionInfo, timeoutEntry) == null) {
+                pendingTimeoutEntries.add(timeoutEntry);
+                log.trace("Starting timer in session {} ({} seconds)",
+                        sessionInfo.getSessionId(), timeout);
+            }
+        }
+    }
+
+    public void touchSession(SessionInfo sessionInfo) {
+        if (sessionInfo != null) {
+            sessionInfo.setLastActivity(currentTimeMillis());
         }
     }
 
     public void shutdownSessionTimer(SessionInfo sessionInfo) {
         if (sessionInfo != null) {
-            sessionInfo.getTimeoutFutures().forEach(timeoutFuture -> {
-                if (timeoutFuture != null) {
-                    timeoutFuture.cancel(true);
-                    log.trace("Canceling timer in session {} (future {}) ",
-                            sessionInfo.getSessionId(), timeoutFuture);
+            TimeoutEntry timeoutEntry = timeoutEntries.remove(sessionInfo);
+            if (timeoutEntry != null) {
+                // Lazily removed from the wheel in the next visit
+                timeoutEntry.cancelled = true;
+                log.trace("Canceling timer in session {}",
+                        sessionInfo.getSessionId());
+            }
+        }
+    }
+
+    private void timeoutWheelTick() {
+        try {
+            long now = currentTimeMillis();
+            TimeoutEntry timeoutEntry;
+            while ((timeoutEntry = pendingTimeoutEntries.poll()) != null) {
+                scheduleTimeoutEntry(timeoutEntry, now);
+            }
+
+            ArrayDeque<TimeoutEntry> bucket = timeoutWheel[(int) (timeoutTick
+                    % timeoutWheelSize)];
+            for (int i = bucket.size(); i > 0; i--) {
+                timeoutEntry = bucket.pollFirst();
+                if (timeoutEntry.cancelled) {
+                    continue;
                 }
-            });
-            sessionInfo.getTimeoutFutures().clear();
+                if (timeoutEntry.getDeadline() <= now) {
+                    expireTimeoutEntry(timeoutEntry);
+                } else {
+                    scheduleTimeoutEntry(timeoutEntry, now);
+                }
+            }
+            timeoutTick++;
+
+        } catch (Exception e) {
+            log.warn("Exception in session timeout tick", e);
+        }
+    }
+
+    private void scheduleTimeoutEntry(TimeoutEntry timeoutEntry, long now) {
+        long ticks = max(1, (timeoutEntry.getDeadline() - now + timeoutTickMs
+                - 1) / timeoutTickMs);
+        // Deadlines beyond a wheel revolution are visited (and rescheduled)
+        // once per revolution
+        ticks = min(ticks, timeoutWheelSize);
+        timeoutWheel[(int) ((timeoutTick + ticks) % timeoutWheelSize)]
+                .addLast(timeoutEntry);
+    }
+
+    private void expireTimeoutEntry(TimeoutEntry timeoutEntry) {
+        SessionInfo sessionInfo = timeoutEntry.sessionInfo;
+        if (timeoutEntries.remove(sessionInfo, timeoutEntry)) {
+            log.debug("Session {} expired ({} seconds of inactivity)",
+                    sessionInfo.getSessionId(), sessionInfo.getTimeout());
+            // The session is only closed here, since its teardown is
+            // enqueued in a bounded executor
+            try {
+                timeoutEntry.deleteSession.run();
+            } catch (EusException e) {
+                log.debug("Session {} deleted: {}",
+                        sessionInfo.getSessionId(), e.getMessage());
+            } catch (Exception e) {
+                log.warn("Exception deleting expired session {}",
+                        sessionInfo.getSessionId(), e);
+            }
+        }
+    }
+
+    /**
+     * Browser console log polling of a session. The poll interval is doubled
+     * (up to log.poll.max.ms) while there are no new logs, and it is reset to
+     * log.poll.ms when logs are received.
+     */
+    private class LogMonitor implements Runnable {
+        final String postUrl;
+        final String sessionId;
+        int pollMs = logPollMs;
+        volatile Future<?> future;
+        volatile boolean cancelled = false;
+
+        LogMonitor(String postUrl, String sessionId) {
+            this.postUrl = postUrl;
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                WebDriverLog response = logRestTemplate
+                        .postForEntity(postUrl, "{\"type\":\"browser\"} ",
+                                WebDriverLog.class)
+                        .getBody();
+                if (response.getValue() != null
+                        && !response.getValue().isEmpty()) {
+                    logstashService.sendBrowserConsoleToLogstash(
+                            response.getValue(), sessionId);
+                    pollMs = logPollMs;
+                } else {
+                    pollMs = min(pollMs * 2, logPollMaxMs);
+                }
+                schedule(pollMs);
+
+            } catch (HttpStatusCodeException e) {
+                if (isSessionGone(e)) {
+                    log.trace("Terminating log monitor of session {} due to {}",
+                            sessionId, e.getMessage());
+                    logMonitors.remove(sessionId, this);
+                } else {
+                    retry(e);
+                }
+            } catch (Exception e) {
+                retry(e);
+            }
+        }
+
+        // Transient errors (e.g. timeouts or the browser busy) do not stop
+        // the monitor, which is stopped with the session
+        void retry(Exception e) {
+            pollMs = min(pollMs * 2, logPollMaxMs);
+            log.debug("Exception reading log of session {} ({}), trying "
+                    + "again in {} ms", sessionId, e.getMessage(), pollMs);
+            schedule(pollMs);
+        }
+
+        boolean isSessionGone(HttpStatusCodeException e) {
+            String body = e.getResponseBodyAsString();
+            return e.getStatusCode() == NOT_FOUND
+                    || body.contains("no such session")
+                    || body.contains("invalid session id");
+        }
+
+        void schedule(long delayMs) {
+            if (!cancelled && !logExecutor.isShutdown()) {
+                future = logExecutor.schedule(this, delayMs, MILLISECONDS);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            Future<?> currentFuture = future;
+            if (currentFuture != null) {
+                currentFuture.cancel(false);
+            }
+        }
+    }
+
+    private static class TimeoutEntry {
+        final SessionInfo sessionInfo;
+        final Runnable deleteSession;
+        volatile boolean cancelled = false;
+
+        TimeoutEntry(SessionInfo sessionInfo, Runnable deleteSession) {
+            this.sessionInfo = sessionInfo;
+            this.deleteSession = deleteSession;
+        }
+
+        long getDeadline() {
+            return sessionInfo.getLastActivity()
+                    + SECONDS.toMillis(sessionInfo.getTimeout());
         }
     }
 
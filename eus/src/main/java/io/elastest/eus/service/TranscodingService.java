@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.System.nanoTime;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.elastest.eus.json.RecordingProfile;
+import io.elastest.eus.session.TranscodingJob;
+import io.elastest.eus.session.TranscodingJob.State;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Deferred transcoding of lossless recordings. Jobs are queued by priority
+ * and run with ffmpeg (at low CPU priority by default) in a bounded worker
+ * pool, so that live sessions keep their CPU.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class TranscodingService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${transcoding.threads}")
+    private int transcodingThreads;
+
+    @Value("${transcoding.command}")
+    private String transcodingCommand;
+
+    @Value("${transcoding.timeout.sec}")
+    private long transcodingTimeoutSec;
+
+    @Value("${registry.folder}")
+    private String registryFolder;
+
+    @Value("${registry.recording.extension}")
+    private String registryRecordingExtension;
+
+    private ThreadPoolExecutor executor;
+    private final Map<String, Task> queuedTasks = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolExecutor(transcodingThreads,
+                transcodingThreads, 60, SECONDS,
+                new PriorityBlockingQueue<>());
+        Metrics.gauge("eus.recording.transcoding.queue", queuedTasks,
+                Map::size);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        // Running ffmpeg processes are destroyed, and queued jobs are
+        // recovered on the next start
+        executor.shutdownNow();
+    }
+
+    public CompletableFuture<TranscodingJob> submit(TranscodingJob job) {
+        Task task = new Task(job);
+        queuedTasks.put(job.getId(), task);
+        log.debug("Transcoding job queued: {}", job);
+        executor.execute(task);
+        return task.future;
+    }
+
+    /**
+     * Move a queued job ahead of the jobs with lower priority.
+     */
+    public void prioritize(TranscodingJob job, int priority) {
+        Task task = queuedTasks.get(job.getId());
+        if (task != null && job.getPriority() < priority) {
+            synchronized (task) {
+                // Re-inserted since the position in the queue depends on the
+                // priority
+                if (executor.getQueue().remove(task)) {
+                    job.setPriority(priority);
+                    executor.getQueue().offer(task);
+                    log.debug("Transcoding job prioritized: {}", job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel a queued job (running jobs are not interrupted).
+     */
+    public boolean cancel(TranscodingJob job) {
+        Task task = queuedTasks.remove(job.getId());
+        return task != null && executor.remove(task);
+    }
+
+    public List<String> getCommand(RecordingProfile profile, Path input,
+            Path output) {
+        List<String> command = new ArrayList<>(
+                asList(transcodingCommand.trim().split("\\s+")));
+        command.addAll(asList("-y", "-i", input.toString(), "-c:a", "copy",
+                "-c:v", "libx264", "-preset", "medium", "-crf",
+                String.valueOf(profile.getCrf())));
+        if (profile.getKeyframeInterval() > 0) {
+            command.addAll(asList("-g",
+                    String.valueOf(profile.getKeyframeInterval())));
+        }
+        if (profile.getScale() < 1) {
+            command.addAll(asList("-filter:v",
+                    "scale=trunc(iw*" + profile.getScale() + "/2)*2:trunc(ih*"
+                            + profile.getScale() + "/2)*2"));
+        }
+        command.addAll(asList("-pix_fmt", "yuv420p", "-movflags", "+faststart",
+                "-f", registryRecordingExtension.substring(1),
+                output.toString()));
+        return command;
+    }
+
+    protected void transcode(TranscodingJob job)
+            throws IOException, InterruptedException {
+        Path input = Paths.get(registryFolder, job.getInputFileName());
+        Path output = Paths.get(registryFolder,
+                job.getId() + registryRecordingExtension);
+        // The recording is published once completed, and the ffmpeg output
+        // is kept only if the transcoding fails
+        Path partialOutput = Paths.get(registryFolder,
+                "." + job.getId() + registryRecordingExtension + ".part");
+        Path logFile = Paths.get(registryFolder,
+                "." + job.getId() + ".transcoding.log");
+
+        Process process = new ProcessBuilder(
+                getCommand(job.getProfile(), input, partialOutput))
+                        .redirectErrorStream(true)
+                        .redirectOutput(logFile.toFile()).start();
+        try {
+            if (!process.waitFor(transcodingTimeoutSec, SECONDS)) {
+                throw new IOException("Timeout of " + transcodingTimeoutSec
+                        + " seconds transcoding " + input);
+            }
+        } finally {
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("Exit code " + process.exitValue()
+                    + " transcoding " + input + " (see " + logFile + ")");
+        }
+
+        // The recording may have been deleted while transcoding
+        if (!Files.exists(input)) {
+            Files.deleteIfExists(partialOutput);
+            throw new IOException("Recording " + input + " deleted");
+        }
+        Files.move(partialOutput, output, ATOMIC_MOVE, REPLACE_EXISTING);
+        Files.delete(input);
+        Files.deleteIfExists(logFile);
+    }
+
+    class Task implements Runnable, Comparable<Task> {
+        final TranscodingJob job;
+        final CompletableFuture<TranscodingJob> future = new CompletableFuture<>();
+
+        Task(TranscodingJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                queuedTasks.remove(job.getId(), this);
+                job.setState(State.RUNNING);
+            }
+            long startTime = nanoTime();
+            try {
+                transcode(job);
+                job.setState(State.DONE);
+                log.debug("Transcoding job finished: {}", job);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                job.setError(e.getMessage());
+                job.setState(State.FAILED);
+            } catch (Exception e) {
+                log.warn("Exception in transcoding job {}: {}", job.getId(),
+                        e.getMessage());
+                job.setError(e.getMessage());
+                job.setState(State.FAILED);
+                Metrics.counter("eus.recording.transcoding.failed")
+                        .increment();
+            } finally {
+                Metrics.timer("eus.recording.transcoding")
+                        .record(nanoTime() - startTime, NANOSECONDS);
+                future.complete(job);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return job.compareTo(other.job);
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Pooled HTTP clients used to proxy W3C WebDriver commands to browsers. A
+ * keep-alive connection pool is kept for each hub URL, shared by a
+ * create-session and a command timeout profile. Pools are created by create
+ * session requests and evicted when the session is removed, and they are
+ * closed once the requests in flight (leases) have finished.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class WebDriverClientService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    @Value("${create.session.timeout.sec}")
+    private int createSessionTimeoutSec;
+
+    @Value("${webdriver.client.max.connections.per.route}")
+    private int maxConnectionsPerRoute;
+
+    @Value("${webdriver.client.connect.timeout.ms}")
+    private int connectTimeoutMs;
+
+    @Value("${webdriver.client.command.timeout.sec}")
+    private int commandTimeoutSec;
+
+    @Value("${webdriver.client.connection.ttl.sec}")
+    private int connectionTtlSec;
+
+    @Value("${webdriver.client.validate.after.inactivity.ms}")
+    private int validateAfterInactivityMs;
+
+    private Map<String, HubClient> hubClients = new ConcurrentHashMap<>();
+
+    @PreDestroy
+    public void cleanUp() {
+        hubClients.keySet().forEach(this::evict);
+    }
+
+    /**
+     * Lease the HTTP client of a hub, to be closed when the request (including
+     * its response body) has been handled. Requests to hubs without pool
+     * (e.g. commands of a removed session) use a transient client, closed
+     * with the lease, instead of creating a new pool.
+     *
+     * @param createPool
+     *            true for create session requests
+     */
+    public Lease acquire(String hubUrl, boolean createPool) {
+        while (true) {
+            HubClient hubClient = createPool
+                    ? hubClients.computeIfAbsent(hubUrl, HubClient::new)
+                    : hubClients.get(hubUrl);
+            if (hubClient == null) {
+                log.debug("Using transient HTTP client for {}", hubUrl);
+                HubClient transientClient = new HubClient(hubUrl);
+                transientClient.acquire();
+                transientClient.evict();
+                return new Lease(transientClient);
+            }
+            if (hubClient.acquire()) {
+                return new Lease(hubClient);
+            }
+            // Evicted concurrently, and so it is looked up again
+        }
+    }
+
+    public void evict(String hubUrl) {
+        if (hubUrl == null) {
+            return;
+        }
+        HubClient hubClient = hubClients.remove(hubUrl);
+        if (hubClient != null) {
+            log.debug("Evicting HTTP client pool of {}", hubUrl);
+            hubClient.evict();
+        }
+    }
+
+    public int getPoolCount() {
+        return hubClients.size();
+    }
+
+    public class Lease implements AutoCloseable {
+        private final HubClient hubClient;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Lease(HubClient hubClient) {
+            this.hubClient = hubClient;
+        }
+
+        public RestTemplate getCreateSessionTemplate() {
+            return hubClient.createSessionTemplate;
+        }
+
+        public RestTemplate getCommandTemplate() {
+            return hubClient.commandTemplate;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                hubClient.release();
+            }
+        }
+    }
+
+    private class HubClient {
+        final PoolingHttpClientConnectionManager connectionManager;
+        final CloseableHttpClient httpClient;
+        final RestTemplate createSessionTemplate;
+        final RestTemplate commandTemplate;
+
+        // Guarded by this
+        int leases = 0;
+        boolean evicted = false;
+
+        HubClient(String hubUrl) {
+            log.debug("Creating HTTP client pool for {} ({} connections)",
+                    hubUrl, maxConnectionsPerRoute);
+            connectionManager = new PoolingHttpClientConnectionManager(
+                    connectionTtlSec, SECONDS);
+            connectionManager.setMaxTotal(maxConnectionsPerRoute);
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager
+                    .setValidateAfterInactivity(validateAfterInactivityMs);
+
+            httpClient = HttpClientBuilder.create().useSystemProperties()
+                    .setConnectionManager(connectionManager).build();
+
+            int createSessionTimeoutMs = (int) SECONDS
+                    .toMillis(createSessionTimeoutSec);
+            createSessionTemplate = new RestTemplate(requestFactory(
+                    createSessionTimeoutMs, createSessionTimeoutMs));
+
+            // A command timeout of 0 means no read timeout (e.g. long
+            // executeAsyncScript commands)
+            commandTemplate = new RestTemplate(requestFactory(connectTimeoutMs,
+                    (int) SECONDS.toMillis(commandTimeoutSec)));
+        }
+
+        private HttpComponentsClientHttpRequestFactory requestFactory(
+                int connectTimeout, int readTimeout) {
+            HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(
+                    httpClient);
+            requestFactory.setConnectTimeout(connectTimeout);
+            requestFactory.setConnectionRequestTimeout(connectTimeout);
+            requestFactory.setReadTimeout(readTimeout);
+            return requestFactory;
+        }
+
+        synchronized boolean acquire() {
+            if (evicted) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            if (evicted && leases == 0) {
+                close();
+            }
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            if (leases == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Exception closing HTTP client pool {}",
+                        e.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.service;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import io.elastest.eus.EusException;
+import io.elastest.eus.SessionNotCreatedException;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+
+/**
+ * Engine to proxy W3C WebDriver requests. The sync engine handles requests in
+ * the servlet thread (as usual), while the async engine releases the servlet
+ * thread and handles create session requests (container boot, readiness and
+ * exchange) and commands in two bounded thread pools.
+ *
+ * @since 0.9.1
+ */
+@Service
+public class WebDriverProxyService {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final String ASYNC_ENGINE = "async";
+
+    @Value("${webdriver.proxy.engine}")
+    private String proxyEngine;
+
+    @Value("${webdriver.proxy.async.timeout.ms}")
+    private long asyncTimeoutMs;
+
+    @Value("${webdriver.proxy.async.create.threads}")
+    private int createSessionThreads;
+
+    @Value("${webdriver.proxy.async.create.queue}")
+    private int createSessionQueue;
+
+    @Value("${webdriver.proxy.async.command.threads}")
+    private int commandThreads;
+
+    @Value("${webdriver.proxy.async.command.queue}")
+    private int commandQueue;
+
+    private ThreadPoolExecutor createSessionExecutor;
+    private ThreadPoolExecutor commandExecutor;
+
+    private WebDriverService webDriverService;
+
+    @Autowired
+    public WebDriverProxyService(WebDriverService webDriverService) {
+        this.webDriverService = webDriverService;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (isAsync()) {
+            log.info(
+                    "Using async WebDriver proxy engine ({} create session "
+                            + "threads, {} command threads)",
+                    createSessionThreads, commandThreads);
+            createSessionExecutor = newExecutor("create", createSessionThreads,
+                    createSessionQueue);
+            commandExecutor = newExecutor("command", commandThreads,
+                    commandQueue);
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        if (createSessionExecutor != null) {
+            createSessionExecutor.shutdownNow();
+        }
+        if (commandExecutor != null) {
+            commandExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Proxy a WebDriver request. The sync engine returns the ResponseEntity
+     * (null when the response has been streamed to servletResponse), and the
+     * async engine returns a DeferredResult of it.
+     */
+    public Object session(HttpEntity<String> httpEntity,
+            HttpServletRequest request, HttpServletResponse servletResponse) {
+        if (!isAsync()) {
+            return handleSession(httpEntity, request, servletResponse);
+        }
+
+        DeferredResult<ResponseEntity<String>> result = new DeferredResult<>(
+                asyncTimeoutMs);
+        boolean isCreateSession = webDriverService
+                .isCreateSessionRequest(request);
+        ThreadPoolExecutor executor = isCreateSession ? createSessionExecutor
+                : commandExecutor;
+        // The worker writes to the servlet response only until the timeout
+        OwnedResponse ownedResponse = new OwnedResponse(servletResponse);
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                ResponseEntity<String> response = handleSession(httpEntity,
+                        request, ownedResponse);
+                // The client is not waiting for sessions created after the
+                // timeout, and so their browser is released
+                if (!result.setResult(response) && isCreateSession) {
+                    log.warn("Session created after the request timeout");
+                    webDriverService.releaseSession(response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.setResult(webDriverService.getErrorResponse(
+                    "Too many concurrent session requests", e));
+            return result;
+        }
+
+        result.onTimeout(() -> {
+            // Requests still queued are not started, and running ones stop
+            // writing (and abort the streamed upstream response)
+            future.cancel(true);
+            boolean committed = ownedResponse.release();
+            // Part of the response may have been streamed already
+            result.setResult(committed ? null
+                    : webDriverService.getErrorResponse(
+                            "Timeout handling session request",
+                            new EusException("Timeout of " + asyncTimeoutMs
+                                    + " ms handling session request")));
+        });
+        return result;
+    }
+
+    private ResponseEntity<String> handleSession(HttpEntity<String> httpEntity,
+            HttpServletRequest request, HttpServletResponse servletResponse) {
+        ResponseEntity<String> response;
+        try {
+            // Null when the response has been streamed to servletResponse
+            response = webDriverService.session(httpEntity, request,
+                    servletResponse);
+        } catch (SessionNotCreatedException e) {
+            response = webDriverService.getSessionNotCreatedResponse(e);
+        } catch (Exception e) {
+            log.error("Exception handling session {}", request, e);
+            response = webDriverService
+                    .getErrorResponse("Exception handling session", e);
+        }
+        return response;
+    }
+
+    private boolean isAsync() {
+        return ASYNC_ENGINE.equalsIgnoreCase(proxyEngine);
+    }
+
+    private ThreadPoolExecutor newExecutor(String name, int threads,
+            int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, SECONDS, new ArrayBlockingQueue<>(queueSize));
+        executor.allowCoreThreadTimeOut(true);
+        Metrics.gauge("eus.webdriver.proxy.queue",
+                singletonList(Tag.of("executor", name)), executor,
+                e -> e.getQueue().size());
+        Metrics.gauge("eus.webdriver.proxy.active",
+                singletonList(Tag.of("executor", name)), executor,
+                ThreadPoolExecutor::getActiveCount);
+        return executor;
+    }
+
+    /**
+     * Servlet response used by a worker of the async engine. Once released
+     * (when the request times out), the worker cannot modify or write the
+     * response anymore, since the container may have recycled it.
+     */
+    static class OwnedResponse extends HttpServletResponseWrapper {
+
+        private boolean released;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        OwnedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        /**
+         * Release the response, waiting for a write in progress.
+         *
+         * @return whether the response was committed by the worker
+         */
+        synchronized boolean release() {
+            released = true;
+            return getResponse().isCommitted();
+        }
+
+        private synchronized void checkOwned() throws IOException {
+            if (released || Thread.currentThread().isInterrupted()) {
+                released = true;
+                throw new InterruptedIOException(
+                        "Session request timed out");
+            }
+        }
+
+        private synchronized boolean isOwned() {
+            return !released;
+        }
+
+        @Override
+        public synchronized ServletOutputStream getOutputStream()
+                throws IOException {
+            checkOwned();
+            if (outputStream == null) {
+                outputStream = new OwnedOutputStream(
+                        getResponse().getOutputStream());
+            }
+            return outputStream;
+        }
+
+        @Override
+        public synchronized PrintWriter getWriter() throws IOException {
+            checkOwned();
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(
+                        getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public synchronized void flushBuffer() throws IOException {
+            checkOwned();
+            if (writer != null) {
+                writer.flush();
+            }
+            super.flushBuffer();
+        }
+
+        @Override
+        public synchronized void sendError(int sc, String msg)
+                throws IOException {
+            checkOwned();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public synchronized void sendError(int sc) throws IOException {
+            checkOwned();
+            super.sendError(sc);
+        }
+
+        @Override
+        public synchronized void setStatus(int sc) {
+            if (isOwned()) {
+                super.setStatus(sc);
+            }
+        }
+
+        @Override
+        public synchronized void setHeader(String name, String value) {
+            if (isOwned()) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public synchronized void addHeader(String name, String value) {
+            if (isOwned()) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public synchronized void setContentType(String type) {
+            if (isOwned()) {
+                super.setContentType(type);
+            }
+        }
+
+        @Override
+        public synchronized void setContentLength(int len) {
+            if (isOwned()) {
+                super.setContentLength(len);
+            }
+        }
+
+        @Override
+        public synchronized void setContentLengthLong(long len) {
+            if (isOwned()) {
+                super.setContentLengthLong(len);
+            }
+        }
+
+        class OwnedOutputStream extends ServletOutputStream {
+
+            private final ServletOutputStream outputStream;
+
+            OwnedOutputStream(ServletOutputStream outputStream) {
+                this.outputStream = outputStream;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                synchronized (OwnedResponse.this) {
+                    checkOwned();
+                    outputStream.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (OwnedResponse.this) {
+                    checkOwned();
+                    outputStream.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                synchronized (OwnedResponse.this) {
+                    checkOwned();
+                    outputStream.flush();
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return outputStream.isReady();
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                outputStream.setWriteListener(writeListener);
+            }
+        }
+    }
+
+}
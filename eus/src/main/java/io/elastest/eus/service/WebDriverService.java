@@ -16,15 +16,11 @@
  */
 package io.elastest.eus.service;
 
-import static com.github.dockerjava.api.model.ExposedPort.tcp;
-import static com.github.dockerjava.api.model.Ports.Binding.bindPort;
-import static io.elastest.eus.docker.DockerContainer.dockerBuilder;
 import static java.lang.Integer.parseInt;
-import static java.lang.String.format;
+import static java.lang.System.nanoTime;
 import static java.lang.invoke.MethodHandles.lookup;
-import static java.util.Arrays.asList;
-import static java.util.Optional.empty;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.springframework.http.HttpMethod.DELETE;
 import static org.springframework.http.HttpMethod.POST;
@@ -32,9 +28,9 @@ import static org.springframework.http.HttpStatus.FOUND;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.OK;
-import static java.lang.System.getenv;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -43,7 +39,9 @@ import java.util.Optional;
 
 import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.conn.ConnectionReleaseTrigger;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -55,27 +53,24 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.dockerjava.api.model.Bind;
-import com.github.dockerjava.api.model.ExposedPort;
-import com.github.dockerjava.api.model.PortBinding;
-import com.github.dockerjava.api.model.Ports.Binding;
-import com.github.dockerjava.api.model.Volume;
+import com.fasterxml.jackson.databind.JsonNode;
 
 import io.elastest.eus.EusException;
-import io.elastest.eus.docker.DockerContainer.DockerBuilder;
-import io.elastest.eus.json.WebDriverCapabilities;
-import io.elastest.eus.json.WebDriverCapabilities.DesiredCapabilities;
+import io.elastest.eus.SessionNotCreatedException;
+import io.elastest.eus.json.RecordingProfile;
 import io.elastest.eus.json.WebDriverError;
 import io.elastest.eus.json.WebDriverSessionResponse;
 import io.elastest.eus.json.WebDriverSessionValue;
 import io.elastest.eus.json.WebDriverStatus;
 import io.elastest.eus.session.SessionInfo;
+import io.elastest.eus.session.SessionRequest;
+import io.micrometer.core.instrument.Metrics;
 
 /**
  * Service implementation for W3C WebDriver/JSON Wire Protocol.
@@ -86,49 +81,20 @@ import io.elastest.eus.session.SessionInfo;
 @Service
 public class WebDriverService {
 
-    final Logger log = getLogger(lookup().lookupClass());
+    static final String HUB_CONTAINER_NAME_VAR = "hubContainerName";
+    static final String JQ_SET_HUB_CONTAINER_NAME = "walk(if type == \"object\" then .hubContainerName += $"
+            + HUB_CONTAINER_NAME_VAR + " else . end)";
 
-    @Value("${et.host.env}")
-    private String etHostEnv;
+    final Logger log = getLogger(lookup().lookupClass());
 
     @Value("${server.servlet.context-path}")
     private String contextPath;
 
-    @Value("${eus.container.prefix}")
-    private String eusContainerPrefix;
-
-    @Value("${hub.exposedport}")
-    private int hubExposedPort;
-
-    @Value("${hub.vnc.exposedport}")
-    private int hubVncExposedPort;
-
-    @Value("${hub.novnc.exposedport}")
-    private int noVncExposedPort;
-
-    @Value("${hub.container.sufix}")
-    private String hubContainerSufix;
-
-    @Value("${novnc.html}")
-    private String vncHtml;
-
-    @Value("${hub.vnc.password}")
-    private String hubVncPassword;
-
     // Defined as String instead of integer for testing purposes (inject with
     // @TestPropertySource)
     @Value("${hub.timeout}")
     private String hubTimeout;
 
-    @Value("${browser.shm.size}")
-    private long shmSize;
-
-    @Value("${browser.screen.resolution}")
-    private String browserScreenResolution;
-
-    @Value("${browser.timezone}")
-    private String browserTimezone;
-
     @Value("${ws.dateformat}")
     private String wsDateFormat;
 
@@ -138,18 +104,12 @@ public class WebDriverService {
     @Value("${webdriver.navigation.get.message}")
     private String webdriverNavigationGetMessage;
 
-    @Value("${use.torm}")
-    private boolean useTorm;
-
-    @Value("${docker.network}")
-    private String dockerNetwork;
-
-    @Value("${create.session.timeout.sec}")
-    private int createSessionTimeoutSec;
-
     @Value("${create.session.retries}")
     private int createSessionRetries;
 
+    @Value("${webdriver.proxy.streaming}")
+    private boolean proxyStreaming;
+
     @Value("${et.config.web.rtc.stats}")
     private String etConfigWebRtcStats;
 
@@ -165,40 +125,48 @@ public class WebDriverService {
     @Value("${et.browser.component.prefix}")
     private String etBrowserComponentPrefix;
 
-    @Value("${registry.folder}")
-    private String registryFolder;
-
-    @Value("${container.recording.folder}")
-    private String containerRecordingFolder;
-
     String etInstrumentationKey = "elastest-instrumentation";
 
-    private DockerService dockerService;
     private DockerHubService dockerHubService;
     private JsonService jsonService;
     private SessionService sessionService;
     private RecordingService recordingService;
     private TimeoutService timeoutService;
+    private WebDriverClientService webDriverClientService;
+    private BrowserContainerService browserContainerService;
+    private BrowserPoolService browserPoolService;
+    private SessionAdmissionService sessionAdmissionService;
+    private SessionTeardownService sessionTeardownService;
 
     @Autowired
-    public WebDriverService(DockerService dockerService,
-            DockerHubService dockerHubService, JsonService jsonService,
-            SessionService sessionService, RecordingService recordingService,
-            TimeoutService timeoutService) {
-        this.dockerService = dockerService;
+    public WebDriverService(DockerHubService dockerHubService,
+            JsonService jsonService, SessionService sessionService,
+            RecordingService recordingService, TimeoutService timeoutService,
+            WebDriverClientService webDriverClientService,
+            BrowserContainerService browserContainerService,
+            BrowserPoolService browserPoolService,
+            SessionAdmissionService sessionAdmissionService,
+            SessionTeardownService sessionTeardownService) {
         this.dockerHubService = dockerHubService;
         this.jsonService = jsonService;
         this.sessionService = sessionService;
         this.recordingService = recordingService;
         this.timeoutService = timeoutService;
+        this.webDriverClientService = webDriverClientService;
+        this.browserContainerService = browserContainerService;
+        this.browserPoolService = browserPoolService;
+        this.sessionAdmissionService = sessionAdmissionService;
+        this.sessionTeardownService = sessionTeardownService;
     }
 
     @PreDestroy
     public void cleanUp() {
         // Before shutting down the EUS, all recording files must have been
-        // processed
-        sessionService.getSessionRegistry()
-                .forEach((sessionId, sessionInfo) -> stopBrowser(sessionInfo));
+        // processed (SessionTeardownService drains the pending teardowns)
+        List<SessionInfo> sessions = new ArrayList<>(
+                sessionService.getSessionRegistry().values());
+        sessions.forEach(this::closeSession);
+        sessionTeardownService.drain(sessions);
     }
 
     public ResponseEntity<String> getStatus() throws IOException {
@@ -210,11 +178,9 @@ public class WebDriverService {
     }
 
     public ResponseEntity<String> session(HttpEntity<String> httpEntity,
-            HttpServletRequest request)
+            HttpServletRequest request, HttpServletResponse response)
             throws IOException, InterruptedException {
-        StringBuffer requestUrl = request.getRequestURL();
-        String requestContext = requestUrl.substring(
-                requestUrl.lastIndexOf(contextPath) + contextPath.length());
+        String requestContext = getRequestContext(request);
         HttpMethod method = HttpMethod.resolve(request.getMethod());
         String requestBody = jsonService.sanitizeMessage(httpEntity.getBody());
 
@@ -223,43 +189,23 @@ public class WebDriverService {
 
         SessionInfo sessionInfo;
         boolean liveSession = false;
-        Optional<HttpEntity<String>> optionalHttpEntity = empty();
 
         // Intercept create session
         boolean isCreateSession = isPostSessionRequest(method, requestContext);
-        String newRequestBody = requestBody;
+        SessionRequest sessionRequest = null;
         if (isCreateSession) {
-
-            String browserName = jsonService
-                    .jsonToObject(requestBody, WebDriverCapabilities.class)
-                    .getDesiredCapabilities().getBrowserName();
-            if (browserName == null) {
-
-                try {
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    browserName = objectMapper.readTree(requestBody)
-                            .get("capabilities").get("alwaysMatch")
-                            .get("browserName").textValue();
-                } catch (Exception e) {
-                    return new ResponseEntity<String>(
-                            "Browser name not recognized in request",
-                            HttpStatus.BAD_REQUEST);
-                }
+            sessionRequest = processStartSessionRequest(requestBody);
+            if (sessionRequest.getBrowserName() == null) {
+                return new ResponseEntity<String>(
+                        "Browser name not recognized in request",
+                        HttpStatus.BAD_REQUEST);
             }
-
-            String version = jsonService
-                    .jsonToObject(requestBody, WebDriverCapabilities.class)
-                    .getDesiredCapabilities().getVersion();
-
-            newRequestBody = processStartSessionRequest(requestBody,
-                    browserName);
-            httpEntity = new HttpEntity<>(newRequestBody);
+            httpEntity = new HttpEntity<>(
+                    jsonService.objectToJson(sessionRequest.getRequestJson()));
 
             // If live, no timeout
-            liveSession = isLive(requestBody);
-            sessionInfo = startBrowser(newRequestBody, requestBody);
-            optionalHttpEntity = optionalHttpEntity(newRequestBody, browserName,
-                    version);
+            liveSession = sessionRequest.isLive();
+            sessionInfo = startBrowser(sessionRequest);
 
         } else {
             Optional<String> sessionIdFromPath = getSessionIdFromPath(
@@ -275,6 +221,18 @@ public class WebDriverService {
                 }
                 liveSession = sessionInfo.isLiveSession();
 
+                // Commands (screenshots, page source, etc.) are piped to the
+                // client without buffering the response. Requests intercepted
+                // by EUS (navigation and delete session) are not streamed, so
+                // they are handled before the response is sent
+                if (proxyStreaming && response != null
+                        && !isPostUrlRequest(method, requestContext)
+                        && !isDeleteSessionRequest(method, requestContext)) {
+                    streamSession(httpEntity, requestContext, method,
+                            sessionInfo, liveSession, response);
+                    return null;
+                }
+
             } else {
                 return notFound();
             }
@@ -286,7 +244,7 @@ public class WebDriverService {
         int numRetries = 0;
         do {
             responseBody = exchange(httpEntity, requestContext, method,
-                    sessionInfo, optionalHttpEntity, isCreateSession);
+                    sessionInfo, isCreateSession);
             exchangeAgain = responseBody == null;
             if (this.isPostUrlRequest(method, requestContext)) {
                 this.manageWebRtcMonitoring(sessionInfo);
@@ -296,14 +254,17 @@ public class WebDriverService {
                     log.debug("Stopping browser and starting new one {}",
                             sessionInfo);
                     stopBrowser(sessionInfo);
-                    sessionInfo = startBrowser(newRequestBody, requestBody);
+                    sessionInfo = startBrowser(sessionRequest);
                     numRetries++;
                     log.debug(
                             "Problem in POST /session request ... retrying {}/{}",
                             numRetries, createSessionRetries);
                     continue;
                 }
-                throw new EusException(
+                // Release the browser (and its admission slot) of the last
+                // attempt
+                stopAllContainersOfFailedSession(sessionInfo);
+                throw new SessionNotCreatedException(
                         "Exception creating session in remote browser (num retries "
                                 + createSessionRetries + ")");
             }
@@ -321,12 +282,12 @@ public class WebDriverService {
                 exchange(httpEntity,
                         requestContext + "/" + sessionInfo.getSessionId()
                                 + maximizeChrome,
-                        method, sessionInfo, optionalHttpEntity, false);
+                        method, sessionInfo, false);
             } catch (Exception e) {
                 exchange(httpEntity,
                         requestContext + "/" + sessionInfo.getSessionId()
                                 + maximizeOther,
-                        method, sessionInfo, optionalHttpEntity, false);
+                        method, sessionInfo, false);
             }
             // Start Recording if not is manual recording
             if (!sessionInfo.isManualRecording()) {
@@ -341,14 +302,29 @@ public class WebDriverService {
                 isCreateSession);
 
         // Send Hub Container name too
+        if (!proxyStreaming) {
+            responseBody = jsonService.processJsonWithJq(responseBody,
+                    JQ_SET_HUB_CONTAINER_NAME,
+                    singletonMap(HUB_CONTAINER_NAME_VAR,
+                            sessionInfo.getHubContainerName()));
+        } else if (isCreateSession) {
+            responseBody = jsonService.insertField(responseBody,
+                    HUB_CONTAINER_NAME_VAR, sessionInfo.getHubContainerName(),
+                    "value");
+        }
 
-        String jqSetHubContainerName = "walk(if type == \"object\" then .hubContainerName += \""
-                + sessionInfo.getHubContainerName() + "\"  else . end)";
+        return new ResponseEntity<>(responseBody, responseStatus);
+    }
 
-        responseBody = jsonService.processJsonWithJq(responseBody,
-                jqSetHubContainerName);
+    public boolean isCreateSessionRequest(HttpServletRequest request) {
+        return isPostSessionRequest(HttpMethod.resolve(request.getMethod()),
+                getRequestContext(request));
+    }
 
-        return new ResponseEntity<>(responseBody, responseStatus);
+    private String getRequestContext(HttpServletRequest request) {
+        StringBuffer requestUrl = request.getRequestURL();
+        return requestUrl.substring(
+                requestUrl.lastIndexOf(contextPath) + contextPath.length());
     }
 
     public boolean manageWebRtcMonitoring(SessionInfo sessionInfo) {
@@ -422,10 +398,7 @@ public class WebDriverService {
         String body = scriptObj.toString();
 
         HttpEntity<String> httpEntity = new HttpEntity<>(body, headers);
-
-        Optional<HttpEntity<String>> optionalHttpEntity = empty();
-        return exchange(httpEntity, requestContext, POST, sessionInfo,
-                optionalHttpEntity, false);
+        return exchange(httpEntity, requestContext, POST, sessionInfo, false);
 
     }
 
@@ -444,6 +417,22 @@ public class WebDriverService {
         return new ResponseEntity<>(errorMessage, INTERNAL_SERVER_ERROR);
     }
 
+    public ResponseEntity<String> getSessionNotCreatedResponse(
+            SessionNotCreatedException exception) {
+        // W3C WebDriver error (wrapped in value)
+        WebDriverError webDriverError = new WebDriverError(
+                "session not created", exception.getMessage(), exception);
+        log.warn("Session not created: {}", exception.getMessage());
+        String errorMessage = exception.getMessage();
+        try {
+            errorMessage = jsonService
+                    .objectToJson(singletonMap("value", webDriverError));
+        } catch (JsonProcessingException e) {
+            log.warn("Exception parsing error message: {}", errorMessage, e);
+        }
+        return new ResponseEntity<>(errorMessage, INTERNAL_SERVER_ERROR);
+    }
+
     private void handleTimeout(String requestContext, HttpMethod method,
             SessionInfo sessionInfo, boolean liveSession,
             boolean isCreateSession) {
@@ -452,52 +441,42 @@ public class WebDriverService {
             String sessionId = sessionInfo.getSessionId();
             String postUrl = sessionInfo.getHubUrl() + "/session/" + sessionId
                     + "/log";
-            timeoutService.launchLogMonitor(postUrl, sessionId);
+            timeoutService.launchLogMonitor(postUrl, sessionId,
+                    sessionInfo.getDevToolsUrl());
         }
 
         // Only using timer for non-live sessions
         if (!liveSession) {
-            timeoutService.shutdownSessionTimer(sessionInfo);
-            final SessionInfo finalSessionInfo = sessionInfo;
-            Runnable deleteSession = () -> deleteSession(finalSessionInfo,
-                    true);
-
-            if (!isDeleteSessionRequest(method, requestContext)) {
+            if (isDeleteSessionRequest(method, requestContext)) {
+                timeoutService.shutdownSessionTimer(sessionInfo);
+            } else if (isCreateSession) {
+                final SessionInfo finalSessionInfo = sessionInfo;
                 timeoutService.startSessionTimer(sessionInfo,
-                        parseInt(hubTimeout), deleteSession);
+                        parseInt(hubTimeout),
+                        () -> deleteSession(finalSessionInfo, true));
+            } else {
+                // Commands only update the last activity of the session
+                timeoutService.touchSession(sessionInfo);
             }
         }
     }
 
-    private String processStartSessionRequest(String requestBody,
-            String browserName) throws IOException {
-        String newRequestBody;
-        // JSON processing to activate always the browser logging
-        String jqActivateBrowserLogging = "walk(if type == \"object\" and .desiredCapabilities then .desiredCapabilities += { \"loggingPrefs\": { \"browser\" : \"ALL\" } }  else . end)";
-        newRequestBody = jsonService.processJsonWithJq(requestBody,
-                jqActivateBrowserLogging);
-
-        // JSON processing to add binary path if opera
-        if (browserName.equalsIgnoreCase("operablink")) {
-            String jqOperaBinary = "walk(if type == \"object\" and .desiredCapabilities then .desiredCapabilities += { \"operaOptions\": {\"args\": [], \"binary\": \"/usr/bin/opera\", \"extensions\": [] } }  else . end)";
-            newRequestBody = jsonService.processJsonWithJq(newRequestBody,
-                    jqOperaBinary);
-        }
-
-        // JSON processing to remove banner if chrome
-        if (browserName.equalsIgnoreCase("chrome")) {
-            // Concat
-            String jqChromeBanner = "walk(if type == \"object\" and .desiredCapabilities then .desiredCapabilities.chromeOptions.args += .desiredCapabilities.chromeOptions.args + [\"disable-infobars\"] else . end)";
-            newRequestBody = jsonService.processJsonWithJq(newRequestBody,
-                    jqChromeBanner);
+    private SessionRequest processStartSessionRequest(String requestBody)
+            throws IOException {
+        long startTime = nanoTime();
+        SessionRequest sessionRequest = new SessionRequest(
+                jsonService.jsonToObject(requestBody, JsonNode.class));
+        if (sessionRequest.getBrowserName() != null) {
+            sessionRequest.rewrite(browserContainerService
+                    .getChromeArgs(sessionRequest.getBrowserName()));
+            if (sessionRequest.isVersionWorkaround()) {
+                log.debug("Using capabilities with empty version {}",
+                        sessionRequest);
+            }
         }
-
-        // JSON processing to remove browserId
-        String jqRemoveBrowserId = "walk(if type == \"object\" then del(.browserId) else . end)";
-        newRequestBody = jsonService.processJsonWithJq(newRequestBody,
-                jqRemoveBrowserId);
-
-        return newRequestBody;
+        Metrics.timer("eus.session.request.processing")
+                .record(nanoTime() - startTime, NANOSECONDS);
+        return sessionRequest;
     }
 
     private HttpStatus sessionResponse(String requestContext, HttpMethod method,
@@ -522,26 +501,18 @@ public class WebDriverService {
 
     private String exchange(HttpEntity<String> httpEntity,
             String requestContext, HttpMethod method, SessionInfo sessionInfo,
-            Optional<HttpEntity<String>> optionalHttpEntity,
             boolean isCreateSession) throws JsonProcessingException {
         String hubUrl = sessionInfo.getHubUrl();
-
-        HttpComponentsClientHttpRequestFactory httpRequestFactory = new HttpComponentsClientHttpRequestFactory();
-        if (isCreateSession) {
-            int timeoutMillis = (int) SECONDS.toMillis(createSessionTimeoutSec);
-            httpRequestFactory.setConnectTimeout(timeoutMillis);
-            httpRequestFactory.setConnectionRequestTimeout(timeoutMillis);
-            httpRequestFactory.setReadTimeout(timeoutMillis);
-        }
-        RestTemplate restTemplate = new RestTemplate(httpRequestFactory);
         String finalUrl = hubUrl + requestContext;
-        HttpEntity<?> finalHttpEntity = optionalHttpEntity.isPresent()
-                ? optionalHttpEntity.get() : httpEntity;
         ResponseEntity<String> response = null;
         log.debug("-> Request to browser: {} {} {}", method, finalUrl,
-                finalHttpEntity);
-        try {
-            response = restTemplate.exchange(finalUrl, method, finalHttpEntity,
+                httpEntity);
+        try (WebDriverClientService.Lease lease = webDriverClientService
+                .acquire(hubUrl, isCreateSession)) {
+            RestTemplate restTemplate = isCreateSession
+                    ? lease.getCreateSessionTemplate()
+                    : lease.getCommandTemplate();
+            response = restTemplate.exchange(finalUrl, method, httpEntity,
                     String.class);
         } catch (Exception e) {
             if (isCreateSession) {
@@ -557,19 +528,99 @@ public class WebDriverService {
                 responseBody);
 
         if (responseStatusCode == FOUND) {
-            WebDriverSessionResponse sessionResponse = new WebDriverSessionResponse();
-            String path = response.getHeaders().getLocation().getPath();
-            sessionResponse
-                    .setSessionId(path.substring(path.lastIndexOf('/') + 1));
-
-            responseBody = jsonService.objectToJson(sessionResponse);
+            responseBody = getFoundResponseBody(response.getHeaders());
         }
         return responseBody;
     }
 
+    private void streamSession(HttpEntity<String> httpEntity,
+            String requestContext, HttpMethod method, SessionInfo sessionInfo,
+            boolean liveSession, HttpServletResponse response) {
+        String hubUrl = sessionInfo.getHubUrl();
+        String finalUrl = hubUrl + requestContext;
+        log.debug("-> Request to browser (streaming): {} {} {}", method,
+                finalUrl, httpEntity);
+
+        // The client is leased until the response body has been streamed
+        Integer streamedBytes;
+        try (WebDriverClientService.Lease lease = webDriverClientService
+                .acquire(hubUrl, false)) {
+            RestTemplate restTemplate = lease.getCommandTemplate();
+            streamedBytes = restTemplate.execute(finalUrl, method,
+                    restTemplate.httpEntityCallback(httpEntity),
+                    clientResponse -> {
+                        // The command is handled (session timer) before the
+                        // response is committed
+                        handleTimeout(requestContext, method, sessionInfo,
+                                liveSession, false);
+                        return streamResponse(clientResponse, response);
+                    });
+        }
+        log.debug("<< Response (streaming): {} -- {} bytes",
+                response.getStatus(), streamedBytes);
+        Metrics.counter("eus.webdriver.proxy.streamed.bytes")
+                .increment(streamedBytes != null ? streamedBytes : 0);
+    }
+
+    private int streamResponse(ClientHttpResponse clientResponse,
+            HttpServletResponse response) throws IOException {
+        // Redirects are converted as in exchange
+        if (clientResponse.getRawStatusCode() == FOUND.value()) {
+            String body = getFoundResponseBody(clientResponse.getHeaders());
+            response.setStatus(OK.value());
+            response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+            response.getWriter().write(body);
+            response.flushBuffer();
+            return body.length();
+        }
+
+        response.setStatus(clientResponse.getRawStatusCode());
+        HttpHeaders headers = clientResponse.getHeaders();
+        if (headers.getContentType() != null) {
+            response.setContentType(headers.getContentType().toString());
+        }
+        if (headers.getContentLength() >= 0) {
+            response.setContentLengthLong(headers.getContentLength());
+        }
+        InputStream body = clientResponse.getBody();
+        try {
+            int bytes = StreamUtils.copy(body, response.getOutputStream());
+            response.flushBuffer();
+            return bytes;
+        } catch (IOException e) {
+            // The client is gone or the request has timed out: the browser
+            // connection is aborted instead of reading the rest of the body
+            if (body instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) body).abortConnection();
+            }
+            throw e;
+        }
+    }
+
+    private String getFoundResponseBody(HttpHeaders headers)
+            throws JsonProcessingException {
+        WebDriverSessionResponse sessionResponse = new WebDriverSessionResponse();
+        String path = headers.getLocation().getPath();
+        sessionResponse.setSessionId(path.substring(path.lastIndexOf('/') + 1));
+        return jsonService.objectToJson(sessionResponse);
+    }
+
     private void postSessionRequest(SessionInfo sessionInfo, boolean isLive,
             String responseBody) throws IOException, InterruptedException {
         log.trace("Session response: JSON: {}", responseBody);
+        String sessionId = getSessionId(responseBody);
+        sessionInfo.setSessionId(sessionId);
+        sessionInfo.setLiveSession(isLive);
+
+        sessionService.putSession(sessionId, sessionInfo);
+
+        // Sent even without WebSocket clients, to keep the sequence of events
+        if (!isLive) {
+            sessionService.sendNewSessionToAllClients(sessionInfo);
+        }
+    }
+
+    private String getSessionId(String responseBody) throws IOException {
         WebDriverSessionResponse sessionResponse = jsonService
                 .jsonToObject(responseBody, WebDriverSessionResponse.class);
         log.debug("Session response: JSON: {} -- Java: {}", responseBody,
@@ -583,35 +634,25 @@ public class WebDriverService {
             log.debug("Response value {}", responseValue);
             sessionId = responseValue.getValue().getSessionId();
         }
-        sessionInfo.setSessionId(sessionId);
-        sessionInfo.setLiveSession(isLive);
-
-        sessionService.putSession(sessionId, sessionInfo);
-
-        if (sessionService.activeWebSocketSessions() && !isLive) {
-            sessionService.sendNewSessionToAllClients(sessionInfo);
-        }
+        return sessionId;
     }
 
-    private Optional<HttpEntity<String>> optionalHttpEntity(String requestBody,
-            String browserName, String version) throws IOException {
-        // Workaround due to bug of selenium-server 3.4.0
-        // More info on: https://github.com/SeleniumHQ/selenium/issues/3808
-        boolean firefoxWithVersion = browserName.equalsIgnoreCase("firefox")
-                && (version == null || version.isEmpty());
-        boolean betaUnstable = version != null
-                && (version.isEmpty() || version.equalsIgnoreCase("latest")
-                        || version.equalsIgnoreCase("unstable")
-                        || version.equalsIgnoreCase("beta")
-                        || version.equalsIgnoreCase("nightly"));
-        if (firefoxWithVersion || betaUnstable) {
-            String jqRemoveVersionContent = "walk(if type == \"object\" and .version then .version=\"\" else . end)";
-            String jsonFirefox = jsonService.processJsonWithJq(requestBody,
-                    jqRemoveVersionContent);
-            log.debug("Using capabilities with empty version {}", jsonFirefox);
-            return Optional.of(new HttpEntity<String>(jsonFirefox));
+    /**
+     * Stop the browser of a create session response which has not been
+     * delivered to the client (e.g. since the request timed out).
+     */
+    public void releaseSession(ResponseEntity<String> createSessionResponse) {
+        if (createSessionResponse == null
+                || !createSessionResponse.getStatusCode().is2xxSuccessful()) {
+            return;
+        }
+        try {
+            String sessionId = getSessionId(createSessionResponse.getBody());
+            sessionService.getSession(sessionId).ifPresent(this::stopBrowser);
+        } catch (Exception e) {
+            log.warn("Exception releasing session of response {}",
+                    createSessionResponse, e);
         }
-        return Optional.empty();
     }
 
     private ResponseEntity<String> notFound() {
@@ -620,145 +661,65 @@ public class WebDriverService {
         return responseEntity;
     }
 
-    public SessionInfo startBrowser(String requestBody,
-            String originalRequestBody)
+    public SessionInfo startBrowser(SessionRequest sessionRequest)
             throws IOException, InterruptedException {
-        DesiredCapabilities capabilities = jsonService
-                .jsonToObject(requestBody, WebDriverCapabilities.class)
-                .getDesiredCapabilities();
+        // Invalid recording profiles are rejected before starting the browser
+        RecordingProfile recordingProfile = recordingService
+                .getRecordingProfile(sessionRequest.getRecordingProfile());
+
+        // Wait for a start slot (and a live session slot)
+        sessionAdmissionService.acquire(sessionRequest.getBrowserId());
+        String hubContainerName = null;
+        try {
+            SessionInfo sessionInfo = startAdmittedBrowser(sessionRequest);
+            sessionInfo.setRecordingProfile(recordingProfile);
+            hubContainerName = sessionInfo.getHubContainerName();
+            return sessionInfo;
+        } finally {
+            sessionAdmissionService.startFinished(hubContainerName);
+        }
+    }
 
-        String browserName = capabilities.getBrowserName();
+    private SessionInfo startAdmittedBrowser(SessionRequest sessionRequest)
+            throws IOException, InterruptedException {
+        String browserName = sessionRequest.getBrowserName();
         browserName = browserName.equalsIgnoreCase("operablink") ? "opera"
                 : browserName;
-        String version = capabilities.getVersion();
-        String platform = capabilities.getPlatform();
         String imageId = dockerHubService.getBrowserImageFromCapabilities(
-                browserName, version, platform);
-
-        log.info("Using {} as Docker image for {}", imageId, browserName);
-        String hubContainerName = dockerService
-                .generateContainerName(eusContainerPrefix + hubContainerSufix);
-
-        // Recording Volume
-        Volume recordings = new Volume(containerRecordingFolder);
-        List<Volume> volumes = asList(recordings);
-
-        List<Bind> volumeBinds = asList(new Bind(registryFolder, recordings));
-
-        // Port binding
-        int hubPort = dockerService.findRandomOpenPort();
-        Binding bindHubPort = bindPort(hubPort);
-        ExposedPort exposedHubPort = tcp(hubExposedPort);
-
-        int vncPort = dockerService.findRandomOpenPort();
-        Binding bindVncPort = bindPort(vncPort);
-        ExposedPort exposedVncPort = tcp(hubVncExposedPort);
-
-        int noVncBindedPort = dockerService.findRandomOpenPort();
-        Binding bindNoVncPort = bindPort(noVncBindedPort);
-        ExposedPort exposedNoVncPort = tcp(noVncExposedPort);
-
-        List<PortBinding> portBindings = asList(
-                new PortBinding(bindHubPort, exposedHubPort),
-                new PortBinding(bindVncPort, exposedVncPort),
-                new PortBinding(bindNoVncPort, exposedNoVncPort));
-        List<ExposedPort> exposedPorts = asList(exposedHubPort, exposedVncPort,
-                exposedNoVncPort);
-
-        // Envs
-        List<String> envs = asList(
-                "SCREEN_RESOLUTION=" + browserScreenResolution,
-                "TZ=" + browserTimezone);
-
-        DockerBuilder dockerBuilder = dockerBuilder(imageId, hubContainerName)
-                .exposedPorts(exposedPorts).portBindings(portBindings)
-                .volumes(volumes).binds(volumeBinds).shmSize(shmSize)
-                .envs(envs);
-        if (useTorm) {
-            dockerBuilder.network(dockerNetwork);
-        }
+                browserName, sessionRequest.getVersion(),
+                sessionRequest.getPlatform());
+
+        // Warm container if available, cold start otherwise
+        Optional<SessionInfo> warmSessionInfo = browserPoolService
+                .claim(imageId);
+        SessionInfo sessionInfo = warmSessionInfo.isPresent()
+                ? warmSessionInfo.get()
+                : browserContainerService.startBrowserContainer(browserName,
+                        imageId);
 
-        // Start
-        dockerService.startAndWaitContainer(dockerBuilder.build());
-
-        // Wait Reachable
-        String hubPath = "/wd/hub";
-        String hubIp = dockerService.getDockerServerIp();
-        String hubUrl = "http://" + hubIp + ":" + hubPort + hubPath;
-        dockerService.waitForHostIsReachable(hubUrl);
-        log.debug("Container: {} -- Hub URL: {}", hubContainerName, hubUrl);
-
-        // Save info into SessionInfo
-        SessionInfo sessionInfo = new SessionInfo();
-        sessionInfo.setHubUrl(hubUrl);
-        sessionInfo.setHubContainerName(hubContainerName);
-        sessionInfo.setBrowser(browserName);
-        sessionInfo.setVersion(dockerHubService.getVersionFromImage(imageId));
         SimpleDateFormat dateFormat = new SimpleDateFormat(wsDateFormat);
         sessionInfo.setCreationTime(dateFormat.format(new Date()));
-        sessionInfo.setHubBindPort(hubPort);
-        sessionInfo.setHubVncBindPort(hubPort);
-
-        String vncUrlFormat = "http://%s:%d/" + vncHtml
-                + "?resize=scale&autoconnect=true&password=" + hubVncPassword;
-        String vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
-
-        String etHost = getenv(etHostEnv);
-        if (etHost != null) {
-            if (!etHost.equalsIgnoreCase("localhost")) {
-                hubIp = etHost;
-                vncUrl = format(vncUrlFormat, hubIp, noVncBindedPort);
-            }
-        }
-
-        dockerService.waitForHostIsReachable(vncUrl);
-
-        sessionInfo.setVncContainerName(hubContainerName);
-        sessionInfo.setVncUrl(vncUrl);
-        sessionInfo.setNoVncBindPort(noVncBindedPort);
-
-        String browserId = jsonService
-                .jsonToObject(originalRequestBody, WebDriverCapabilities.class)
-                .getDesiredCapabilities().getBrowserId();
-        sessionInfo.setBrowserId(browserId);
-
-        boolean manualRecording = jsonService
-                .jsonToObject(originalRequestBody, WebDriverCapabilities.class)
-                .getDesiredCapabilities().isManualRecording();
-        sessionInfo.setManualRecording(manualRecording);
+        sessionInfo.setBrowserId(sessionRequest.getBrowserId());
+        sessionInfo.setManualRecording(sessionRequest.isManualRecording());
 
         return sessionInfo;
     }
 
     public void deleteSession(SessionInfo sessionInfo, boolean timeout) {
-        try {
-            if (timeout) {
-                log.warn("Deleting session {} due to timeout of {} seconds",
-                        sessionInfo.getSessionId(), sessionInfo.getTimeout());
-            } else {
-                log.info("Deleting session {}", sessionInfo.getSessionId());
-            }
-
-            if (sessionInfo.getVncContainerName() != null) {
-                // Stop recording even if manually managed
-                recordingService.stopRecording(sessionInfo);
-                recordingService.storeMetadata(sessionInfo);
-                sessionService.sendRecordingToAllClients(sessionInfo);
-            }
-
-            if (!sessionInfo.isLiveSession()) {
-                sessionService.sendRemoveSessionToAllClients(sessionInfo);
-            }
+        if (timeout) {
+            log.warn("Deleting session {} due to timeout of {} seconds",
+                    sessionInfo.getSessionId(), sessionInfo.getTimeout());
+        } else {
+            log.info("Deleting session {}", sessionInfo.getSessionId());
+        }
 
-        } catch (Exception e) {
-            log.error("There was a problem deleting session {}",
-                    sessionInfo.getSessionId(), e);
-            throw new EusException(e);
+        // The session is closed here, and the rest of the teardown
+        // (recording, metadata, notification and containers) is done
+        // asynchronously
+        try {
+            closeSession(sessionInfo);
         } finally {
-            sessionService.stopAllContainerOfSession(sessionInfo);
-            sessionService.removeSession(sessionInfo.getSessionId());
-
-            timeoutService.shutdownSessionTimer(sessionInfo);
+            sessionTeardownService.teardown(sessionInfo);
         }
         if (timeout) {
             throw new EusException("Timeout of " + sessionInfo.getTimeout()
@@ -766,6 +727,21 @@ public class WebDriverService {
         }
     }
 
+    private void closeSession(SessionInfo sessionInfo) {
+        sessionService.removeSession(sessionInfo.getSessionId());
+        timeoutService.shutdownSessionTimer(sessionInfo);
+        timeoutService.stopLogMonitor(sessionInfo.getSessionId());
+    }
+
+    private void stopAllContainersOfFailedSession(SessionInfo sessionInfo) {
+        try {
+            sessionService.stopAllContainerOfSession(sessionInfo);
+        } finally {
+            sessionAdmissionService
+                    .release(sessionInfo.getHubContainerName());
+        }
+    }
+
     private void stopBrowser(SessionInfo sessionInfo) {
         deleteSession(sessionInfo, false);
     }
@@ -787,21 +763,6 @@ public class WebDriverService {
                 && countCharsInString(context, '/') == 2;
     }
 
-    private boolean isLive(String jsonMessage) {
-        boolean out = false;
-        try {
-            out = jsonService
-                    .jsonToObject(jsonMessage, WebDriverCapabilities.class)
-                    .getDesiredCapabilities().isLive();
-        } catch (Exception e) {
-            log.warn(
-                    "Exception {} checking if session is live. JSON message: {}",
-                    e.getMessage(), jsonMessage);
-        }
-        log.trace("Live session = {} -- JSON message: {}", out, jsonMessage);
-        return out;
-    }
-
     public Optional<String> getSessionIdFromPath(String path) {
         Optional<String> out = Optional.empty();
         int i = path.indexOf(webdriverSessionMessage);
@@ -0,0 +1,287 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+
+/**
+ * Local cache of remote recordings. Each file is downloaded once and in
+ * order (the first time it is accessed), and ranges are served as soon as
+ * their bytes have been downloaded. Files are evicted in LRU order when the
+ * total size exceeds the budget.
+ *
+ * @since 0.9.1
+ */
+public class RecordingFileCache {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    private final Path folder;
+    private final long maxBytes;
+    private final ExecutorService downloadExecutor;
+
+    // Access ordered, i.e. the first entry is the least recently used
+    private final Map<String, CachedFile> files = new LinkedHashMap<>(16,
+            0.75f, true);
+    private long cachedBytes = 0;
+
+    public RecordingFileCache(Path folder, long maxBytes,
+            ExecutorService downloadExecutor) {
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        this.downloadExecutor = downloadExecutor;
+    }
+
+    /**
+     * Create the cache folder, removing the files of previous executions.
+     */
+    public void open() throws IOException {
+        Files.createDirectories(folder);
+        try (Stream<Path> cachedFiles = Files.list(folder)) {
+            cachedFiles.forEach(this::delete);
+        }
+    }
+
+    /**
+     * Copy a range of a file to an output stream, starting its download if it
+     * is not cached. Bytes are copied as they are downloaded.
+     *
+     * @param version
+     *            distinguishes different contents of the same file name,
+     *            e.g. the last modification time
+     */
+    public void transferTo(String fileName, long version, long fileLength,
+            long position, long count, FileLoader loader,
+            RangeWriter writer) throws IOException {
+        CachedFile cachedFile = getFile(fileName, version, fileLength, loader);
+        long end = position + count;
+        try (FileChannel channel = FileChannel.open(cachedFile.path, READ)) {
+            while (position < end) {
+                long available = cachedFile.awaitDownloaded(position + 1);
+                long bytes = Math.min(end, available) - position;
+                writer.write(channel, position, bytes);
+                position += bytes;
+            }
+        }
+    }
+
+    /**
+     * Remove the cached versions of a file (cancelling their download).
+     */
+    public synchronized void invalidate(String fileName) {
+        Iterator<Map.Entry<String, CachedFile>> iterator = files.entrySet()
+                .iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CachedFile> entry = iterator.next();
+            if (entry.getKey().startsWith(fileName + "@")) {
+                remove(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private synchronized CachedFile getFile(String fileName, long version,
+            long fileLength, FileLoader loader) throws IOException {
+        String key = fileName + "@" + version;
+        CachedFile cachedFile = files.get(key);
+        if (cachedFile != null) {
+            return cachedFile;
+        }
+
+        cachedFile = new CachedFile(key,
+                Files.createTempFile(folder, "recording", ".cache"),
+                fileLength);
+        files.put(key, cachedFile);
+        cachedBytes += fileLength;
+        evict();
+
+        CachedFile download = cachedFile;
+        try {
+            downloadExecutor.execute(() -> download.download(loader));
+        } catch (RejectedExecutionException e) {
+            files.remove(key);
+            remove(cachedFile);
+            throw new IOException("Download of " + key + " rejected", e);
+        }
+        return cachedFile;
+    }
+
+    private synchronized void discard(CachedFile cachedFile) {
+        // Failed downloads are removed, so they are retried on next access
+        if (files.remove(cachedFile.key, cachedFile)) {
+            remove(cachedFile);
+        }
+    }
+
+    private void evict() {
+        Iterator<CachedFile> iterator = files.values().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            CachedFile cachedFile = iterator.next();
+            // The most recently used file and files being downloaded (and
+            // maybe served) are kept
+            if (!iterator.hasNext()) {
+                break;
+            }
+            if (!cachedFile.isDownloading()) {
+                remove(cachedFile);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void remove(CachedFile cachedFile) {
+        // Open channels remain readable after deleting the file
+        cachedFile.cancel();
+        cachedBytes -= cachedFile.length;
+        delete(cachedFile.path);
+    }
+
+    private void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Exception deleting cached recording {}: {}", path,
+                    e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    public interface FileLoader {
+        void load(OutputStream outputStream) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RangeWriter {
+        void write(FileChannel channel, long position, long count)
+                throws IOException;
+    }
+
+    class CachedFile {
+        final String key;
+        final Path path;
+        final long length;
+        long downloaded = 0;
+        boolean cancelled = false;
+        IOException error;
+
+        CachedFile(String key, Path path, long length) {
+            this.key = key;
+            this.path = path;
+            this.length = length;
+        }
+
+        void download(FileLoader loader) {
+            try (OutputStream outputStream = new FilterOutputStream(
+                    Files.newOutputStream(path)) {
+                @Override
+                public void write(byte[] bytes, int offset, int length)
+                        throws IOException {
+                    out.write(bytes, offset, length);
+                    downloaded(length);
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    downloaded(1);
+                }
+            }) {
+                loader.load(outputStream);
+                synchronized (this) {
+                    if (downloaded != length) {
+                        throw new IOException("Download of " + key
+                                + " is incomplete (" + downloaded + " of "
+                                + length + " bytes)");
+                    }
+                }
+                log.trace("Cached {} ({} bytes)", key, length);
+            } catch (IOException e) {
+                log.warn("Exception caching {}: {}", key, e.getMessage());
+                failed(e);
+                discard(this);
+            }
+        }
+
+        synchronized void downloaded(long bytes) throws IOException {
+            if (cancelled) {
+                throw new IOException("Download of " + key + " cancelled");
+            }
+            downloaded += bytes;
+            notifyAll();
+        }
+
+        synchronized void failed(IOException e) {
+            error = e;
+            notifyAll();
+        }
+
+        synchronized boolean isDownloading() {
+            return downloaded < length && error == null && !cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        // Downloaded bytes (at least the given number)
+        synchronized long awaitDownloaded(long bytes) throws IOException {
+            while (downloaded < bytes) {
+                if (error != null) {
+                    throw new IOException(
+                            "Exception downloading " + key + ": "
+                                    + error.getMessage(),
+                            error);
+                }
+                if (cancelled) {
+                    throw new IOException("Download of " + key + " cancelled");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted waiting for " + key);
+                }
+            }
+            return downloaded;
+        }
+    }
+
+}
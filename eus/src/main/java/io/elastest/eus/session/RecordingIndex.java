@@ -0,0 +1,324 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.util.stream.Collectors.toList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.json.WebSocketRecordedSession;
+import io.elastest.eus.json.WebSocketSessionInfoEntry;
+
+/**
+ * In-memory index of recording metadata, ordered by id, persisted in an
+ * append-only log (one JSON record per line, put or delete) which is
+ * compacted when it grows over twice the number of entries. The log also
+ * records the sources (e.g. the Alluxio listing) already imported. If the log
+ * cannot be written, the index is kept only in memory.
+ *
+ * @since 0.9.1
+ */
+public class RecordingIndex implements Closeable {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
+    static final String PUT = "put";
+    static final String DELETE = "delete";
+    static final String IMPORTED = "imported";
+    static final int MIN_COMPACTION_RECORDS = 100;
+
+    private final Path logFile;
+    private final String dateFormat;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private final Set<String> importedSources = new HashSet<>();
+    private BufferedWriter logWriter;
+    private int logRecords = 0;
+
+    public RecordingIndex(Path logFile, String dateFormat) {
+        this.logFile = logFile;
+        this.dateFormat = dateFormat;
+    }
+
+    /**
+     * Load the index from the log.
+     *
+     * @return true if the log existed
+     */
+    public synchronized boolean load() {
+        boolean exists = Files.exists(logFile);
+        if (exists) {
+            try (BufferedReader reader = Files.newBufferedReader(logFile,
+                    UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                }
+            } catch (IOException e) {
+                log.warn("Exception reading recording index {}: {}", logFile,
+                        e.getMessage());
+            }
+            log.debug("Loaded {} recordings from index {}", entries.size(),
+                    logFile);
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            log.warn("Recording index {} not writable, keeping it only in "
+                    + "memory: {}", logFile, e.getMessage());
+        }
+        return exists;
+    }
+
+    public synchronized void put(String id, String browserId,
+            String metadata) throws IOException {
+        entries.put(id, new Entry(id, browserId, metadata));
+        append(new Record(PUT, id, browserId, metadata));
+    }
+
+    public synchronized void remove(String id) {
+        if (entries.remove(id) != null) {
+            append(new Record(DELETE, id, null, null));
+        }
+    }
+
+    /**
+     * Record that all the recordings of a source have been imported, so it is
+     * not read again when the index is loaded from the log.
+     */
+    public synchronized void markImported(String source) {
+        if (importedSources.add(source)) {
+            append(new Record(IMPORTED, source, null, null));
+        }
+    }
+
+    public synchronized boolean isImported(String source) {
+        return importedSources.contains(source);
+    }
+
+    public synchronized boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    public synchronized Set<String> getIds() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    public synchronized List<Entry> getAll() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Recordings ordered by id, filtered by browser, browserId and creation
+     * time interval (null or zero values are not used as filters).
+     */
+    public synchronized List<Entry> find(String browser, String browserId,
+            long fromMillis, long toMillis) {
+        return entries.values().stream()
+                .filter(entry -> browser == null || browser.equalsIgnoreCase(
+                        entry.getRecordedSession().getBrowser()))
+                .filter(entry -> browserId == null
+                        || browserId.equals(entry.getBrowserId()))
+                .filter(entry -> fromMillis == 0
+                        || entry.getCreationMillis() >= fromMillis)
+                .filter(entry -> toMillis == 0
+                        || entry.getCreationMillis() <= toMillis)
+                .collect(toList());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (logWriter != null) {
+            try {
+                logWriter.close();
+            } catch (IOException e) {
+                log.trace("Exception closing recording index {}",
+                        e.getMessage());
+            }
+            logWriter = null;
+        }
+    }
+
+    private void replay(String line) {
+        try {
+            Record record = OBJECT_MAPPER.readValue(line, Record.class);
+            if (PUT.equals(record.op)) {
+                entries.put(record.id,
+                        new Entry(record.id, record.browserId, record.metadata));
+            } else if (DELETE.equals(record.op)) {
+                entries.remove(record.id);
+            } else if (IMPORTED.equals(record.op)) {
+                importedSources.add(record.id);
+            }
+        } catch (IOException e) {
+            // E.g. last record interrupted by a crash
+            log.warn("Ignoring invalid record in recording index: {}",
+                    e.getMessage());
+        }
+    }
+
+    private void append(Record record) {
+        if (logWriter == null) {
+            return;
+        }
+        try {
+            logWriter.write(OBJECT_MAPPER.writeValueAsString(record));
+            logWriter.newLine();
+            logWriter.flush();
+            logRecords++;
+            if (logRecords > MIN_COMPACTION_RECORDS
+                    && logRecords > 2 * entries.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.warn("Exception writing recording index {}, keeping it only "
+                    + "in memory: {}", logFile, e.getMessage());
+            close();
+        }
+    }
+
+    private void compact() throws IOException {
+        close();
+        Files.createDirectories(logFile.getParent());
+        Path tmpFile = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(OBJECT_MAPPER.writeValueAsString(new Record(PUT,
+                        entry.id, entry.browserId, entry.metadata)));
+                writer.newLine();
+            }
+            for (String source : importedSources) {
+                writer.write(OBJECT_MAPPER.writeValueAsString(
+                        new Record(IMPORTED, source, null, null)));
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile, logFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        logRecords = entries.size() + importedSources.size();
+        logWriter = Files.newBufferedWriter(logFile, UTF_8, CREATE, APPEND);
+    }
+
+    private long parseCreationTime(String creationTime) {
+        if (creationTime != null) {
+            try {
+                return new SimpleDateFormat(dateFormat).parse(creationTime)
+                        .getTime();
+            } catch (ParseException e) {
+                log.trace("Invalid creation time {}", creationTime);
+            }
+        }
+        return 0;
+    }
+
+    public class Entry {
+        final String id;
+        final String browserId;
+        final String metadata;
+        final WebSocketSessionInfoEntry recordedSession;
+        final long creationMillis;
+
+        Entry(String id, String browserId, String metadata) {
+            this.id = id;
+            this.browserId = browserId;
+            this.metadata = metadata;
+            WebSocketSessionInfoEntry sessionInfoEntry;
+            try {
+                sessionInfoEntry = OBJECT_MAPPER
+                        .readValue(metadata, WebSocketRecordedSession.class)
+                        .getRecordedSession();
+            } catch (IOException e) {
+                log.warn("Invalid metadata of recording {}: {}", id,
+                        e.getMessage());
+                sessionInfoEntry = null;
+            }
+            this.recordedSession = sessionInfoEntry != null ? sessionInfoEntry
+                    : new WebSocketSessionInfoEntry();
+            this.creationMillis = parseCreationTime(
+                    recordedSession.getCreationTime());
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getBrowserId() {
+            return browserId;
+        }
+
+        // Content of the metadata file
+        public String getMetadata() {
+            return metadata;
+        }
+
+        public WebSocketSessionInfoEntry getRecordedSession() {
+            return recordedSession;
+        }
+
+        public long getCreationMillis() {
+            return creationMillis;
+        }
+    }
+
+    static class Record {
+        public String op;
+        public String id;
+        public String browserId;
+        public String metadata;
+
+        public Record() {
+            // Empty default construct (needed by Jackson)
+        }
+
+        Record(String op, String id, String browserId, String metadata) {
+            this.op = op;
+            this.id = id;
+            this.browserId = browserId;
+            this.metadata = metadata;
+        }
+    }
+
+}
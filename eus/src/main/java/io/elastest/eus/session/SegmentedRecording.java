@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Segmented recording (HLS playlist with fMP4 segments) written by ffmpeg in
+ * a local folder. Segments are listed in the playlist once they are
+ * completed, and so they can be shipped while the session is running.
+ *
+ * @since 0.9.1
+ */
+public class SegmentedRecording {
+
+    static final String MAP_TAG = "#EXT-X-MAP:";
+    static final String URI_ATTRIBUTE = "URI=\"";
+    static final String END_LIST_TAG = "#EXT-X-ENDLIST";
+
+    private final Path folder;
+    private final String name;
+    private final Path playlist;
+    private final Set<String> shippedFiles = new LinkedHashSet<>();
+    private FileTime shippedPlaylistTime;
+    private boolean finished;
+
+    public SegmentedRecording(Path folder, String name,
+            String playlistExtension) {
+        this.folder = folder;
+        this.name = name;
+        this.playlist = folder.resolve(name + playlistExtension);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getPlaylist() {
+        return playlist;
+    }
+
+    public Path getFile(String fileName) {
+        return folder.resolve(fileName);
+    }
+
+    /**
+     * Completed files (initialization segment and media segments listed in
+     * the playlist) not shipped yet, in playlist order.
+     */
+    public synchronized List<String> getPendingFiles() throws IOException {
+        List<String> pendingFiles = new ArrayList<>();
+        if (!Files.exists(playlist)) {
+            return pendingFiles;
+        }
+        for (String line : Files.readAllLines(playlist, UTF_8)) {
+            line = line.trim();
+            String file = null;
+            if (line.startsWith(MAP_TAG) && line.contains(URI_ATTRIBUTE)) {
+                int start = line.indexOf(URI_ATTRIBUTE)
+                        + URI_ATTRIBUTE.length();
+                file = line.substring(start, line.indexOf('"', start));
+            } else if (line.equals(END_LIST_TAG)) {
+                finished = true;
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+                file = line;
+            }
+            // Only files in the recording folder (the playlist is written by
+            // ffmpeg in the browser container)
+            if (file != null && !file.contains("/")
+                    && !shippedFiles.contains(file)) {
+                pendingFiles.add(file);
+            }
+        }
+        return pendingFiles;
+    }
+
+    public synchronized void shipped(String file) {
+        shippedFiles.add(file);
+    }
+
+    /**
+     * Check if the playlist has been modified since it was last shipped.
+     */
+    public synchronized boolean isPlaylistModified() throws IOException {
+        return Files.exists(playlist) && !Files.getLastModifiedTime(playlist)
+                .equals(shippedPlaylistTime);
+    }
+
+    public synchronized void playlistShipped(FileTime modifiedTime) {
+        shippedPlaylistTime = modifiedTime;
+    }
+
+    public synchronized Set<String> getShippedFiles() {
+        return new LinkedHashSet<>(shippedFiles);
+    }
+
+    // True when the playlist has been completed (after stopping ffmpeg)
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+}
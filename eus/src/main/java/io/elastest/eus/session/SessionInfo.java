@@ -19,12 +19,10 @@ package io.elastest.eus.session;
 import static java.lang.invoke.MethodHandles.lookup;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Future;
-
 import org.slf4j.Logger;
 
+import io.elastest.eus.json.RecordingProfile;
+
 /**
  * Session information.
  *
@@ -43,13 +41,15 @@ public class SessionInfo {
     private String browser;
     private String version;
     private boolean liveSession;
-    private List<Future<?>> timeoutFutures = new CopyOnWriteArrayList<>();
+    private volatile long lastActivity;
     private int hubBindPort;
     private int hubVncBindPort;
     private int noVncBindPort;
+    private String devToolsUrl;
     private int timeout;
     private String browserId;
     private boolean manualRecording;
+    private RecordingProfile recordingProfile;
 
     public String getHubUrl() {
         return hubUrl;
@@ -123,12 +123,12 @@ public class SessionInfo {
         this.liveSession = liveSession;
     }
 
-    public List<Future<?>> getTimeoutFutures() {
-        return timeoutFutures;
+    public long getLastActivity() {
+        return lastActivity;
     }
 
-    public void addTimeoutFuture(Future<?> timeoutFuture) {
-        this.timeoutFutures.add(timeoutFuture);
+    public void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
     }
 
     public int getHubBindPort() {
@@ -155,6 +155,14 @@ public class SessionInfo {
         this.noVncBindPort = noVncBindPort;
     }
 
+    public String getDevToolsUrl() {
+        return devToolsUrl;
+    }
+
+    public void setDevToolsUrl(String devToolsUrl) {
+        this.devToolsUrl = devToolsUrl;
+    }
+
     public int getTimeout() {
         return timeout;
     }
@@ -179,6 +187,14 @@ public class SessionInfo {
         this.manualRecording = manualRecording;
     }
 
+    public RecordingProfile getRecordingProfile() {
+        return recordingProfile;
+    }
+
+    public void setRecordingProfile(RecordingProfile recordingProfile) {
+        this.recordingProfile = recordingProfile;
+    }
+
     public String getIdForFiles() {
         return browserId != null && !browserId.isEmpty()
                 ? browserId + "_" + sessionId : sessionId;
@@ -0,0 +1,207 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import java.util.Iterator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Create session request (POST /session). The JSON body is parsed once, and
+ * all the changes required by EUS (browser logging, Opera binary, Chrome
+ * arguments, browserId removal and empty version workaround) are applied in a
+ * single pass over the tree.
+ *
+ * @since 0.9.1
+ */
+public class SessionRequest {
+
+    static final String DESIRED_CAPABILITIES = "desiredCapabilities";
+    static final String VERSION = "version";
+    static final String BROWSER_ID = "browserId";
+    static final String DISABLE_INFOBARS = "disable-infobars";
+
+    private final JsonNode requestJson;
+    private final String browserName;
+    private final String version;
+    private final String platform;
+    private final String browserId;
+    private final boolean live;
+    private final boolean manualRecording;
+    private final JsonNode recordingProfile;
+
+    public SessionRequest(JsonNode requestJson) {
+        this.requestJson = requestJson;
+
+        JsonNode desiredCapabilities = requestJson.path(DESIRED_CAPABILITIES);
+        String desiredBrowserName = textValue(
+                desiredCapabilities.path("browserName"));
+        this.browserName = desiredBrowserName != null ? desiredBrowserName
+                : textValue(requestJson.path("capabilities").path("alwaysMatch")
+                        .path("browserName"));
+        this.version = textValue(desiredCapabilities.path(VERSION));
+        this.platform = textValue(desiredCapabilities.path("platform"));
+        this.browserId = textValue(desiredCapabilities.path(BROWSER_ID));
+        this.live = desiredCapabilities.path("live").asBoolean();
+        this.manualRecording = desiredCapabilities.path("manualRecording")
+                .asBoolean();
+        this.recordingProfile = desiredCapabilities.get("recordingProfile");
+    }
+
+    /**
+     * Apply the changes to the request JSON (in place).
+     *
+     * @param chromeArgs
+     *            additional arguments for Chrome (e.g. remote debugging)
+     * @return the request JSON to be sent to the browser
+     */
+    public JsonNode rewrite(String... chromeArgs) {
+        rewrite(requestJson, isVersionWorkaround(), chromeArgs);
+        return requestJson;
+    }
+
+    /**
+     * Workaround due to bug of selenium-server 3.4.0. More info on:
+     * https://github.com/SeleniumHQ/selenium/issues/3808
+     */
+    public boolean isVersionWorkaround() {
+        boolean firefoxWithVersion = "firefox".equalsIgnoreCase(browserName)
+                && (version == null || version.isEmpty());
+        boolean betaUnstable = version != null
+                && (version.isEmpty() || version.equalsIgnoreCase("latest")
+                        || version.equalsIgnoreCase("unstable")
+                        || version.equalsIgnoreCase("beta")
+                        || version.equalsIgnoreCase("nightly"));
+        return firefoxWithVersion || betaUnstable;
+    }
+
+    private void rewrite(JsonNode node, boolean emptyVersion,
+            String[] chromeArgs) {
+        if (node.isObject()) {
+            ObjectNode object = (ObjectNode) node;
+            JsonNode desiredCapabilities = object.get(DESIRED_CAPABILITIES);
+            if (desiredCapabilities != null && desiredCapabilities.isObject()) {
+                rewriteDesiredCapabilities((ObjectNode) desiredCapabilities,
+                        chromeArgs);
+            }
+
+            object.remove(BROWSER_ID);
+            JsonNode versionNode = object.get(VERSION);
+            if (emptyVersion && versionNode != null && !versionNode.isNull()
+                    && !(versionNode.isBoolean() && !versionNode.asBoolean())) {
+                object.put(VERSION, "");
+            }
+        }
+        for (Iterator<JsonNode> it = node.elements(); it.hasNext();) {
+            rewrite(it.next(), emptyVersion, chromeArgs);
+        }
+    }
+
+    private void rewriteDesiredCapabilities(ObjectNode desiredCapabilities,
+            String[] chromeArgs) {
+        // Activate always the browser logging
+        desiredCapabilities.putObject("loggingPrefs").put("browser", "ALL");
+
+        // Add binary path if opera
+        if ("operablink".equalsIgnoreCase(browserName)) {
+            ObjectNode operaOptions = desiredCapabilities
+                    .putObject("operaOptions");
+            operaOptions.putArray("args");
+            operaOptions.put("binary", "/usr/bin/opera");
+            operaOptions.putArray("extensions");
+        }
+
+        // Remove banner (and add the arguments required by EUS) if chrome
+        if ("chrome".equalsIgnoreCase(browserName)) {
+            JsonNode chromeOptions = desiredCapabilities.get("chromeOptions");
+            if (chromeOptions == null || chromeOptions.isNull()) {
+                chromeOptions = desiredCapabilities.putObject("chromeOptions");
+            }
+            if (chromeOptions.isObject()) {
+                JsonNode args = chromeOptions.get("args");
+                if (args == null || !args.isArray()) {
+                    args = ((ObjectNode) chromeOptions).putArray("args");
+                }
+                if (!containsText(args, DISABLE_INFOBARS)) {
+                    ((ArrayNode) args).add(DISABLE_INFOBARS);
+                }
+                for (String chromeArg : chromeArgs) {
+                    if (!containsText(args, chromeArg)) {
+                        ((ArrayNode) args).add(chromeArg);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean containsText(JsonNode array, String text) {
+        for (JsonNode element : array) {
+            if (text.equals(element.asText())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String textValue(JsonNode node) {
+        return node.isValueNode() && !node.isNull() ? node.asText() : null;
+    }
+
+    public JsonNode getRequestJson() {
+        return requestJson;
+    }
+
+    public String getBrowserName() {
+        return browserName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    public String getBrowserId() {
+        return browserId;
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+
+    public boolean isManualRecording() {
+        return manualRecording;
+    }
+
+    public JsonNode getRecordingProfile() {
+        return recordingProfile;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionRequest [getBrowserName()=" + getBrowserName()
+                + ", getVersion()=" + getVersion() + ", getPlatform()="
+                + getPlatform() + ", getBrowserId()=" + getBrowserId()
+                + ", isLive()=" + isLive() + ", isManualRecording()="
+                + isManualRecording() + "]";
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.elastest.eus.json.RecordingProfile;
+
+/**
+ * Transcoding of a lossless recording (id-lossless.mkv in the registry folder)
+ * to its final format. Jobs are ordered by priority, and then by submission.
+ *
+ * @since 0.9.1
+ */
+public class TranscodingJob implements Comparable<TranscodingJob> {
+
+    public static final String LOSSLESS_SUFFIX = "-lossless.mkv";
+
+    // Recovered after a restart
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    // Recording requested by a client
+    public static final int PRIORITY_HIGH = 2;
+
+    static final AtomicLong sequenceGenerator = new AtomicLong();
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String id;
+    private final RecordingProfile profile;
+    private final long sequence;
+    private volatile int priority;
+    private volatile State state = State.QUEUED;
+    private volatile String error;
+
+    public TranscodingJob(String id, RecordingProfile profile, int priority) {
+        this.id = id;
+        this.profile = profile;
+        this.priority = priority;
+        this.sequence = sequenceGenerator.getAndIncrement();
+    }
+
+    @Override
+    public int compareTo(TranscodingJob other) {
+        if (priority != other.priority) {
+            return Integer.compare(other.priority, priority);
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getInputFileName() {
+        return id + LOSSLESS_SUFFIX;
+    }
+
+    public RecordingProfile getProfile() {
+        return profile;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    public boolean isPending() {
+        return state == State.QUEUED || state == State.RUNNING;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return "TranscodingJob [getId()=" + getId() + ", getPriority()="
+                + getPriority() + ", getState()=" + getState() + "]";
+    }
+
+}
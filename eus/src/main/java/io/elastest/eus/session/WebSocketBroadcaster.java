@@ -0,0 +1,190 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.session;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Asynchronous fan-out of WebSocket messages. Each message is serialized
+ * once by the caller (TextMessage) and queued in a bounded queue per client,
+ * which is drained by a shared pool of sender threads. Sends are done through
+ * a ConcurrentWebSocketSessionDecorator (send time and buffer limits), and
+ * clients that cannot keep up (full queue, send in progress longer than the
+ * send time limit, or limits exceeded) are disconnected.
+ *
+ * @since 0.9.1
+ */
+public class WebSocketBroadcaster implements Closeable {
+
+    final Logger log = getLogger(lookup().lookupClass());
+
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final ExecutorService sendExecutor;
+    private final int sendTimeLimitMs;
+    private final int bufferSizeLimit;
+    private final int queueSize;
+
+    public WebSocketBroadcaster(int threads, int sendTimeLimitMs,
+            int bufferSizeLimit, int queueSize) {
+        this.sendExecutor = newFixedThreadPool(threads);
+        this.sendTimeLimitMs = sendTimeLimitMs;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Register a client, returning its session decorated with the send
+     * limits (to be used for any other message sent to the client).
+     */
+    public WebSocketSession register(WebSocketSession session) {
+        Client client = new Client(session);
+        clients.put(session.getId(), client);
+        return client.session;
+    }
+
+    public void unregister(String sessionId) {
+        clients.remove(sessionId);
+    }
+
+    public void broadcast(TextMessage message) {
+        log.trace("Broadcasting {} to {} clients", message.getPayload(),
+                clients.size());
+        clients.values().forEach(client -> client.offer(message));
+        Metrics.counter("eus.websocket.broadcasts").increment();
+    }
+
+    /**
+     * Send a message to a single client, in order with the broadcasts.
+     */
+    public void send(String sessionId, TextMessage message) {
+        Client client = clients.get(sessionId);
+        if (client != null) {
+            client.offer(message);
+        }
+    }
+
+    public boolean hasClients() {
+        return !clients.isEmpty();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    @Override
+    public void close() {
+        sendExecutor.shutdownNow();
+    }
+
+    private class Client implements Runnable {
+        final ConcurrentWebSocketSessionDecorator session;
+        final BlockingQueue<TextMessage> queue;
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        volatile long sendStartTime = 0;
+
+        Client(WebSocketSession webSocketSession) {
+            session = new ConcurrentWebSocketSessionDecorator(
+                    webSocketSession, sendTimeLimitMs, bufferSizeLimit);
+            queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        void offer(TextMessage message) {
+            long startTime = sendStartTime;
+            if (startTime != 0
+                    && currentTimeMillis() - startTime > sendTimeLimitMs) {
+                disconnect("send time limit exceeded");
+            } else if (!queue.offer(message)) {
+                disconnect("message queue is full");
+            } else {
+                schedule();
+            }
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    sendExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                TextMessage message;
+                while (session.isOpen() && (message = queue.poll()) != null) {
+                    sendStartTime = currentTimeMillis();
+                    session.sendMessage(message);
+                    sendStartTime = 0;
+                }
+            } catch (SessionLimitExceededException e) {
+                disconnect(e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                log.debug("Exception sending message to WebSocket {}: {}",
+                        session.getId(), e.getMessage());
+                disconnect("send error");
+            } finally {
+                sendStartTime = 0;
+                scheduled.set(false);
+            }
+            if (!queue.isEmpty() && session.isOpen()) {
+                schedule();
+            }
+        }
+
+        void disconnect(String reason) {
+            if (clients.remove(session.getId(), this)) {
+                log.warn("Disconnecting WebSocket client {}: {}",
+                        session.getId(), reason);
+                Metrics.counter("eus.websocket.disconnected").increment();
+                queue.clear();
+                try {
+                    session.getDelegate()
+                            .close(CloseStatus.SESSION_NOT_RELIABLE);
+                } catch (IOException e) {
+                    log.trace("Exception closing WebSocket {}",
+                            e.getMessage());
+                }
+            }
+        }
+    }
+
+}
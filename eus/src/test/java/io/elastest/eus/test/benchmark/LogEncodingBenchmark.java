@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.benchmark;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.json.WebDriverLog;
+import io.elastest.eus.logstash.LogEventEncoder;
+import io.elastest.eus.service.LogstashService;
+
+/**
+ * JMH benchmark of the JSON encoding of console log batches: string
+ * concatenation and regex escaping (getJsonMessageFromValueList) vs the
+ * streaming encoder. Run with:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=io.elastest.eus.test.benchmark.LogEncodingBenchmark
+ *
+ * @since 0.9.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LogEncodingBenchmark {
+
+    static final String COMPONENT = "tss_eus_browser_sessionId";
+    static final String EXEC = "1";
+    static final String STREAM = "console";
+
+    @Param({ "1", "100", "10000" })
+    int batchSize;
+
+    List<WebDriverLog.Value> values;
+    LogstashService logstashService = new LogstashService();
+    LogEventEncoder encoder = new LogEventEncoder();
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder json = new StringBuilder("{\"value\":[");
+        for (int i = 0; i < batchSize; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"level\":\"INFO\",\"message\":\"console-api 2:32 "
+                    + "\\\"Message\\\" number " + i + "\\tof the test\"}");
+        }
+        json.append("]}");
+        values = new ObjectMapper()
+                .readValue(json.toString(), WebDriverLog.class).getValue();
+    }
+
+    @Benchmark
+    public String concatenation() {
+        String jsonMessages = logstashService
+                .getJsonMessageFromValueList(values);
+        return "{" + "\"component\":\"" + COMPONENT + "\"" + ",\"exec\":\""
+                + EXEC + "\"" + ",\"stream\":\"" + STREAM + "\""
+                + ",\"messages\":" + jsonMessages + "}";
+    }
+
+    @Benchmark
+    public String streamingEncoder() throws IOException {
+        return encoder.encode(COMPONENT, EXEC, STREAM, values);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LogEncodingBenchmark.class.getSimpleName()).build())
+                        .run();
+    }
+
+}
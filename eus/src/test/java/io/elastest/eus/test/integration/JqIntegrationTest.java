@@ -16,6 +16,8 @@
  */
 package io.elastest.eus.test.integration;
 
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.StringContains.containsString;
@@ -63,4 +65,31 @@ public class JqIntegrationTest {
         assertThat(result, not(containsString(version)));
     }
 
+    @Test
+    @DisplayName("JQ test with variables")
+    void testJqWithVariables() throws IOException {
+        String json = "{ \"value\": { \"sessionId\": \"1234\" } }";
+        String jq = "walk(if type == \"object\" then .hubContainerName += $name else . end)";
+        String result1 = jsonService.processJsonWithJq(json, jq,
+                singletonMap("name", "container1"));
+        String result2 = jsonService.processJsonWithJq(json, jq,
+                singletonMap("name", "container2"));
+
+        assertThat(result1, containsString("container1"));
+        assertThat(result2, containsString("container2"));
+        assertThat(result2, not(containsString("container1")));
+    }
+
+    @Test
+    @DisplayName("Insert field without processing the whole JSON")
+    void testInsertField() throws IOException {
+        String json = "{\"value\":{\"sessionId\":\"1234\",\"capabilities\":{}}}";
+        String result = jsonService.insertField(json, "hubContainerName",
+                "container", "value");
+
+        assertThat(result, equalTo("{\"hubContainerName\":\"container\","
+                + "\"value\":{\"hubContainerName\":\"container\","
+                + "\"sessionId\":\"1234\",\"capabilities\":{}}}"));
+    }
+
 }
@@ -61,7 +61,8 @@ import io.elastest.eus.service.LogstashService;
 @SpringBootTest(webEnvironment = RANDOM_PORT)
 @Tag("integration")
 @DisplayName("Integration test for Logstash Service")
-@TestPropertySource(properties = { "et.mon.exec=normal" })
+@TestPropertySource(properties = { "et.mon.exec=normal",
+        "et.mon.lshttps.api=http://localhost/" })
 public class LogstashIntegrationTest {
 
     final Logger log = getLogger(lookup().lookupClass());
@@ -98,6 +99,7 @@ public class LogstashIntegrationTest {
     @DisplayName("Send dummy console logs to mock logstash")
     void test() {
         logstashService.sendBrowserConsoleToLogstash("{}", "sessionId");
+        logstashService.flush();
         verify(postRequestedFor(urlEqualTo("/")).withHeader("Content-Type",
                 equalTo("application/json; charset=UTF-8")));
     }
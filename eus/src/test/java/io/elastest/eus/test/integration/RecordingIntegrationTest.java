@@ -20,12 +20,21 @@ import static java.lang.invoke.MethodHandles.lookup;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpHeaders.CONTENT_RANGE;
+import static org.springframework.http.HttpHeaders.ETAG;
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
+import static org.springframework.http.HttpHeaders.RANGE;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Tag;
@@ -33,10 +42,12 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.web.server.LocalServerPort;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
 
@@ -60,6 +71,9 @@ public class RecordingIntegrationTest {
     @Autowired
     WebApplicationContext webContext;
 
+    @Value("${registry.folder}")
+    String registryFolder;
+
     MockMvc mockMvc;
 
     @BeforeEach
@@ -101,4 +115,28 @@ public class RecordingIntegrationTest {
                 .andExpect(status().isInternalServerError());
     }
 
+    @Test
+    @DisplayName("GET /registry/{fileName} with range and conditional requests")
+    void testRegistryFile() throws Exception {
+        Path file = Paths.get(registryFolder, "range-test.mp4");
+        Files.createDirectories(file.getParent());
+        Files.write(file, "0123456789".getBytes());
+        try {
+            MvcResult result = mockMvc
+                    .perform(get("/registry/range-test.mp4").header(RANGE,
+                            "bytes=2-5"))
+                    .andExpect(status().isPartialContent())
+                    .andExpect(header().string(CONTENT_RANGE, "bytes 2-5/10"))
+                    .andExpect(content().string("2345")).andReturn();
+            mockMvc.perform(get("/registry/range-test.mp4").header(
+                    IF_NONE_MATCH, result.getResponse().getHeader(ETAG)))
+                    .andExpect(status().isNotModified());
+            mockMvc.perform(get("/registry/range-test.mp4").header(RANGE,
+                    "bytes=20-"))
+                    .andExpect(status().isRequestedRangeNotSatisfiable());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
 }
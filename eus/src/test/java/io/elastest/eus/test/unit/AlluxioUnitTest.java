@@ -31,8 +31,11 @@ import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 import org.apache.commons.io.IOUtils;
@@ -102,6 +105,8 @@ public class AlluxioUnitTest {
         FieldSetter.setField(alluxioService, AlluxioService.class
                 .getDeclaredField(metadataExtensionFieldName),
                 metadataExtension);
+        FieldSetter.setField(alluxioService,
+                AlluxioService.class.getDeclaredField("bufferSize"), 4);
 
         log.debug("Mock servicio for Alluxio in URL {}", mockAlluxioUrl);
 
@@ -148,6 +153,37 @@ public class AlluxioUnitTest {
         alluxioService.writeFile(filename, contentFile.getBytes());
     }
 
+    @Test
+    @DisplayName("Download file to disk")
+    void testGetFileToDisk() throws IOException {
+        Path targetFile = Files.createTempFile("alluxio", ".mp4");
+        try {
+            long size = alluxioService.getFile(filename, targetFile);
+            assertThat(size, equalTo((long) contentFile.length()));
+            assertThat(new String(Files.readAllBytes(targetFile)),
+                    equalTo(contentFile));
+        } finally {
+            Files.delete(targetFile);
+        }
+    }
+
+    @Test
+    @DisplayName("Upload file from disk and stream")
+    void testWriteFileFromDisk() throws IOException {
+        Path sourceFile = Files.createTempFile("alluxio", ".mp4");
+        try {
+            Files.write(sourceFile, contentFile.getBytes());
+            assertThat(alluxioService.writeFile(filename, sourceFile),
+                    equalTo(true));
+            try (InputStream inputStream = Files.newInputStream(sourceFile)) {
+                assertThat(alluxioService.writeFile(filename, inputStream),
+                        equalTo(true));
+            }
+        } finally {
+            Files.delete(sourceFile);
+        }
+    }
+
     @Test
     @DisplayName("Delete file")
     void testDeleteFile() throws IOException {
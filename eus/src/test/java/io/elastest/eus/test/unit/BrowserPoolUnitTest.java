@@ -0,0 +1,190 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.elastest.eus.service.BrowserContainerService;
+import io.elastest.eus.service.BrowserPoolService;
+import io.elastest.eus.service.DockerHubService;
+import io.elastest.eus.session.SessionInfo;
+
+/**
+ * Tests for the warm pool of browsers.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for warm pool of browsers")
+public class BrowserPoolUnitTest {
+
+    BrowserContainerService browserContainerService;
+    DockerHubService dockerHubService;
+    BrowserPoolService browserPoolService;
+    HttpServer hub;
+    String aliveHubUrl;
+    String deadHubUrl;
+    AtomicInteger containers = new AtomicInteger();
+
+    @BeforeEach
+    void setup() throws IOException {
+        hub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        hub.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        hub.start();
+        aliveHubUrl = "http://localhost:" + hub.getAddress().getPort()
+                + "/wd/hub";
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadHubUrl = "http://localhost:" + socket.getLocalPort()
+                    + "/wd/hub";
+        }
+
+        browserContainerService = mock(BrowserContainerService.class);
+        dockerHubService = mock(DockerHubService.class);
+        browserPoolService = new BrowserPoolService(browserContainerService,
+                dockerHubService);
+        setField(browserPoolService, "browserPool", "chrome:latest=2");
+        setField(browserPoolService, "refillThreads", 2);
+        setField(browserPoolService, "maintenanceMs", 100L);
+        setField(browserPoolService, "probeTimeoutMs", 500);
+        setField(browserPoolService, "shutdownTimeoutSec", 10L);
+    }
+
+    @AfterEach
+    void teardown() {
+        browserPoolService.cleanUp();
+        hub.stop(0);
+    }
+
+    @Test
+    @DisplayName("Hand out only alive containers")
+    void testClaim() throws Exception {
+        SessionInfo dead = newSessionInfo(deadHubUrl);
+        when(dockerHubService.getBrowserImageFromCapabilities("chrome",
+                "latest", null)).thenReturn("image1");
+        when(browserContainerService.startBrowserContainer("chrome",
+                "image1")).thenReturn(dead)
+                        .thenAnswer(invocation -> newSessionInfo(aliveHubUrl));
+        browserPoolService.init();
+
+        verify(browserContainerService, timeout(5000))
+                .stopBrowserContainer(dead);
+        Optional<SessionInfo> claimed = waitClaim("image1");
+        assertTrue(claimed.isPresent());
+        assertThat(claimed.get().getHubUrl(), equalTo(aliveHubUrl));
+        assertFalse(browserPoolService.claim("image2").isPresent());
+    }
+
+    @Test
+    @DisplayName("Replace containers when the image changes")
+    void testImageChange() throws Exception {
+        CountDownLatch imageChanged = new CountDownLatch(1);
+        when(dockerHubService.getBrowserImageFromCapabilities("chrome",
+                "latest", null)).thenAnswer(invocation -> imageChanged
+                        .getCount() == 0 ? "image2" : "image1");
+        when(browserContainerService.startBrowserContainer(eq("chrome"),
+                anyString()))
+                        .thenAnswer(invocation -> newSessionInfo(aliveHubUrl));
+        browserPoolService.init();
+        verify(browserContainerService, timeout(5000).times(2))
+                .startBrowserContainer("chrome", "image1");
+
+        imageChanged.countDown();
+        verify(browserContainerService, timeout(5000).times(2))
+                .startBrowserContainer("chrome", "image2");
+        verify(browserContainerService, timeout(5000).atLeast(2))
+                .stopBrowserContainer(any(SessionInfo.class));
+        assertFalse(browserPoolService.claim("image1").isPresent());
+        assertTrue(waitClaim("image2").isPresent());
+    }
+
+    @Test
+    @DisplayName("Stop containers being started on shutdown")
+    void testShutdown() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SessionInfo starting = newSessionInfo(aliveHubUrl);
+        setField(browserPoolService, "browserPool", "chrome:latest=1");
+        when(dockerHubService.getBrowserImageFromCapabilities("chrome",
+                "latest", null)).thenReturn("image1");
+        when(browserContainerService.startBrowserContainer("chrome",
+                "image1")).thenAnswer(invocation -> {
+                    started.countDown();
+                    assertTrue(release.await(10, SECONDS));
+                    return starting;
+                });
+        browserPoolService.init();
+        assertTrue(started.await(5, SECONDS));
+
+        Thread cleanUp = new Thread(browserPoolService::cleanUp);
+        cleanUp.start();
+        release.countDown();
+        cleanUp.join(10000);
+
+        assertFalse(cleanUp.isAlive());
+        verify(browserContainerService).stopBrowserContainer(starting);
+        assertFalse(browserPoolService.claim("image1").isPresent());
+    }
+
+    private Optional<SessionInfo> waitClaim(String imageId)
+            throws InterruptedException {
+        Optional<SessionInfo> claimed = browserPoolService.claim(imageId);
+        for (int i = 0; i < 100 && !claimed.isPresent(); i++) {
+            Thread.sleep(50);
+            claimed = browserPoolService.claim(imageId);
+        }
+        return claimed;
+    }
+
+    private SessionInfo newSessionInfo(String hubUrl) {
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setHubUrl(hubUrl);
+        sessionInfo.setHubContainerName(
+                "warm-" + containers.incrementAndGet());
+        return sessionInfo;
+    }
+
+}
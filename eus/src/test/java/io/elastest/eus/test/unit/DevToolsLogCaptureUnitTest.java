@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+
+import io.elastest.eus.json.WebDriverLog;
+import io.elastest.eus.logstash.DevToolsLogCapture;
+
+/**
+ * Tests for browser log capture with DevTools.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for DevTools log capture")
+public class DevToolsLogCaptureUnitTest {
+
+    @Test
+    @DisplayName("Map DevTools events to WebDriver logs")
+    void testEvents() throws Exception {
+        List<WebDriverLog.Value> logs = new ArrayList<>();
+        List<DevToolsLogCapture> failures = new ArrayList<>();
+        DevToolsLogCapture capture = new DevToolsLogCapture(
+                "http://localhost", "sessionId", logs::addAll, failures::add);
+
+        capture.handleMessage(null, new TextMessage(
+                "{\"method\":\"Runtime.consoleAPICalled\",\"params\":{"
+                        + "\"type\":\"error\",\"args\":[{\"type\":\"string\","
+                        + "\"value\":\"failed\"},{\"type\":\"number\","
+                        + "\"value\":42}]}}"));
+        capture.handleMessage(null, new TextMessage(
+                "{\"method\":\"Log.entryAdded\",\"params\":{\"entry\":{"
+                        + "\"source\":\"network\",\"level\":\"warning\","
+                        + "\"text\":\"404\"}}}"));
+        capture.handleMessage(null,
+                new TextMessage("{\"id\":1,\"result\":{}}"));
+
+        assertThat(logs.size(), equalTo(2));
+        assertThat(logs.get(0).toString(),
+                equalTo("[SEVERE] console-api failed 42"));
+        assertThat(logs.get(1).toString(), equalTo("[WARNING] network 404"));
+
+        // Failure callback is called once
+        capture.afterConnectionClosed(null, CloseStatus.GOING_AWAY);
+        capture.afterConnectionClosed(null, CloseStatus.GOING_AWAY);
+        assertThat(failures.size(), equalTo(1));
+    }
+
+    @Test
+    @DisplayName("Find the WebSocket of the page in the DevTools targets")
+    void testWebSocketDebuggerUrl() throws Exception {
+        RestTemplate restTemplate = mock(RestTemplate.class);
+        when(restTemplate.getForObject("http://172.17.0.1:32768/json",
+                String.class)).thenReturn("[{\"type\":\"service_worker\","
+                        + "\"webSocketDebuggerUrl\":\"ws://127.0.0.1:9222/"
+                        + "devtools/page/SW\"},{\"type\":\"page\","
+                        + "\"webSocketDebuggerUrl\":\"ws://127.0.0.1:9222/"
+                        + "devtools/page/ABCD\"}]");
+        DevToolsLogCapture capture = new DevToolsLogCapture(
+                "http://172.17.0.1:32768", "sessionId", logs -> {
+                }, failure -> {
+                });
+
+        assertThat(capture.getWebSocketDebuggerUrl(restTemplate), equalTo(
+                "ws://172.17.0.1:32768/devtools/page/ABCD"));
+    }
+
+}
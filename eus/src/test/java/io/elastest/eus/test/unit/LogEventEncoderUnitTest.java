@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.json.WebDriverLog;
+import io.elastest.eus.logstash.LogEventEncoder;
+
+/**
+ * Tests for the JSON encoding of log events.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for log event encoder")
+public class LogEventEncoderUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    @DisplayName("Encode and escape console logs")
+    void testEncode() throws IOException {
+        List<WebDriverLog.Value> values = objectMapper.readValue(
+                "{\"value\":[{\"level\":\"INFO\",\"message\":\"a \\\"b\\\"\"},"
+                        + "{\"level\":\"SEVERE\",\"message\":\"c\\\\\\n\\td\"}]}",
+                WebDriverLog.class).getValue();
+        LogEventEncoder encoder = new LogEventEncoder();
+
+        // The encoder is reused between events
+        encoder.encode("component", "exec", "console", values);
+        JsonNode event = objectMapper.readTree(
+                encoder.encode("component", "exec", "console", values));
+
+        assertThat(event.path("component").asText(), equalTo("component"));
+        assertThat(event.path("exec").asText(), equalTo("exec"));
+        assertThat(event.path("stream").asText(), equalTo("console"));
+        assertThat(event.path("messages").get(0).asText(),
+                equalTo("[INFO] a \"b\""));
+        assertThat(event.path("messages").get(1).asText(),
+                equalTo("[SEVERE] c\\\n\td"));
+    }
+
+}
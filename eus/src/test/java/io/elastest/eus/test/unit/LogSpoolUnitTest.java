@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.logstash.LogSpool;
+
+/**
+ * Tests for the disk spool of logs.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for log spool")
+public class LogSpoolUnitTest {
+
+    Path folder;
+
+    @BeforeEach
+    void setup() throws IOException {
+        folder = Files.createTempDirectory("spool");
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("Replay spooled logs after reopening")
+    void testReplay() throws IOException {
+        LogSpool spool = new LogSpool(folder, 64, 1024, true);
+        spool.open();
+        for (int i = 0; i < 5; i++) {
+            spool.append("{\"log\":" + i + "}");
+        }
+        List<String> events = spool.peek(2, 1024);
+        assertThat(events,
+                equalTo(Arrays.asList("{\"log\":0}", "{\"log\":1}")));
+        spool.commit();
+        spool.close();
+
+        LogSpool recoveredSpool = new LogSpool(folder, 64, 1024, true);
+        recoveredSpool.open();
+        assertThat(recoveredSpool.peek(10, 1024).get(0),
+                equalTo("{\"log\":2}"));
+        recoveredSpool.commit();
+        while (!recoveredSpool.isEmpty()) {
+            assertTrue(!recoveredSpool.peek(10, 1024).isEmpty());
+            recoveredSpool.commit();
+        }
+        recoveredSpool.close();
+    }
+
+    @Test
+    @DisplayName("Fill a segment, drain it, then append")
+    void testAppendAfterDrain() throws IOException {
+        // Segments of two records, only one segment in the budget
+        for (boolean dropOldest : Arrays.asList(true, false)) {
+            LogSpool spool = new LogSpool(folder.resolve("drain-" + dropOldest),
+                    32, 32, dropOldest);
+            spool.open();
+            spool.append("event-0");
+            spool.append("event-1");
+            assertThat(spool.peek(10, 1024).size(), equalTo(2));
+            spool.commit();
+            assertTrue(spool.isEmpty());
+
+            assertThat(spool.append("event-2"), equalTo(0));
+            assertThat(spool.peek(10, 1024),
+                    equalTo(Arrays.asList("event-2")));
+            spool.commit();
+            assertTrue(spool.isEmpty());
+            spool.close();
+        }
+
+        // Drained head followed by a new segment
+        LogSpool spool = new LogSpool(folder.resolve("drain"), 32, 64, true);
+        spool.open();
+        spool.append("event-0");
+        spool.append("event-1");
+        spool.peek(10, 1024);
+        spool.commit();
+        spool.append("event-2");
+        assertThat(spool.peek(10, 1024), equalTo(Arrays.asList("event-2")));
+        spool.close();
+    }
+
+    @Test
+    @DisplayName("Drop oldest or newest logs when the spool is full")
+    void testDropPolicy() throws IOException {
+        // Two segments of two records
+        LogSpool dropOldestSpool = new LogSpool(folder, 32, 64, true);
+        dropOldestSpool.open();
+        int dropped = 0;
+        for (int i = 0; i < 5; i++) {
+            dropped += dropOldestSpool.append("event-" + i);
+        }
+        assertThat(dropped, equalTo(2));
+        assertThat(dropOldestSpool.peek(1, 1024).get(0), equalTo("event-2"));
+        dropOldestSpool.close();
+
+        LogSpool dropNewestSpool = new LogSpool(folder.resolve("newest"), 32,
+                64, false);
+        dropNewestSpool.open();
+        dropped = 0;
+        for (int i = 0; i < 5; i++) {
+            dropped += dropNewestSpool.append("event-" + i);
+        }
+        assertThat(dropped, equalTo(1));
+        assertThat(dropNewestSpool.peek(1, 1024).get(0), equalTo("event-0"));
+        dropNewestSpool.close();
+    }
+
+}
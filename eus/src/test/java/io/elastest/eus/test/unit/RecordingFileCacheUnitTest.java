@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.session.RecordingFileCache;
+import io.elastest.eus.session.RecordingFileCache.FileLoader;
+
+/**
+ * Tests for the local cache of recordings.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for recording file cache")
+public class RecordingFileCacheUnitTest {
+
+    static final byte[] CONTENT = "0123456789".getBytes();
+
+    Path folder;
+    ExecutorService downloadExecutor = Executors.newFixedThreadPool(2);
+    AtomicInteger loads = new AtomicInteger();
+    FileLoader loader = outputStream -> {
+        loads.incrementAndGet();
+        outputStream.write(CONTENT);
+    };
+
+    @BeforeEach
+    void setup() throws IOException {
+        folder = Files.createTempDirectory("recordings");
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        downloadExecutor.shutdownNow();
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("Download each file once and evict the least recently used")
+    void testEviction() throws IOException {
+        RecordingFileCache cache = new RecordingFileCache(folder, 20,
+                downloadExecutor);
+        cache.open();
+
+        assertThat(read(cache, "file1", 1, 3, loader), equalTo("123"));
+        assertThat(read(cache, "file1", 5, 5, loader), equalTo("56789"));
+        assertThat(read(cache, "file2", 0, 4, loader), equalTo("0123"));
+        assertThat(loads.get(), equalTo(2));
+        assertThat(cache.getCachedBytes(), equalTo(20L));
+
+        // file1 is the least recently used
+        assertThat(read(cache, "file3", 8, 2, loader), equalTo("89"));
+        assertThat(cache.getCachedBytes(), equalTo(20L));
+        assertThat(read(cache, "file1", 0, 1, loader), equalTo("0"));
+        assertThat(loads.get(), equalTo(4));
+
+        cache.invalidate("file1");
+        assertThat(cache.getCachedBytes(), equalTo(10L));
+    }
+
+    @Test
+    @DisplayName("Serve ranges while downloading")
+    void testProgressiveDownload() throws Exception {
+        RecordingFileCache cache = new RecordingFileCache(folder, 100,
+                downloadExecutor);
+        cache.open();
+        CountDownLatch secondHalf = new CountDownLatch(1);
+        FileLoader slowLoader = outputStream -> {
+            outputStream.write(CONTENT, 0, 5);
+            outputStream.flush();
+            try {
+                secondHalf.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            outputStream.write(CONTENT, 5, 5);
+        };
+
+        assertThat(read(cache, "file", 0, 5, slowLoader), equalTo("01234"));
+        CompletableFuture<String> secondRange = CompletableFuture
+                .supplyAsync(() -> {
+                    try {
+                        return read(cache, "file", 3, 7, slowLoader);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+        secondHalf.countDown();
+        assertThat(secondRange.get(5, SECONDS), equalTo("3456789"));
+    }
+
+    private String read(RecordingFileCache cache, String fileName,
+            long position, long count, FileLoader fileLoader)
+            throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        cache.transferTo(fileName, 1, CONTENT.length, position, count,
+                fileLoader, (channel, rangePosition, bytes) -> channel
+                        .transferTo(rangePosition, bytes,
+                                Channels.newChannel(outputStream)));
+        return outputStream.toString();
+    }
+
+}
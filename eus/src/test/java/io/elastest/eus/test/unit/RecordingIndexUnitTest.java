@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.session.RecordingIndex;
+
+/**
+ * Tests for the index of recording metadata.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for recording index")
+public class RecordingIndexUnitTest {
+
+    static final String DATE_FORMAT = "dd-MM-yyyy hh:mm:ss z";
+
+    Path folder;
+    Path logFile;
+
+    @BeforeEach
+    void setup() throws IOException {
+        folder = Files.createTempDirectory("registry");
+        logFile = folder.resolve("index.log");
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("Filter recordings and recover them from the log")
+    void testFindAndRecover() throws IOException {
+        RecordingIndex index = new RecordingIndex(logFile, DATE_FORMAT);
+        assertFalse(index.load());
+        index.put("b1_s1", "b1", metadata("b1_s1", "chrome",
+                "01-02-2019 10:00:00 UTC"));
+        index.put("b1_s2", "b1", metadata("b1_s2", "firefox",
+                "02-02-2019 10:00:00 UTC"));
+        index.put("s3", null, metadata("s3", "chrome",
+                "03-02-2019 10:00:00 UTC"));
+        index.remove("b1_s2");
+
+        assertThat(index.find("chrome", null, 0, 0).size(), equalTo(2));
+        assertThat(index.find(null, "b1", 0, 0).size(), equalTo(1));
+        long from = index.find(null, null, 0, 0).get(1).getCreationMillis();
+        assertThat(index.find(null, null, from, 0).get(0).getId(),
+                equalTo("s3"));
+        index.close();
+
+        RecordingIndex recoveredIndex = new RecordingIndex(logFile,
+                DATE_FORMAT);
+        assertTrue(recoveredIndex.load());
+        assertThat(recoveredIndex.size(), equalTo(2));
+        assertThat(recoveredIndex.getAll().get(0).getRecordedSession()
+                .getBrowser(), equalTo("chrome"));
+        assertFalse(recoveredIndex.contains("b1_s2"));
+        recoveredIndex.close();
+    }
+
+    @Test
+    @DisplayName("Compact the log")
+    void testCompaction() throws IOException {
+        RecordingIndex index = new RecordingIndex(logFile, DATE_FORMAT);
+        index.load();
+        for (int i = 0; i < 500; i++) {
+            index.put("s" + i, null, metadata("s" + i, "chrome", ""));
+            index.remove("s" + i);
+        }
+        index.put("s", null, metadata("s", "chrome", ""));
+        index.close();
+
+        assertTrue(Files.readAllLines(logFile).size() < 250);
+        RecordingIndex recoveredIndex = new RecordingIndex(logFile,
+                DATE_FORMAT);
+        recoveredIndex.load();
+        assertThat(recoveredIndex.size(), equalTo(1));
+        recoveredIndex.close();
+    }
+
+    @Test
+    @DisplayName("Record imported sources in the log")
+    void testImported() throws IOException {
+        RecordingIndex index = new RecordingIndex(logFile, DATE_FORMAT);
+        index.load();
+        index.close();
+
+        // A failed import is not recorded, and so it is tried again
+        index = new RecordingIndex(logFile, DATE_FORMAT);
+        assertTrue(index.load());
+        assertFalse(index.isImported("alluxio"));
+        index.put("s1", null, metadata("s1", "chrome", ""));
+        index.markImported("alluxio");
+        for (int i = 0; i < 500; i++) {
+            index.put("s" + i, null, metadata("s" + i, "chrome", ""));
+            index.remove("s" + i);
+        }
+        index.close();
+
+        // Imported sources are kept after compaction
+        RecordingIndex recoveredIndex = new RecordingIndex(logFile,
+                DATE_FORMAT);
+        recoveredIndex.load();
+        assertTrue(recoveredIndex.isImported("alluxio"));
+        assertThat(recoveredIndex.size(), equalTo(0));
+        recoveredIndex.close();
+    }
+
+    private String metadata(String id, String browser, String creationTime) {
+        return "{\"recordedSession\":{\"id\":\"" + id + "\",\"browser\":\""
+                + browser + "\",\"creationTime\":\"" + creationTime + "\"}}";
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.SessionNotCreatedException;
+import io.elastest.eus.json.RecordingProfile;
+import io.elastest.eus.service.RecordingProfileService;
+
+/**
+ * Tests for recording profiles.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for recording profiles")
+public class RecordingProfileUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+    RecordingProfileService recordingProfileService;
+    double cpuLoad;
+
+    @BeforeEach
+    void setup() {
+        recordingProfileService = new RecordingProfileService() {
+            @Override
+            protected double getCpuLoad() {
+                return cpuLoad;
+            }
+        };
+        setField(recordingProfileService, "fps", 25);
+        setField(recordingProfileService, "crf", 28);
+        setField(recordingProfileService, "scale", 1.0);
+        setField(recordingProfileService, "keyframeInterval", 0);
+        setField(recordingProfileService, "lossless", false);
+        setField(recordingProfileService, "adaptive", true);
+        setField(recordingProfileService, "adaptiveCpuThreshold", 0.8);
+        setField(recordingProfileService, "adaptiveMinFps", 5);
+    }
+
+    @Test
+    @DisplayName("Merge requested profile with the global policy")
+    void testRequestedProfile() throws IOException {
+        RecordingProfile profile = recordingProfileService
+                .getProfile(objectMapper.readTree(
+                        "{\"fps\":15,\"scale\":0.5,\"lossless\":true}"));
+
+        assertThat(profile.toScriptArguments(), equalTo(asList("-f", "15",
+                "-q", "28", "-z", "0.5", "-g", "0", "-l")));
+        assertThrows(SessionNotCreatedException.class,
+                () -> recordingProfileService
+                        .getProfile(objectMapper.readTree("{\"crf\":60}")));
+        assertThrows(SessionNotCreatedException.class,
+                () -> recordingProfileService
+                        .getProfile(objectMapper.readTree("{\"fps\":\"x\"}")));
+    }
+
+    @Test
+    @DisplayName("Lower fps when the host CPU is saturated")
+    void testAdaptiveFps() {
+        RecordingProfile profile = recordingProfileService.getProfile(null);
+
+        cpuLoad = 0.5;
+        assertThat(recordingProfileService.adapt(profile).getFps(),
+                equalTo(25));
+        assertThat(recordingProfileService.adapt(profile).isAdapted(),
+                equalTo(false));
+
+        cpuLoad = 0.9;
+        RecordingProfile adaptedProfile = recordingProfileService
+                .adapt(profile);
+        assertThat(adaptedProfile.getFps(), equalTo(15));
+        assertThat(adaptedProfile.isAdapted(), equalTo(true));
+
+        cpuLoad = 1;
+        assertThat(recordingProfileService.adapt(profile).getFps(),
+                equalTo(5));
+        assertThat(profile.getFps(), equalTo(25));
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.session.SegmentedRecording;
+
+/**
+ * Tests for segmented recordings.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for segmented recording")
+public class SegmentedRecordingUnitTest {
+
+    static final String PLAYLIST_HEADER = "#EXTM3U\n#EXT-X-VERSION:7\n"
+            + "#EXT-X-TARGETDURATION:4\n#EXT-X-PLAYLIST-TYPE:EVENT\n"
+            + "#EXT-X-MAP:URI=\"rec-init.mp4\"\n";
+
+    Path folder;
+
+    @BeforeEach
+    void setup() throws IOException {
+        folder = Files.createTempDirectory("recordings");
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("Pending segments of a playlist being recorded")
+    void testPendingSegments() throws IOException {
+        SegmentedRecording recording = new SegmentedRecording(folder, "rec",
+                ".m3u8");
+        assertTrue(recording.getPendingFiles().isEmpty());
+
+        Path playlist = recording.getPlaylist();
+        Files.write(playlist, (PLAYLIST_HEADER
+                + "#EXTINF:4.000000,\nrec-00000.m4s\n").getBytes(UTF_8));
+        assertThat(recording.getPendingFiles(),
+                equalTo(asList("rec-init.mp4", "rec-00000.m4s")));
+        assertFalse(recording.isFinished());
+
+        recording.shipped("rec-init.mp4");
+        recording.shipped("rec-00000.m4s");
+        Files.write(playlist,
+                (PLAYLIST_HEADER + "#EXTINF:4.000000,\nrec-00000.m4s\n"
+                        + "#EXTINF:1.500000,\nrec-00001.m4s\n"
+                        + "#EXT-X-ENDLIST\n").getBytes(UTF_8));
+        assertThat(recording.getPendingFiles(),
+                equalTo(asList("rec-00001.m4s")));
+        assertTrue(recording.isFinished());
+        assertThat(recording.getFile("rec-00001.m4s"),
+                equalTo(folder.resolve("rec-00001.m4s")));
+    }
+
+    @Test
+    @DisplayName("Ship playlist only when modified")
+    void testPlaylistModified() throws IOException {
+        SegmentedRecording recording = new SegmentedRecording(folder, "rec",
+                ".m3u8");
+        assertFalse(recording.isPlaylistModified());
+
+        Path playlist = recording.getPlaylist();
+        Files.write(playlist, PLAYLIST_HEADER.getBytes(UTF_8));
+        assertTrue(recording.isPlaylistModified());
+
+        recording.playlistShipped(Files.getLastModifiedTime(playlist));
+        assertFalse(recording.isPlaylistModified());
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.SessionNotCreatedException;
+import io.elastest.eus.service.SessionAdmissionService;
+
+/**
+ * Tests for session admission control.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for session admission control")
+public class SessionAdmissionUnitTest {
+
+    SessionAdmissionService admissionService;
+
+    @BeforeEach
+    void setup() {
+        admissionService = new SessionAdmissionService();
+        setField(admissionService, "maxStarts", 1);
+        setField(admissionService, "maxLive", 2);
+        setField(admissionService, "queueSize", 1);
+        setField(admissionService, "queueTimeoutSec", 1);
+        admissionService.init();
+    }
+
+    @Test
+    @DisplayName("Limit concurrent starts and live sessions")
+    void testLimits() throws InterruptedException {
+        admissionService.acquire("tenant1");
+        assertThrows(SessionNotCreatedException.class,
+                () -> admissionService.acquire("tenant1"));
+
+        admissionService.startFinished("container1");
+        admissionService.acquire("tenant2");
+        admissionService.startFinished("container2");
+        assertThat(admissionService.getLive(), equalTo(2));
+        assertThrows(SessionNotCreatedException.class,
+                () -> admissionService.acquire("tenant3"));
+
+        admissionService.release("container1");
+        admissionService.release("container1");
+        assertThat(admissionService.getLive(), equalTo(1));
+        assertThat(admissionService.getQueued(), equalTo(0));
+    }
+
+    @Test
+    @DisplayName("Grant queued starts when slots are released")
+    void testQueue() throws Exception {
+        admissionService.acquire("tenant1");
+        CompletableFuture<Void> queued = CompletableFuture.runAsync(() -> {
+            try {
+                admissionService.acquire("tenant2");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        while (admissionService.getQueued() == 0 && !queued.isDone()) {
+            Thread.sleep(10);
+        }
+
+        // Failed start: both start and live slots are released
+        admissionService.startFinished(null);
+        queued.get(5, TimeUnit.SECONDS);
+        assertThat(admissionService.getStarting(), equalTo(1));
+        assertThat(admissionService.getLive(), equalTo(1));
+    }
+
+    @Test
+    @DisplayName("Do not limit live sessions by default")
+    void testUnlimitedLiveSessions() throws InterruptedException {
+        SessionAdmissionService unlimitedService = new SessionAdmissionService();
+        setField(unlimitedService, "maxStarts", 1);
+        setField(unlimitedService, "maxLive", 0);
+        setField(unlimitedService, "queueSize", 1);
+        setField(unlimitedService, "queueTimeoutSec", 1);
+        unlimitedService.init();
+
+        for (int i = 0; i < 100; i++) {
+            unlimitedService.acquire("tenant1");
+            unlimitedService.startFinished("container" + i);
+        }
+        assertThat(unlimitedService.getLive(), equalTo(100));
+        assertThat(unlimitedService.getMaxLive(), equalTo(Integer.MAX_VALUE));
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.session.SessionRequest;
+
+/**
+ * Tests for create session request processing.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for session request")
+public class SessionRequestUnitTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    @DisplayName("Rewrite Chrome request in a single pass")
+    void testChromeRequest() throws IOException {
+        SessionRequest sessionRequest = new SessionRequest(objectMapper
+                .readTree("{\"desiredCapabilities\":{\"browserName\":\"chrome\","
+                        + "\"version\":\"latest\",\"browserId\":\"b1\","
+                        + "\"live\":true,\"chromeOptions\":{\"args\":[\"x\"]}}}"));
+
+        assertThat(sessionRequest.getBrowserName(), equalTo("chrome"));
+        assertThat(sessionRequest.getBrowserId(), equalTo("b1"));
+        assertThat(sessionRequest.isLive(), equalTo(true));
+        assertThat(sessionRequest.isManualRecording(), equalTo(false));
+
+        JsonNode desiredCapabilities = sessionRequest.rewrite()
+                .get("desiredCapabilities");
+        assertThat(desiredCapabilities.path("loggingPrefs").path("browser")
+                .asText(), equalTo("ALL"));
+        assertThat(desiredCapabilities.path("chromeOptions").path("args")
+                .toString(), equalTo("[\"x\",\"disable-infobars\"]"));
+        assertThat(desiredCapabilities.get("browserId"), nullValue());
+        assertThat(desiredCapabilities.path("version").asText(),
+                equalTo(""));
+    }
+
+    @Test
+    @DisplayName("Rewrite Opera request keeping the version")
+    void testOperaRequest() throws IOException {
+        SessionRequest sessionRequest = new SessionRequest(objectMapper
+                .readTree("{\"desiredCapabilities\":{\"browserName\":"
+                        + "\"operablink\",\"version\":\"57\"}}"));
+
+        JsonNode desiredCapabilities = sessionRequest.rewrite()
+                .get("desiredCapabilities");
+        assertThat(desiredCapabilities.path("operaOptions").path("binary")
+                .asText(), equalTo("/usr/bin/opera"));
+        assertThat(desiredCapabilities.path("version").asText(),
+                equalTo("57"));
+    }
+
+    @Test
+    @DisplayName("Browser name from W3C capabilities")
+    void testW3cBrowserName() throws IOException {
+        SessionRequest sessionRequest = new SessionRequest(
+                objectMapper.readTree("{\"capabilities\":{\"alwaysMatch\":"
+                        + "{\"browserName\":\"firefox\"}}}"));
+
+        assertThat(sessionRequest.getBrowserName(), equalTo("firefox"));
+        assertThat(sessionRequest.isVersionWorkaround(), equalTo(true));
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.elastest.eus.service.JsonService;
+import io.elastest.eus.service.SessionService;
+import io.elastest.eus.session.SessionInfo;
+
+/**
+ * Tests for paginated and incremental WebSocket requests.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for SessionService")
+public class SessionServiceUnitTest {
+
+    SessionService sessionService;
+    WebSocketSession webSocketSession;
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    @BeforeEach
+    void setup() throws Exception {
+        sessionService = new SessionService(null, new JsonService(), null,
+                null);
+        setField(sessionService, "wsProtocolGetSessions", "getSessions");
+        setField(sessionService, "wsProtocolGetRecordings", "getRecordings");
+        setField(sessionService, "wsProtocolGetUpdates", "getUpdates");
+        setField(sessionService, "wsProtocolSessions", "sessions");
+        setField(sessionService, "wsProtocolUpdates", "updates");
+        setField(sessionService, "pageSize", 2);
+        setField(sessionService, "maxPageSize", 10);
+        setField(sessionService, "updatesLogSize", 2);
+        setField(sessionService, "broadcastThreads", 1);
+        setField(sessionService, "sendTimeLimitMs", 10000);
+        setField(sessionService, "sendBufferLimitBytes", 1024);
+        setField(sessionService, "sendQueueSize", 10);
+        sessionService.init();
+
+        webSocketSession = mock(WebSocketSession.class);
+        when(webSocketSession.getId()).thenReturn("ws");
+        when(webSocketSession.isOpen()).thenReturn(true);
+        sessionService.afterConnectionEstablished(webSocketSession);
+    }
+
+    @AfterEach
+    void teardown() {
+        sessionService.cleanUp();
+    }
+
+    @Test
+    @DisplayName("Paginate sessions with a cursor")
+    void testPagination() throws Exception {
+        for (String sessionId : new String[] { "c", "a", "b" }) {
+            SessionInfo sessionInfo = new SessionInfo();
+            sessionInfo.setSessionId(sessionId);
+            sessionService.putSession(sessionId, sessionInfo);
+        }
+
+        JsonNode firstPage = request("{\"getSessions\":{}}", 1)
+                .get("sessions");
+        assertThat(firstPage.get("items").size(), equalTo(2));
+        assertThat(firstPage.get("items").get(0).get("id").asText(),
+                equalTo("a"));
+        assertThat(firstPage.get("nextCursor").asText(), equalTo("b"));
+
+        JsonNode lastPage = request("{\"getSessions\":{\"cursor\":\"b\"}}", 2)
+                .get("sessions");
+        assertThat(lastPage.get("items").get(0).get("id").asText(),
+                equalTo("c"));
+        assertThat(lastPage.get("nextCursor").isNull(), equalTo(true));
+    }
+
+    @Test
+    @DisplayName("Resync from the last sequence number")
+    void testUpdates() throws Exception {
+        for (String sessionId : new String[] { "a", "b", "c" }) {
+            SessionInfo sessionInfo = new SessionInfo();
+            sessionInfo.setSessionId(sessionId);
+            sessionService.sendNewSessionToAllClients(sessionInfo);
+        }
+
+        // Three events broadcast, but only the last two are kept
+        JsonNode updates = request("{\"getUpdates\":{\"since\":1}}", 4)
+                .get("updates");
+        assertThat(updates.get("seq").asLong(), equalTo(3L));
+        assertThat(updates.get("resync").asBoolean(), equalTo(false));
+        assertThat(updates.get("messages").size(), equalTo(2));
+        assertThat(updates.get("messages").get(0).get("seq").asLong(),
+                equalTo(2L));
+
+        updates = request("{\"getUpdates\":{\"since\":0}}", 5)
+                .get("updates");
+        assertThat(updates.get("resync").asBoolean(), equalTo(true));
+    }
+
+    private JsonNode request(String request, int messages) throws Exception {
+        sessionService.handleTextMessage(webSocketSession,
+                new TextMessage(request));
+        ArgumentCaptor<TextMessage> captor = ArgumentCaptor
+                .forClass(TextMessage.class);
+        verify(webSocketSession, timeout(5000).times(messages))
+                .sendMessage(captor.capture());
+        return objectMapper.readTree(captor.getValue().getPayload());
+    }
+
+}
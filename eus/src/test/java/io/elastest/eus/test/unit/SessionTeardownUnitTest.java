@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.service.JsonService;
+import io.elastest.eus.service.RecordingService;
+import io.elastest.eus.service.SessionAdmissionService;
+import io.elastest.eus.service.SessionService;
+import io.elastest.eus.service.SessionTeardownService;
+import io.elastest.eus.session.SessionInfo;
+
+/**
+ * Tests for the asynchronous teardown of sessions.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for session teardown")
+public class SessionTeardownUnitTest {
+
+    RecordingService recordingService;
+    SessionService sessionService;
+    SessionAdmissionService sessionAdmissionService;
+    SessionTeardownService teardownService;
+
+    @BeforeEach
+    void setup() {
+        recordingService = mock(RecordingService.class);
+        sessionService = mock(SessionService.class);
+        sessionAdmissionService = mock(SessionAdmissionService.class);
+        teardownService = new SessionTeardownService(recordingService,
+                sessionService, sessionAdmissionService, new JsonService());
+        setField(teardownService, "teardownThreads", 2);
+        setField(teardownService, "teardownQueueSize", 10);
+        setField(teardownService, "teardownRetries", 1);
+        setField(teardownService, "teardownRetryMs", 10L);
+        setField(teardownService, "drainTimeoutSec", 10L);
+        setField(teardownService, "drainMode", "parallel");
+        setField(teardownService, "drainThreads", 4);
+        setField(teardownService, "drainDeadlineSec", 2L);
+        setField(teardownService, "drainContainersSec", 1L);
+        setField(teardownService, "drainReportMs", 100L);
+        setField(teardownService, "drainReportFile", "");
+        teardownService.init();
+    }
+
+    @Test
+    @DisplayName("Retry failed stages and drain on shutdown")
+    void testRetryAndDrain() throws Exception {
+        SessionInfo sessionInfo = newSessionInfo("session1");
+        doThrow(new IOException("ffmpeg not ready")).doNothing()
+                .when(recordingService).stopRecording(sessionInfo);
+
+        teardownService.teardown(sessionInfo);
+        teardownService.cleanUp();
+
+        assertThat(teardownService.getPending(), equalTo(0));
+        verify(recordingService, times(2)).stopRecording(sessionInfo);
+        verify(recordingService).storeMetadata(sessionInfo);
+        verify(sessionService).sendRecordingToAllClients(sessionInfo);
+        verify(sessionService).sendRemoveSessionToAllClients(sessionInfo);
+        verify(sessionService).stopAllContainerOfSession(sessionInfo);
+        verify(sessionAdmissionService).release("hub1");
+    }
+
+    @Test
+    @DisplayName("Skip metadata of failed recordings but remove containers")
+    void testFailedRecording() throws Exception {
+        SessionInfo sessionInfo = newSessionInfo("session2");
+        doThrow(new IOException("exec failed")).when(recordingService)
+                .stopRecording(any(SessionInfo.class));
+
+        teardownService.teardown(sessionInfo);
+        teardownService.cleanUp();
+
+        verify(recordingService, times(2)).stopRecording(sessionInfo);
+        verify(recordingService, never()).storeMetadata(sessionInfo);
+        verify(sessionService, never()).sendRecordingToAllClients(sessionInfo);
+        verify(sessionService).stopAllContainerOfSession(sessionInfo);
+        verify(sessionAdmissionService).release("hub1");
+    }
+
+    @Test
+    @DisplayName("Drain sessions in parallel within the deadline")
+    void testParallelDrain() throws Exception {
+        SessionInfo finalized = newSessionInfo("session3");
+        SessionInfo stuck = newSessionInfo("session4");
+        doAnswer(invocation -> {
+            Thread.sleep(10000);
+            return null;
+        }).when(recordingService).stopRecording(stuck);
+
+        long startTime = System.currentTimeMillis();
+        teardownService.drain(Arrays.asList(finalized, stuck));
+
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+        verify(recordingService).storeMetadata(finalized);
+        verify(recordingService, never()).storeMetadata(stuck);
+        verify(sessionService).sendRecordingToAllClients(finalized);
+        verify(sessionService).stopAllContainerOfSession(finalized);
+        verify(sessionService).stopAllContainerOfSession(stuck);
+        verify(sessionAdmissionService, times(2)).release("hub1");
+    }
+
+    private SessionInfo newSessionInfo(String sessionId) {
+        SessionInfo sessionInfo = new SessionInfo();
+        sessionInfo.setSessionId(sessionId);
+        sessionInfo.setHubContainerName("hub1");
+        sessionInfo.setVncContainerName("vnc1");
+        return sessionInfo;
+    }
+
+}
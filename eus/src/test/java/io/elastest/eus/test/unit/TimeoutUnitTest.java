@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.elastest.eus.service.TimeoutService;
+import io.elastest.eus.session.SessionInfo;
+
+/**
+ * Tests for session inactivity timeouts.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for session timeouts")
+public class TimeoutUnitTest {
+
+    TimeoutService timeoutService;
+
+    @BeforeEach
+    void setup() {
+        timeoutService = new TimeoutService(null);
+        setField(timeoutService, "logPollThreads", 1);
+        setField(timeoutService, "logPollMs", 10);
+        setField(timeoutService, "logPollMaxMs", 40);
+        setField(timeoutService, "logPollTimeoutMs", 1000);
+        setField(timeoutService, "timeoutTickMs", 100L);
+        setField(timeoutService, "timeoutWheelSize", 8);
+        timeoutService.init();
+    }
+
+    @AfterEach
+    void teardown() {
+        timeoutService.cleanUp();
+    }
+
+    @Test
+    @DisplayName("Expire inactive session")
+    void testExpiredSession() throws InterruptedException {
+        CountDownLatch expired = new CountDownLatch(1);
+        timeoutService.startSessionTimer(new SessionInfo(), 1,
+                expired::countDown);
+
+        assertTrue(expired.await(3, SECONDS));
+    }
+
+    @Test
+    @DisplayName("Keep active session and cancel timer")
+    void testActiveSession() throws InterruptedException {
+        CountDownLatch expired = new CountDownLatch(1);
+        SessionInfo sessionInfo = new SessionInfo();
+        timeoutService.startSessionTimer(sessionInfo, 1, expired::countDown);
+
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(250);
+            timeoutService.touchSession(sessionInfo);
+        }
+        assertFalse(expired.await(0, SECONDS));
+
+        timeoutService.shutdownSessionTimer(sessionInfo);
+        assertFalse(expired.await(2, SECONDS));
+    }
+
+    @Test
+    @DisplayName("Keep polling the browser log after transient errors")
+    void testLogMonitorErrors() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer hub = HttpServer.create(
+                new InetSocketAddress("localhost", 0), 0);
+        hub.createContext("/", exchange -> {
+            // Two transient errors, and then the session is gone
+            boolean sessionGone = requests.incrementAndGet() > 2;
+            String error = sessionGone ? "invalid session id"
+                    : "unknown error";
+            byte[] body = ("{\"value\":{\"error\":\"" + error + "\"}}")
+                    .getBytes();
+            exchange.getResponseHeaders().add("Content-Type",
+                    "application/json");
+            exchange.sendResponseHeaders(sessionGone ? 404 : 500,
+                    body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        hub.start();
+        try {
+            timeoutService.launchLogMonitor("http://localhost:"
+                    + hub.getAddress().getPort() + "/wd/hub/session/s1/log",
+                    "s1");
+            for (int i = 0; i < 100
+                    && timeoutService.getLogMonitorCount() > 0; i++) {
+                Thread.sleep(50);
+            }
+            assertThat(timeoutService.getLogMonitorCount(), equalTo(0));
+            assertThat(requests.get(), equalTo(3));
+        } finally {
+            hub.stop(0);
+        }
+    }
+
+}
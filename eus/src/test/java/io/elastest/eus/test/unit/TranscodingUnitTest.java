@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static io.elastest.eus.session.TranscodingJob.PRIORITY_HIGH;
+import static io.elastest.eus.session.TranscodingJob.PRIORITY_NORMAL;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import io.elastest.eus.json.RecordingProfile;
+import io.elastest.eus.service.TranscodingService;
+import io.elastest.eus.session.TranscodingJob;
+import io.elastest.eus.session.TranscodingJob.State;
+
+/**
+ * Tests for the deferred transcoding queue.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for transcoding queue")
+public class TranscodingUnitTest {
+
+    RecordingProfile profile = new RecordingProfile(10, 30, 0.5, 50, true);
+    TranscodingService transcodingService;
+    List<String> transcodedIds = new CopyOnWriteArrayList<>();
+    CountDownLatch firstJobLatch = new CountDownLatch(1);
+
+    @BeforeEach
+    void setup() {
+        transcodingService = new TranscodingService() {
+            @Override
+            protected void transcode(TranscodingJob job)
+                    throws InterruptedException {
+                if (job.getId().equals("first")) {
+                    firstJobLatch.await();
+                }
+                if (job.getId().equals("failed")) {
+                    throw new IllegalStateException("ffmpeg error");
+                }
+                transcodedIds.add(job.getId());
+            }
+        };
+        setField(transcodingService, "transcodingThreads", 1);
+        setField(transcodingService, "transcodingCommand", "nice -n 19 ffmpeg");
+        setField(transcodingService, "transcodingTimeoutSec", 60L);
+        setField(transcodingService, "registryRecordingExtension", ".mp4");
+        transcodingService.init();
+    }
+
+    @AfterEach
+    void teardown() {
+        transcodingService.cleanUp();
+    }
+
+    @Test
+    @DisplayName("Transcode queued recordings by priority")
+    void testPriority() throws Exception {
+        TranscodingJob first = new TranscodingJob("first", profile,
+                PRIORITY_NORMAL);
+        CompletableFuture<TranscodingJob> firstResult = transcodingService
+                .submit(first);
+        while (first.getState() != State.RUNNING) {
+            Thread.sleep(10);
+        }
+
+        TranscodingJob failed = new TranscodingJob("failed", profile,
+                PRIORITY_NORMAL);
+        TranscodingJob second = new TranscodingJob("second", profile,
+                PRIORITY_NORMAL);
+        TranscodingJob requested = new TranscodingJob("requested", profile,
+                PRIORITY_NORMAL);
+        CompletableFuture<TranscodingJob> failedResult = transcodingService
+                .submit(failed);
+        transcodingService.submit(second);
+        CompletableFuture<TranscodingJob> requestedResult = transcodingService
+                .submit(requested);
+        transcodingService.prioritize(requested, PRIORITY_HIGH);
+        assertThat(requested.getState(), equalTo(State.QUEUED));
+
+        firstJobLatch.countDown();
+        assertThat(firstResult.get(5, SECONDS).getState(),
+                equalTo(State.DONE));
+        assertThat(requestedResult.get(5, SECONDS).getState(),
+                equalTo(State.DONE));
+        assertThat(failedResult.get(5, SECONDS).getState(),
+                equalTo(State.FAILED));
+        assertThat(failed.getError(), equalTo("ffmpeg error"));
+        while (transcodedIds.size() < 3) {
+            Thread.sleep(10);
+        }
+        assertThat(transcodedIds,
+                equalTo(asList("first", "requested", "second")));
+    }
+
+    @Test
+    @DisplayName("Build ffmpeg command from the recording profile")
+    void testCommand() {
+        List<String> command = transcodingService.getCommand(profile,
+                Paths.get("/tmp/rec-lossless.mkv"), Paths.get("/tmp/rec.mp4"));
+
+        assertThat(command.subList(0, 4),
+                equalTo(asList("nice", "-n", "19", "ffmpeg")));
+        assertThat(command, hasItems("-crf", "30", "-g", "50",
+                "scale=trunc(iw*0.5/2)*2:trunc(ih*0.5/2)*2", "/tmp/rec.mp4"));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.elastest.eus.docker.UrlReadinessProbe;
+
+/**
+ * Tests for the asynchronous URL readiness probe.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for URL readiness probe")
+public class UrlReadinessProbeUnitTest {
+
+    UrlReadinessProbe probe;
+    HttpServer server;
+
+    @BeforeEach
+    void setup() throws IOException {
+        probe = new UrlReadinessProbe(16, 10, 100, 500);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void teardown() {
+        server.stop(0);
+        probe.close();
+    }
+
+    @Test
+    @DisplayName("Complete when the URL is reachable")
+    void testReachable() throws Exception {
+        probe.waitReachable("http://localhost:"
+                + server.getAddress().getPort() + "/wd/hub/status", 5000)
+                .get(5, SECONDS);
+    }
+
+    @Test
+    @DisplayName("Fail (and do not hang) when the URL is not reachable")
+    void testNotReachable() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        assertThrows(ExecutionException.class,
+                () -> probe.waitReachable("http://localhost:" + closedPort,
+                        300).get(5, SECONDS));
+        assertThrows(ExecutionException.class,
+                () -> probe.waitReachable("not a url", 300).get(5, SECONDS));
+
+        probe.close();
+        assertThrows(ExecutionException.class,
+                () -> probe.waitReachable("http://localhost:" + closedPort,
+                        300).get(5, SECONDS));
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.elastest.eus.service.WebDriverClientService;
+
+/**
+ * Tests for the pooled HTTP clients of browsers.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for WebDriver HTTP clients")
+public class WebDriverClientUnitTest {
+
+    WebDriverClientService webDriverClientService;
+    HttpServer hub;
+    String hubUrl;
+
+    @BeforeEach
+    void setup() throws IOException {
+        hub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        hub.createContext("/", exchange -> {
+            byte[] body = "{}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        hub.start();
+        hubUrl = "http://localhost:" + hub.getAddress().getPort() + "/wd/hub";
+
+        webDriverClientService = new WebDriverClientService();
+        setField(webDriverClientService, "createSessionTimeoutSec", 10);
+        setField(webDriverClientService, "maxConnectionsPerRoute", 4);
+        setField(webDriverClientService, "connectTimeoutMs", 1000);
+        setField(webDriverClientService, "commandTimeoutSec", 10);
+        setField(webDriverClientService, "connectionTtlSec", 60);
+        setField(webDriverClientService, "validateAfterInactivityMs", 1000);
+    }
+
+    @AfterEach
+    void teardown() {
+        webDriverClientService.cleanUp();
+        hub.stop(0);
+    }
+
+    @Test
+    @DisplayName("Keep evicted pools open until their leases are closed")
+    void testEvictWhileInUse() {
+        try (WebDriverClientService.Lease lease = webDriverClientService
+                .acquire(hubUrl, true)) {
+            assertThat(webDriverClientService.getPoolCount(), equalTo(1));
+            webDriverClientService.evict(hubUrl);
+            assertThat(webDriverClientService.getPoolCount(), equalTo(0));
+
+            assertThat(lease.getCommandTemplate()
+                    .getForObject(hubUrl + "/status", String.class),
+                    equalTo("{}"));
+        }
+    }
+
+    @Test
+    @DisplayName("Do not create pools for commands of removed sessions")
+    void testCommandWithoutPool() {
+        try (WebDriverClientService.Lease lease = webDriverClientService
+                .acquire(hubUrl, false)) {
+            assertThat(lease.getCommandTemplate()
+                    .getForObject(hubUrl + "/status", String.class),
+                    equalTo("{}"));
+        }
+        assertThat(webDriverClientService.getPoolCount(), equalTo(0));
+
+        try (WebDriverClientService.Lease lease = webDriverClientService
+                .acquire(hubUrl, true)) {
+            try (WebDriverClientService.Lease commandLease = webDriverClientService
+                    .acquire(hubUrl, false)) {
+                assertThat(commandLease.getCommandTemplate(),
+                        equalTo(lease.getCommandTemplate()));
+            }
+        }
+        assertThat(webDriverClientService.getPoolCount(), equalTo(1));
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import io.elastest.eus.service.WebDriverProxyService;
+import io.elastest.eus.service.WebDriverService;
+
+/**
+ * Tests for the sync and async WebDriver proxy engines.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for WebDriver proxy engines")
+public class WebDriverProxyUnitTest {
+
+    static final ResponseEntity<String> SESSION_RESPONSE = new ResponseEntity<>(
+            "{\"value\":{\"sessionId\":\"session1\"}}", OK);
+    static final ResponseEntity<String> ERROR_RESPONSE = new ResponseEntity<>(
+            "{\"value\":{\"error\":\"unknown error\"}}",
+            INTERNAL_SERVER_ERROR);
+
+    WebDriverService webDriverService;
+    WebDriverProxyService proxyService;
+    HttpEntity<String> httpEntity = new HttpEntity<>("{}");
+    HttpServletRequest request;
+    HttpServletResponse servletResponse;
+    CountDownLatch browserStarted;
+
+    @BeforeEach
+    void setup() throws Exception {
+        webDriverService = mock(WebDriverService.class);
+        request = mock(HttpServletRequest.class);
+        servletResponse = mock(HttpServletResponse.class);
+        browserStarted = new CountDownLatch(1);
+        when(webDriverService.isCreateSessionRequest(request)).thenReturn(true);
+        when(webDriverService.session(eq(httpEntity), eq(request), any()))
+                .thenAnswer(invocation -> {
+                    assertTrue(browserStarted.await(10, SECONDS));
+                    return SESSION_RESPONSE;
+                });
+        when(webDriverService.getErrorResponse(anyString(), any()))
+                .thenReturn(ERROR_RESPONSE);
+
+        proxyService = new WebDriverProxyService(webDriverService);
+        setField(proxyService, "asyncTimeoutMs", 10000L);
+        setField(proxyService, "createSessionThreads", 1);
+        setField(proxyService, "createSessionQueue", 1);
+        setField(proxyService, "commandThreads", 1);
+        setField(proxyService, "commandQueue", 1);
+    }
+
+    @AfterEach
+    void teardown() {
+        proxyService.cleanUp();
+    }
+
+    @Test
+    @DisplayName("Sync engine returns the response directly")
+    void testSyncEngine() {
+        setField(proxyService, "proxyEngine", "sync");
+        proxyService.init();
+        browserStarted.countDown();
+
+        Object response = proxyService.session(httpEntity, request,
+                servletResponse);
+
+        assertThat(response, equalTo(SESSION_RESPONSE));
+    }
+
+    @Test
+    @DisplayName("Async engine rejects requests when its queue is full")
+    void testAsyncEngineRejection() throws Exception {
+        setField(proxyService, "proxyEngine", "async");
+        proxyService.init();
+
+        DeferredResult<?> running = asyncSession();
+        DeferredResult<?> queued = asyncSession();
+        DeferredResult<?> rejected = asyncSession();
+        assertThat(rejected.getResult(), equalTo(ERROR_RESPONSE));
+
+        browserStarted.countDown();
+        verify(webDriverService, timeout(5000).times(2))
+                .session(eq(httpEntity), eq(request), any());
+        waitResult(running);
+        waitResult(queued);
+        assertThat(running.getResult(), equalTo(SESSION_RESPONSE));
+        assertThat(queued.getResult(), equalTo(SESSION_RESPONSE));
+        verify(webDriverService, never()).releaseSession(any());
+    }
+
+    @Test
+    @DisplayName("Async engine releases sessions created after the timeout")
+    void testAsyncEngineLateSession() throws Exception {
+        setField(proxyService, "proxyEngine", "async");
+        proxyService.init();
+
+        DeferredResult<?> result = asyncSession();
+        // Simulates the timeout handler
+        result.setResult(null);
+        browserStarted.countDown();
+
+        verify(webDriverService, timeout(5000))
+                .releaseSession(SESSION_RESPONSE);
+    }
+
+    @Test
+    @DisplayName("Async engine stops streaming after the timeout")
+    void testAsyncEngineStreamingTimeout() throws Exception {
+        setField(proxyService, "proxyEngine", "async");
+        proxyService.init();
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        when(servletResponse.getOutputStream())
+                .thenReturn(new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        streamed.write(b);
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener listener) {
+                    }
+                });
+        when(servletResponse.isCommitted()).thenReturn(true);
+        CountDownLatch firstChunk = new CountDownLatch(1);
+        CompletableFuture<IOException> secondChunk = new CompletableFuture<>();
+        when(webDriverService.session(eq(httpEntity), eq(request), any()))
+                .thenAnswer(invocation -> {
+                    HttpServletResponse response = invocation.getArgument(2);
+                    response.getOutputStream().write(1);
+                    firstChunk.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        // Cancelled by the timeout
+                    }
+                    secondChunk.complete(assertThrows(IOException.class,
+                            () -> response.getOutputStream().write(2)));
+                    return null;
+                });
+
+        DeferredResult<?> result = asyncSession();
+        assertTrue(firstChunk.await(5, SECONDS));
+        // Simulates the timeout of the async request
+        ((Runnable) getField(result, "timeoutCallback")).run();
+
+        assertTrue(result.hasResult());
+        assertThat(result.getResult(), nullValue());
+        secondChunk.get(5, SECONDS);
+        assertThat(streamed.toByteArray(), equalTo(new byte[] { 1 }));
+    }
+
+    private DeferredResult<?> asyncSession() {
+        Object result = proxyService.session(httpEntity, request,
+                servletResponse);
+        assertThat(result, instanceOf(DeferredResult.class));
+        return (DeferredResult<?>) result;
+    }
+
+    private void waitResult(DeferredResult<?> result)
+            throws InterruptedException {
+        for (int i = 0; i < 500 && !result.hasResult(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(result.hasResult());
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2017-2019 ElasTest (http://elastest.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.elastest.eus.test.unit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import io.elastest.eus.session.WebSocketBroadcaster;
+
+/**
+ * Tests for WebSocket broadcast.
+ *
+ * @since 0.9.1
+ */
+@Tag("unit")
+@DisplayName("Unit tests for WebSocket broadcaster")
+public class WebSocketBroadcasterUnitTest {
+
+    WebSocketBroadcaster broadcaster;
+
+    @BeforeEach
+    void setup() {
+        broadcaster = new WebSocketBroadcaster(2, 10000, 1024, 2);
+    }
+
+    @AfterEach
+    void teardown() {
+        broadcaster.close();
+    }
+
+    @Test
+    @DisplayName("Send the same message to all clients")
+    void testBroadcast() throws Exception {
+        WebSocketSession session1 = mockSession("1");
+        WebSocketSession session2 = mockSession("2");
+        broadcaster.register(session1);
+        broadcaster.register(session2);
+
+        TextMessage message = new TextMessage("{}");
+        broadcaster.broadcast(message);
+
+        verify(session1, timeout(5000)).sendMessage(message);
+        verify(session2, timeout(5000)).sendMessage(message);
+    }
+
+    @Test
+    @DisplayName("Disconnect clients that cannot keep up")
+    void testSlowClient() throws Exception {
+        WebSocketSession fastSession = mockSession("fast");
+        WebSocketSession slowSession = mockSession("slow");
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await(10, SECONDS);
+            return null;
+        }).when(slowSession).sendMessage(new TextMessage("0"));
+        broadcaster.register(fastSession);
+        broadcaster.register(slowSession);
+
+        // The slow client blocks sending the first message, so its queue
+        // (2 messages) is full at the fourth one
+        for (int i = 0; i <= 3; i++) {
+            TextMessage message = new TextMessage(String.valueOf(i));
+            broadcaster.broadcast(message);
+            verify(fastSession, timeout(5000)).sendMessage(message);
+            sending.await(5, SECONDS);
+        }
+
+        verify(slowSession, timeout(5000))
+                .close(CloseStatus.SESSION_NOT_RELIABLE);
+        assertThat(broadcaster.getClientCount(), equalTo(1));
+        release.countDown();
+    }
+
+    private WebSocketSession mockSession(String id) {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(id);
+        when(session.isOpen()).thenReturn(true);
+        return session;
+    }
+
+}